@@ -0,0 +1,77 @@
+package modbus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures round trips of the ModbusClient against an in-process modbus server.
+ * <p>
+ * Run with several threads (-t 8) to see the effect of the pipelining and
+ * the connections. SampleTime reports the percentiles p0.50, p0.99 and p0.999.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModbusClientBenchmark
+{
+	@Param({"false", "true"})
+	boolean pipelined;
+
+	@Param({"1", "4"})
+	int connections;
+
+	ModbusSimulator server;
+	ModbusClient client;
+
+	@State(Scope.Thread)
+	public static class Words
+	{
+		long[] words = new long[1];
+	}
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		server = new ModbusSimulator(0);
+
+		client = new ModbusClient("127.0.0.1", server.getPort());
+		client.setPipelined(pipelined);
+		client.setConnections(connections);
+		client.connect();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		client.disconnect();
+		server.close();
+	}
+
+	@Benchmark
+	public long readInputMask() throws Exception
+	{
+		return client.readInputMask(0, 16);
+	}
+
+	@Benchmark
+	public long[] readInputWordsAsync(Words state) throws Exception
+	{
+		return client.readInputWordsAsync(0, 16, state.words).get();
+	}
+
+	@Benchmark
+	public void writeOutput() throws Exception
+	{
+		client.writeOutput(3, true);
+	}
+
+	@Benchmark
+	public short[] readHoldingRegisters() throws Exception
+	{
+		return client.readHoldingRegisters(0, 8);
+	}
+}
@@ -0,0 +1,111 @@
+package modbus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CRC-16 and the RTU framing.
+ * <p>
+ * {@code crc16} is the slicing-by-8 of the framing, {@code crc16Table} the table with one byte
+ * per step and {@code crc16Bitwise} the loop over every bit of the specification.
+ * {@code delimitStream} splits a stream of read responses into frames, checks their CRC and
+ * decodes them, like the client does. The framing must not allocate (gc.alloc.rate.norm 0 B/op
+ * with -prof gc). The throughput in bytes is the number of operations times {@code bytes}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModbusFramingBenchmark
+{
+	/* number of frames in the stream of delimitStream */
+	private final static int FRAMES = 16;
+
+	/* number of bytes of a frame, the smallest read response and the largest RTU frame */
+	@Param({"8", "256"})
+	int bytes;
+
+	ByteBuffer frame = ByteBuffer.allocateDirect(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ByteBuffer stream = ByteBuffer.allocateDirect(FRAMES * ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ByteBuffer request_buffer = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ByteBuffer write_buffer = ByteBuffer.allocateDirect(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ModbusFraming.Rtu framing = new ModbusFraming.Rtu();
+	ModbusMessage response = new ModbusMessage();
+	long[] words = new long[32];
+
+	@Setup
+	public void setUp()
+	{
+		// a response of function 0x02 with a bit pattern: unit, function, byte count, data and CRC
+		int data = bytes - 5;
+		frame.put(ModbusProtocol.MODBUS_UNIT_IDENT);
+		frame.put((byte) ModbusProtocol.F_READ_DISCRETE_INPUTS);
+		frame.put((byte) data);
+		for (int i = 0; i < data; i++)
+			frame.put((byte) (i * 37));
+		int crc = ModbusCrc.crc16(frame, 0, frame.position());
+		frame.put((byte) crc);
+		frame.put((byte) (crc >>> 8));
+		frame.flip();
+
+		for (int i = 0; i < FRAMES; i++)
+			stream.put(frame.duplicate());
+		stream.flip();
+	}
+
+	@Benchmark
+	public int crc16()
+	{
+		return ModbusCrc.crc16(frame, 0, bytes);
+	}
+
+	@Benchmark
+	public int crc16Table()
+	{
+		return ModbusCrc.crc16Table(frame, 0, bytes);
+	}
+
+	@Benchmark
+	public int crc16Bitwise()
+	{
+		int crc = 0xffff;
+		for (int i = 0; i < bytes; i++) {
+			crc ^= frame.get(i) & 0xff;
+			for (int bit = 0; bit < 8; bit++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+		}
+		return crc;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeReadRequest()
+	{
+		ModbusMessage req = new ModbusMessage(request_buffer, ModbusProtocol.MODBUS_UNIT_IDENT, ModbusProtocol.F_READ_DISCRETE_INPUTS);
+		req.addDataShort((short) 0);
+		req.addDataShort((short) ((bytes - 5) * 8));
+
+		write_buffer.clear();
+		framing.write(req, write_buffer);
+		return write_buffer;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long[] delimitStream() throws IOException
+	{
+		stream.position(0);
+
+		int length;
+		while ((length = framing.frameLength(stream, false)) > 0) {
+			ModbusMessage res = framing.parse(stream, length, (short) 1, response);
+			res.getDataBits(res.getDataByte() & 0xff, words);
+			stream.position(stream.position() + length);
+		}
+		return words;
+	}
+}
@@ -0,0 +1,69 @@
+package modbus;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the in place encoding of requests and the decoding of responses.
+ * <p>
+ * It's in the package of the codec, because ModbusMessage isn't public.
+ * The decoding must not allocate (gc.alloc.rate.norm 0 B/op with -prof gc),
+ * the encoding only the message view, which is usually removed by the escape analysis.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModbusMessageBenchmark
+{
+	ByteBuffer request_buffer = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ByteBuffer write_buffer = ByteBuffer.allocateDirect(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ByteBuffer response_buffer = ByteBuffer.allocateDirect(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	ModbusMessage response = new ModbusMessage();
+	long[] words = new long[32];
+
+	/* number of bits of the decoded response */
+	@Param({"16", "2000"})
+	int bits;
+
+	@Setup
+	public void setUp()
+	{
+		// a response of function 0x02 with a bit pattern
+		int bytes = (bits + 7) / 8;
+		response_buffer.putShort((short) 1);
+		response_buffer.putShort((short) 0);
+		response_buffer.putShort((short) (3 + bytes));
+		response_buffer.put(ModbusProtocol.MODBUS_UNIT_IDENT);
+		response_buffer.put((byte) ModbusProtocol.F_READ_DISCRETE_INPUTS);
+		response_buffer.put((byte) bytes);
+		for (int i = 0; i < bytes; i++)
+			response_buffer.put((byte) (i * 37));
+		response_buffer.flip();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeReadRequest()
+	{
+		ModbusMessage req = new ModbusMessage(request_buffer, ModbusProtocol.MODBUS_UNIT_IDENT, ModbusProtocol.F_READ_DISCRETE_INPUTS);
+		req.addDataShort((short) 0);
+		req.addDataShort((short) bits);
+		req.setTransactionIdentifier((short) 1);
+
+		write_buffer.clear();
+		req.writeTo(write_buffer);
+		return write_buffer;
+	}
+
+	@Benchmark
+	public long[] decodeReadResponse()
+	{
+		ModbusMessage res = response.wrap(response_buffer, 0);
+		res.getDataBits(res.getDataByte() & 0xff, words);
+		return words;
+	}
+}
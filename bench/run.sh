@@ -0,0 +1,43 @@
+#!/bin/sh
+# Compile the sources and the JMH benchmarks and run them.
+#
+#   bench/run.sh [jmh-options]     e.g. bench/run.sh -t 8 -prof gc WutEndToEndBenchmark
+#
+# The JMH jars are downloaded from Maven Central into bench/lib once. Put the jars there
+# yourself to run the benchmarks offline, then nothing is downloaded.
+set -e
+
+JMH_VERSION=1.37
+REPOSITORY=https://repo1.maven.org/maven2
+
+BENCH=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(dirname "$BENCH")
+LIB=$BENCH/lib
+OUT=$BENCH/out
+
+fetch()
+{
+	# $1 group path, $2 artifact, $3 version
+	jar=$LIB/$2-$3.jar
+	if [ ! -f "$jar" ]; then
+		echo "downloading $2-$3.jar"
+		curl -fsSL -o "$jar.part" "$REPOSITORY/$1/$2/$3/$2-$3.jar"
+		mv "$jar.part" "$jar"
+	fi
+}
+
+mkdir -p "$LIB"
+fetch org/openjdk/jmh jmh-core $JMH_VERSION
+fetch org/openjdk/jmh jmh-generator-annprocess $JMH_VERSION
+fetch net/sf/jopt-simple jopt-simple 5.0.4
+fetch org/apache/commons commons-math3 3.6.1
+
+CLASSPATH=$(find "$LIB" -name "*.jar" | tr '\n' ':')
+
+# the annotation processor generates the benchmark classes and the list of benchmarks
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -d "$OUT" -cp "$CLASSPATH" -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+	$(find "$ROOT/src" "$BENCH" -name "*.java")
+
+exec java -cp "$OUT:$CLASSPATH" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,75 @@
+package services;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the translation of read frames into the image of the WUT ports.
+ * <p>
+ * {@code translate} uses the precomputed moves of the channel map, {@code translatePerBit}
+ * is the loop over every bit, which the moves replace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelMapBenchmark
+{
+	/* a single block, four scattered blocks and a wide inverted block at an odd address */
+	@Param({"0:64", "0:16,!100:16,200:16,300:16", "3:2000"})
+	String spec;
+
+	ChannelMap map;
+	long[][] frames;
+
+	/* frame, bit in the frame and inversion of each port for the loop over every bit */
+	int[] port_frames;
+	int[] port_bits;
+	boolean[] inverted;
+
+	@Setup
+	public void setUp()
+	{
+		map = ChannelMap.parse(spec, 1000);
+
+		// the frames of the map, filled with a bit pattern
+		frames = new long[map.getFrames()][];
+		for (int f = 0; f < frames.length; f++) {
+			frames[f] = new long[(map.frame_counts[f] + 63) / 64];
+			for (int i = 0; i < frames[f].length; i++)
+				frames[f][i] = 0x9E3779B97F4A7C15L * (i + 1);
+		}
+
+		port_frames = new int[map.getCount()];
+		port_bits = new int[map.getCount()];
+		inverted = new boolean[map.getCount()];
+		for (int port = 0; port < map.getCount(); port++) {
+			int address = map.address(port);
+			port_frames[port] = map.frame(address);
+			port_bits[port] = address - map.frame_addresses[port_frames[port]];
+			inverted[port] = !map.value(port, true);
+		}
+	}
+
+	@Benchmark
+	public long[] translate()
+	{
+		return map.translate(frames);
+	}
+
+	@Benchmark
+	public long[] translatePerBit()
+	{
+		long[] image = new long[(port_bits.length + 63) / 64];
+		for (int port = 0; port < port_bits.length; port++) {
+			int bit = port_bits[port];
+			boolean value = (frames[port_frames[port]][bit >> 6] & (1L << bit)) != 0;
+			if (value ^ inverted[port])
+				image[port >> 6] |= 1L << port;
+		}
+		return image;
+	}
+}
@@ -0,0 +1,99 @@
+package wut;
+
+import modbus.ModbusEventLoop;
+import services.ConnectionService;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to the WUT classes of the default package.
+ * <p>
+ * JMH doesn't accept benchmarks in the default package and classes of the default package
+ * can't be imported, so the benchmarks call them by method handles. The handles are constants,
+ * thus the JIT inlines them like direct calls.
+ */
+final class Gateway
+{
+	/* at least WutWrapper.MAX_RESPONSE_LENGTH, which isn't public */
+	final static int MAX_RESPONSE_LENGTH = 1024;
+
+	private final static MethodHandle NEW_WRAPPER;
+	private final static MethodHandle DO_REQUEST;
+	private final static MethodHandle DO_REQUEST_STRING;
+	private final static MethodHandle NEW_SELECTOR_SERVER;
+	private final static MethodHandle GET_PORT;
+	private final static MethodHandle CLOSE;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> wrapper = Class.forName("WutWrapper");
+			Class<?> server = Class.forName("WutSelectorServer");
+
+			NEW_WRAPPER = lookup.findConstructor(wrapper, MethodType.methodType(void.class, ConnectionService.class))
+			.asType(MethodType.methodType(Object.class, ConnectionService.class));
+			DO_REQUEST = lookup.findVirtual(wrapper, "doRequest", MethodType.methodType(boolean.class, ByteBuffer.class, ByteBuffer.class))
+			.asType(MethodType.methodType(boolean.class, Object.class, ByteBuffer.class, ByteBuffer.class));
+			DO_REQUEST_STRING = lookup.findVirtual(wrapper, "doRequest", MethodType.methodType(String.class, String.class))
+			.asType(MethodType.methodType(String.class, Object.class, String.class));
+			NEW_SELECTOR_SERVER = lookup.findConstructor(server, MethodType.methodType(void.class, int.class, wrapper,
+			ModbusEventLoop.class, int.class, int.class))
+			.asType(MethodType.methodType(Object.class, int.class, Object.class, ModbusEventLoop.class, int.class, int.class));
+			GET_PORT = lookup.findVirtual(server, "getPort", MethodType.methodType(int.class))
+			.asType(MethodType.methodType(int.class, Object.class));
+			CLOSE = lookup.findVirtual(server, "close", MethodType.methodType(void.class))
+			.asType(MethodType.methodType(void.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Gateway()
+	{
+	}
+
+	/**
+	 * @return new WutWrapper of the service
+	 */
+	static Object newWrapper(ConnectionService service) throws Throwable
+	{
+		return NEW_WRAPPER.invokeExact(service);
+	}
+
+	/**
+	 * WutWrapper.doRequest(ByteBuffer, ByteBuffer)
+	 */
+	static boolean doRequest(Object wut, ByteBuffer req, ByteBuffer res) throws Throwable
+	{
+		return (boolean) DO_REQUEST.invokeExact(wut, req, res);
+	}
+
+	/**
+	 * WutWrapper.doRequest(String)
+	 */
+	static String doRequest(Object wut, String req) throws Throwable
+	{
+		return (String) DO_REQUEST_STRING.invokeExact(wut, req);
+	}
+
+	/**
+	 * @return new WutSelectorServer of the wrapper
+	 */
+	static Object newSelectorServer(int port, Object wut, ModbusEventLoop loop, int threads, int idle_timeout) throws Throwable
+	{
+		return NEW_SELECTOR_SERVER.invokeExact(port, wut, loop, threads, idle_timeout);
+	}
+
+	static int getPort(Object server) throws Throwable
+	{
+		return (int) GET_PORT.invokeExact(server);
+	}
+
+	static void close(Object server) throws Throwable
+	{
+		CLOSE.invokeExact(server);
+	}
+}
@@ -0,0 +1,118 @@
+package wut;
+
+import modbus.ModbusClient;
+import modbus.ModbusEventLoop;
+import modbus.ModbusSimulator;
+import org.openjdk.jmh.annotations.*;
+import services.ModbusConnectionService;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of a WUT request through the whole gateway:
+ * WUT client, WutSelectorServer, ModbusConnectionService, ModbusClient and an in-process modbus server.
+ * <p>
+ * Every benchmark thread has its own WUT connection. SampleTime reports the percentiles
+ * p0.50, p0.99 and p0.999, max_age 0 sends a modbus request for every WUT request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WutEndToEndBenchmark
+{
+	final static byte[] INPUT_REQUEST = "GET /input?\0".getBytes(StandardCharsets.ISO_8859_1);
+	/* an output access has no response, so it's followed by an output request to wait for the write */
+	final static byte[] OUTPUT_ACCESS_REQUEST = "GET /outputaccess3?State=ON\0GET /output?\0".getBytes(StandardCharsets.ISO_8859_1);
+
+	@Param({"0", "10"})
+	long max_age;
+
+	@Param({"false", "true"})
+	boolean pipelined;
+
+	ModbusSimulator server;
+	ModbusEventLoop loop;
+	ModbusClient client;
+	Object wut_server;
+
+	@State(Scope.Thread)
+	public static class WutConnection
+	{
+		Socket socket;
+		InputStream in;
+		OutputStream out;
+		byte[] response = new byte[Gateway.MAX_RESPONSE_LENGTH];
+
+		@Setup
+		public void setUp(WutEndToEndBenchmark gateway) throws Throwable
+		{
+			socket = new Socket("127.0.0.1", Gateway.getPort(gateway.wut_server));
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+
+		@TearDown
+		public void tearDown() throws Exception
+		{
+			socket.close();
+		}
+
+		/* send a request and read the response up to the 0 terminator */
+		int request(byte[] req) throws Exception
+		{
+			out.write(req);
+
+			int length = 0;
+			while (true) {
+				int b = in.read();
+				if (b <= 0)
+					return length;
+				response[length++] = (byte) b;
+			}
+		}
+	}
+
+	@Setup
+	public void setUp() throws Throwable
+	{
+		server = new ModbusSimulator(0);
+		loop = new ModbusEventLoop("bench-event-loop");
+
+		client = new ModbusClient("127.0.0.1", server.getPort(), loop);
+		client.setPipelined(pipelined);
+		client.connect();
+
+		Object wut = Gateway.newWrapper(new ModbusConnectionService(client, 0, 0, max_age));
+		wut_server = Gateway.newSelectorServer(0, wut, loop, 8, 60000);
+	}
+
+	@TearDown
+	public void tearDown() throws Throwable
+	{
+		Gateway.close(wut_server);
+		client.disconnect();
+		loop.close();
+		server.close();
+	}
+
+	@Benchmark
+	public int inputRequest(WutConnection connection) throws Exception
+	{
+		return connection.request(INPUT_REQUEST);
+	}
+
+	@Benchmark
+	public int outputAccessRequest(WutConnection connection) throws Exception
+	{
+		return connection.request(OUTPUT_ACCESS_REQUEST);
+	}
+}
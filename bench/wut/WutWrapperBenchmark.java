@@ -0,0 +1,116 @@
+package wut;
+
+import org.openjdk.jmh.annotations.*;
+import services.ConnectionService;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the request dispatch and response encoding of the WutWrapper.
+ * <p>
+ * Run with the gc profiler (-prof gc), gc.alloc.rate.norm should be 0 B/op
+ * for the ByteBuffer variants.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WutWrapperBenchmark
+{
+	boolean inputs[] = new boolean[16];
+	boolean outputs[] = new boolean[16];
+	int analog_inputs[] = {1234, 65535};
+	Object wut;
+
+	ByteBuffer input_request = request("GET /input?");
+	ByteBuffer output_request = request("GET /output?");
+	ByteBuffer output_access_request = request("GET /outputaccess12?State=ON");
+	ByteBuffer analog_input_request = request("GET /analogin1?");
+	ByteBuffer response = ByteBuffer.allocate(Gateway.MAX_RESPONSE_LENGTH);
+
+	@Setup
+	public void setUp() throws Throwable
+	{
+		for (int i = 0; i < inputs.length; i += 3)
+			inputs[i] = true;
+
+		wut = Gateway.newWrapper(new ConnectionService() {
+			@Override
+			public boolean[] getInputs() throws Exception
+			{
+				return inputs;
+			}
+
+			@Override
+			public boolean[] getOutputs() throws Exception
+			{
+				return outputs;
+			}
+
+			@Override
+			public void setOutput(int port, boolean value) throws Exception
+			{
+				outputs[port] = value;
+			}
+
+			@Override
+			public int[] getAnalogInputs() throws Exception
+			{
+				return analog_inputs;
+			}
+
+			@Override
+			public void close()
+			{
+
+			}
+		});
+	}
+
+	static ByteBuffer request(String req)
+	{
+		return ByteBuffer.wrap(req.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Benchmark
+	public ByteBuffer inputRequest() throws Throwable
+	{
+		response.clear();
+		Gateway.doRequest(wut, input_request, response);
+		return response;
+	}
+
+	@Benchmark
+	public ByteBuffer outputRequest() throws Throwable
+	{
+		response.clear();
+		Gateway.doRequest(wut, output_request, response);
+		return response;
+	}
+
+	@Benchmark
+	public boolean outputAccessRequest() throws Throwable
+	{
+		response.clear();
+		return Gateway.doRequest(wut, output_access_request, response);
+	}
+
+	@Benchmark
+	public ByteBuffer analogInputRequest() throws Throwable
+	{
+		response.clear();
+		Gateway.doRequest(wut, analog_input_request, response);
+		return response;
+	}
+
+	/* the String variant for comparison */
+	@Benchmark
+	public String inputRequestString() throws Throwable
+	{
+		return Gateway.doRequest(wut, "GET /input?");
+	}
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+import metrics.Metrics;
+import services.ConnectionService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the inputs of a service and pushes them to the subscribers, when they change.
+ * <p>
+ * The inputs are only read while there are subscribers, one read serves all of them.
+ * The subscribers are only notified, when the XOR of the new and the previous inputs
+ * isn't zero. A new subscriber gets the current inputs first.
+ * <p>
+ * The notifiers of all wrappers share a few scheduler threads, a read blocks one of them
+ * until its deadline at the latest, so a slow device only delays the others, when it's not the only one.
+ */
+class InputNotifier implements Runnable
+{
+	/**
+	 * Receives the inputs. Called by the scheduler of the notifiers, so it must not block.
+	 */
+	interface Subscriber
+	{
+		/**
+		 * @param inputs the inputs packed into words, must not be modified
+		 */
+		void inputsChanged(long[] inputs);
+	}
+
+	private final static int THREADS = 4;
+
+	private final static ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(THREADS, r -> {
+		Thread thread = new Thread(r, "wut-notifier");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ConnectionService service;
+	private final long timeout;
+	private final ScheduledFuture<?> task;
+
+	/* guarded by this, so the tasks of one notifier run one after another */
+	private final List<Subscriber> subscribers = new ArrayList<>();
+	private final List<Subscriber> fresh = new ArrayList<>();
+	private long[] inputs;
+	private boolean closed;
+
+	/**
+	 * @param service  service to read the inputs from
+	 * @param interval time in milliseconds between two reads
+	 * @param timeout  max. time in nanoseconds of a read
+	 */
+	InputNotifier(ConnectionService service, long interval, long timeout)
+	{
+		this.service = service;
+		this.timeout = timeout;
+
+		task = SCHEDULER.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Can be called from any thread, the caller doesn't wait for the read of the inputs.
+	 */
+	void subscribe(Subscriber subscriber)
+	{
+		SCHEDULER.execute(() -> {
+			synchronized (this) {
+				if (closed)
+					return;
+				subscribers.add(subscriber);
+				fresh.add(subscriber);
+				Metrics.WUT.subscribed();
+
+				// the new subscriber gets the inputs at once
+				poll();
+			}
+		});
+	}
+
+	/**
+	 * Can be called from any thread.
+	 */
+	void unsubscribe(Subscriber subscriber)
+	{
+		SCHEDULER.execute(() -> {
+			synchronized (this) {
+				if (subscribers.remove(subscriber))
+					Metrics.WUT.unsubscribed();
+				fresh.remove(subscriber);
+			}
+		});
+	}
+
+	@Override
+	public synchronized void run()
+	{
+		// without subscribers the server isn't read at all
+		if (closed || subscribers.isEmpty()) {
+			inputs = null;
+			return;
+		}
+
+		poll();
+	}
+
+	private void poll()
+	{
+		long[] words;
+		try {
+			words = service.getInputWords(System.nanoTime() + timeout);
+		} catch (Exception e) {
+			// tried again in the next interval
+			return;
+		}
+
+		if (inputs == null || changed(inputs, words)) {
+			inputs = words;
+			for (Subscriber subscriber : subscribers)
+				push(subscriber, words);
+		} else {
+			for (Subscriber subscriber : fresh)
+				push(subscriber, words);
+		}
+		fresh.clear();
+	}
+
+	private static boolean changed(long[] previous, long[] current)
+	{
+		if (previous.length != current.length)
+			return true;
+
+		long diff = 0;
+		for (int i = 0; i < current.length; i++)
+			diff |= previous[i] ^ current[i];
+		return diff != 0;
+	}
+
+	private void push(Subscriber subscriber, long[] words)
+	{
+		try {
+			subscriber.inputsChanged(words);
+			Metrics.WUT.pushed();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop reading the inputs, the subscribers don't get any more pushes.
+	 */
+	void close()
+	{
+		task.cancel(false);
+		synchronized (this) {
+			closed = true;
+			for (int i = 0; i < subscribers.size(); i++)
+				Metrics.WUT.unsubscribed();
+			subscribers.clear();
+			fresh.clear();
+		}
+	}
+}
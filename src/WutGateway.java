@@ -0,0 +1,184 @@
+import modbus.ByteBufferPool;
+import modbus.ModbusClient;
+import modbus.ModbusEventLoop;
+import modbus.ModbusTransport;
+import services.ConnectionService;
+import services.LimitedConnectionService;
+import services.ModbusConnectionService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves many WUT ports from one process, each routed to its own modbus server.
+ * <p>
+ * All WUT servers and modbus clients share one event loop, one pool of workers
+ * and one pool of buffers, so a device costs a socket and a few objects,
+ * but no threads.
+ * <p>
+ * Every line of the config file describes one device:
+ * <pre>
+ * # wut-port host[:port] {options}
+ * 8001 192.168.0.10 -pipelined -cache=100
+ * 8002 192.168.0.11:5020 -unit=3 -inputs=16 -outputs=32
+ * 8003 192.168.0.11:5020 -unit=4
+ * </pre>
+ * Devices with the same host and port are units behind one gateway, they share its connections.
+ * The options of the connections (-pipelined, -connections, -rtu, -batch, -window) are taken from the
+ * first line of the gateway.
+ * Options of a line:
+ * <ul>
+ * <li>-pipelined, -connections=[n], -batch=[ms], -cache=[ms], -combine=[ms], -analogin=[address:]n,
+ * -analogout=[address:]n, -limit=[n] like on the command line</li>
+ * <li>-unit=[id] unit identifier, when the modbus server is a gateway</li>
+ * <li>-rtu RTU frames over TCP instead of Modbus/TCP, e.g. for a serial device server</li>
+ * <li>-window=[n] max. number of outstanding requests of each unit, so the units take turns</li>
+ * <li>-inputs=[map], -outputs=[map] addresses of the inputs and outputs, either the address of the
+ * first one or blocks like "[port=][!]address[:count],...", see {@link services.ChannelMap}</li>
+ * <li>-gap=[n] max. number of unmapped addresses, which are read to merge two blocks into one request</li>
+ * </ul>
+ */
+public class WutGateway
+{
+	private final ModbusEventLoop loop;
+	private final ExecutorService workers;
+	private final ByteBufferPool buffers = WutSelectorServer.newBufferPool();
+	private final int idle_timeout;
+	private final int timeout;
+	private final int notify_interval;
+
+	private final Map<String, ModbusClient> clients = new HashMap<>();
+	private final List<ConnectionService> services = new ArrayList<>();
+	private final List<WutSelectorServer> servers = new ArrayList<>();
+
+	/**
+	 * @param options server options of the command line (-workers, -idle, -timeout, -notify)
+	 * @throws IOException when the selector can't be opened
+	 */
+	public WutGateway(Map<String, String> options) throws IOException
+	{
+		loop = new ModbusEventLoop("wut-gateway");
+		workers = WutSelectorServer.newWorkers(Integer.parseInt(options.getOrDefault("workers", "8")));
+		idle_timeout = Integer.parseInt(options.getOrDefault("idle",
+		String.valueOf(WutWrapperServer.DEFAULT_IDLE_TIMEOUT)));
+		timeout = Integer.parseInt(options.getOrDefault("timeout", String.valueOf(WutWrapper.DEFAULT_TIMEOUT)));
+		notify_interval = Integer.parseInt(options.getOrDefault("notify", String.valueOf(WutWrapper.DEFAULT_NOTIFY_INTERVAL)));
+	}
+
+	/**
+	 * Start a WUT server for every device of the config file.
+	 * A device, which can't be reached, is skipped.
+	 *
+	 * @param config path of the config file
+	 * @throws IOException when the file can't be read
+	 */
+	public void start(Path config) throws IOException
+	{
+		int line_number = 0;
+		for (String line : Files.readAllLines(config, StandardCharsets.UTF_8)) {
+			line_number++;
+
+			// skip comments and empty lines
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			try {
+				addDevice(line.split("\\s+"));
+			} catch (IOException | RuntimeException e) {
+				System.out.println("gateway: line " + line_number + " skipped: " + e);
+			}
+		}
+	}
+
+	/**
+	 * @param args wut-port, host[:port] and the options of a device
+	 */
+	void addDevice(String[] args) throws IOException
+	{
+		List<String> params = new ArrayList<>();
+		Map<String, String> options = new HashMap<>();
+		WutWrapperServer.parseArguments(args, params, options);
+
+		if (params.size() < 2)
+			throw new IllegalArgumentException("wut-port and host expected");
+
+		int wut_port = Integer.parseInt(params.get(0));
+		String host = params.get(1);
+		int modbus_port = 502;
+		int colon = host.indexOf(':');
+		if (colon >= 0) {
+			modbus_port = Integer.parseInt(host.substring(colon + 1));
+			host = host.substring(0, colon);
+		}
+
+		// the units behind one gateway share its connections
+		String device = host + ":" + modbus_port;
+		ModbusClient shared = clients.get(device);
+		if (shared == null) {
+			shared = new ModbusClient(host, modbus_port, loop);
+			shared.setPipelined(options.containsKey("pipelined"));
+			if (options.containsKey("rtu"))
+				shared.setTransport(ModbusTransport.RTU);
+			shared.setConnections(Integer.parseInt(options.getOrDefault("connections", "1")));
+			shared.setReadBatching(Integer.parseInt(options.getOrDefault("batch", "-1")));
+			if (options.containsKey("window"))
+				shared.setUnitWindow(Integer.parseInt(options.get("window")));
+			shared.connect();
+			clients.put(device, shared);
+		}
+		ModbusClient client = shared.forUnit(Integer.parseInt(options.getOrDefault("unit", "255")));
+
+		ModbusConnectionService modbus_service = new ModbusConnectionService(client,
+		WutWrapperServer.parseChannelMap(options, "inputs"),
+		WutWrapperServer.parseChannelMap(options, "outputs"),
+		Long.parseLong(options.getOrDefault("cache", "0")));
+		modbus_service.setWriteCombining(Long.parseLong(options.getOrDefault("combine", "0")));
+		WutWrapperServer.setAnalogChannels(modbus_service, options);
+		ConnectionService service = modbus_service;
+
+		if (options.containsKey("limit"))
+			service = new LimitedConnectionService(service, Integer.parseInt(options.get("limit")));
+
+		WutWrapper wut = new WutWrapper(service);
+		wut.setTimeout(timeout);
+		wut.setNotifyInterval(notify_interval);
+
+		try {
+			servers.add(new WutSelectorServer(wut_port, wut, loop, workers, buffers, idle_timeout));
+		} catch (IOException e) {
+			service.close();
+			throw e;
+		}
+		services.add(service);
+
+		System.out.println("gateway: wut port " + wut_port + " -> " + device + " unit " + options.getOrDefault("unit", "255"));
+	}
+
+	/**
+	 * Wait until the gateway is closed.
+	 */
+	public void join() throws InterruptedException
+	{
+		loop.join();
+	}
+
+	public void close()
+	{
+		for (WutSelectorServer server : servers)
+			server.close();
+		for (ConnectionService service : services)
+			service.close();
+		for (ModbusClient client : clients.values())
+			client.disconnect();
+		workers.shutdown();
+		loop.close();
+	}
+}
@@ -0,0 +1,507 @@
+import metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for a WUT server.
+ * <p>
+ * Many simulated WUT clients send requests at a fixed total rate, regardless how fast
+ * the server answers. Every connection has a schedule of intended send times and sends
+ * its requests also while earlier ones are outstanding, the server answers them in order.
+ * The latency is measured from the intended time, not from the actual send, so a stalled
+ * server isn't hidden by the waiting clients (coordinated omission). The first intended
+ * time is before the connect, so the latency of the first requests includes the connect.
+ * <p>
+ * An output access has no response, so it's followed by an output request and the
+ * latency is measured until the response of this request.
+ */
+public class WutLoadGenerator
+{
+	/* time in milliseconds before a lost connection is opened again */
+	private final static long RECONNECT_DELAY = 100;
+
+	/* max. time the sending is checked too late, when no event arrives */
+	private final static long MAX_PARK_NANOS = 20000;
+
+	/* initial size of the write buffer and of the queue of outstanding requests of a connection */
+	private final static int WRITE_BUFFER_SIZE = 256;
+	private final static int MIN_OUTSTANDING = 16;
+
+	private final static byte[] INPUT_REQUEST = "GET /input?\0".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] OUTPUT_REQUEST = "GET /output?\0".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final InetSocketAddress address;
+	private final int connections;
+	private final double rate;
+	private final int timeout;
+
+	/* cumulative weights of inputs, outputs and output accesses */
+	private final int[] mix;
+
+	/* output access with a following output request for every output and state */
+	private final byte[][] access_requests;
+
+	/* latencies in microseconds of the current interval, drained by the reporter */
+	private final LatencyHistogram interval_latencies = new LatencyHistogram();
+
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder closed = new LongAdder();
+	private final LongAdder connect_failures = new LongAdder();
+
+	private volatile boolean running = true;
+
+	private class Connection
+	{
+		SocketChannel channel;
+		SelectionKey key;
+		boolean connected;
+
+		/* the bytes, which haven't been written yet, between position and limit */
+		ByteBuffer write_buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).flip();
+
+		/* intended time of the next request */
+		long next_send;
+
+		/* ring of the intended times of the outstanding requests, oldest first */
+		long[] outstanding = new long[MIN_OUTSTANDING];
+		int head;
+		int count;
+
+		Connection(long next_send)
+		{
+			this.next_send = next_send;
+		}
+
+		void append(byte[] request)
+		{
+			write_buffer.compact();
+			if (write_buffer.remaining() < request.length) {
+				ByteBuffer larger = ByteBuffer.allocate(2 * (write_buffer.position() + request.length));
+				write_buffer.flip();
+				larger.put(write_buffer);
+				write_buffer = larger;
+			}
+			write_buffer.put(request);
+			write_buffer.flip();
+		}
+
+		void addOutstanding(long intended)
+		{
+			if (count == outstanding.length) {
+				long[] larger = new long[2 * count];
+				for (int i = 0; i < count; i++)
+					larger[i] = outstanding[(head + i) % count];
+				outstanding = larger;
+				head = 0;
+			}
+			outstanding[(head + count++) % outstanding.length] = intended;
+		}
+
+		long pollOutstanding()
+		{
+			long intended = outstanding[head];
+			head = (head + 1) % outstanding.length;
+			count--;
+			return intended;
+		}
+	}
+
+	/**
+	 * A thread, which serves a part of the connections with its own selector.
+	 */
+	private class Shard extends Thread
+	{
+		private final Selector selector = Selector.open();
+		private final List<Connection> all = new ArrayList<>();
+		private final long interval;
+
+		/* connections, which are connected or waiting for the reconnect, ordered by their next send time */
+		private final PriorityQueue<Connection> waiting = new PriorityQueue<>((a, b) -> Long.compare(a.next_send, b.next_send));
+		private final ByteBuffer read_buffer = ByteBuffer.allocate(256);
+
+		Shard(int index, long interval) throws IOException
+		{
+			super("wut-load-" + index);
+			this.interval = interval;
+		}
+
+		void add(Connection connection)
+		{
+			all.add(connection);
+			waiting.add(connection);
+		}
+
+		@Override
+		public void run()
+		{
+			long last_timeout_check = System.nanoTime();
+
+			while (running) {
+				long now = System.nanoTime();
+
+				Connection next;
+				while ((next = waiting.peek()) != null && next.next_send - now <= 0) {
+					waiting.poll();
+					if (next.connected)
+						send(next, now);
+					else
+						connect(next);
+				}
+
+				if (now - last_timeout_check > 10000000L) {
+					checkTimeouts(now);
+					last_timeout_check = now;
+				}
+
+				try {
+					await(next == null ? 1000000000L : next.next_send - now);
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+
+			for (Connection connection : all)
+				close(connection);
+		}
+
+		/**
+		 * Wait for I/O events until the next send time. Short waits are parked,
+		 * because select() only waits whole milliseconds.
+		 */
+		private void await(long nanos) throws IOException
+		{
+			int events;
+			if (nanos >= 1000000L)
+				events = selector.select(Math.min(nanos / 1000000L, 10));
+			else {
+				events = selector.selectNow();
+				if (events == 0 && nanos > 0) {
+					LockSupport.parkNanos(Math.min(nanos, MAX_PARK_NANOS));
+					events = selector.selectNow();
+				}
+			}
+			if (events == 0)
+				return;
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				Connection connection = (Connection) key.attachment();
+				if (!key.isValid())
+					continue;
+
+				try {
+					if (key.isConnectable())
+						finishConnect(connection);
+					else {
+						if (key.isWritable())
+							write(connection);
+						if (key.isValid() && key.isReadable())
+							read(connection);
+					}
+				} catch (IOException e) {
+					if (connection.connected)
+						closed.increment();
+					else
+						connect_failures.increment();
+					reconnectLater(connection);
+				}
+			}
+		}
+
+		private void connect(Connection connection)
+		{
+			try {
+				connection.channel = SocketChannel.open();
+				connection.channel.configureBlocking(false);
+				connection.channel.socket().setTcpNoDelay(true);
+				connection.channel.connect(address);
+				connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+			} catch (IOException e) {
+				connect_failures.increment();
+				reconnectLater(connection);
+			}
+		}
+
+		private void finishConnect(Connection connection) throws IOException
+		{
+			connection.channel.finishConnect();
+			connection.connected = true;
+			connection.key.interestOps(SelectionKey.OP_READ);
+
+			// the requests, which were intended during the connect, are sent at once,
+			// so the connect time is part of their latency
+			waiting.add(connection);
+		}
+
+		/**
+		 * Send the next request, also when earlier requests are outstanding.
+		 */
+		private void send(Connection connection, long now)
+		{
+			connection.append(nextRequest());
+			connection.addOutstanding(connection.next_send);
+			connection.next_send += interval;
+			waiting.add(connection);
+			sent.increment();
+
+			try {
+				write(connection);
+			} catch (IOException e) {
+				closed.increment();
+				reconnectLater(connection);
+			}
+		}
+
+		private void write(Connection connection) throws IOException
+		{
+			connection.channel.write(connection.write_buffer);
+			connection.key.interestOps(connection.write_buffer.hasRemaining()
+			? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		private void read(Connection connection) throws IOException
+		{
+			read_buffer.clear();
+			int n = connection.channel.read(read_buffer);
+
+			// the server closes the connection on errors
+			if (n < 0)
+				throw new IOException("closed by server");
+
+			// a response ends with the 0 terminator, the responses are in the order of the requests
+			for (int i = 0; i < n; i++) {
+				if (read_buffer.get(i) != 0 || connection.count == 0)
+					continue;
+
+				long now = System.nanoTime();
+				interval_latencies.record((now - connection.pollOutstanding()) / 1000);
+				completed.increment();
+			}
+		}
+
+		private void checkTimeouts(long now)
+		{
+			for (Connection connection : all) {
+				// the oldest request is the first to time out, then all outstanding requests are lost
+				if (connection.count > 0 && (now - connection.outstanding[connection.head]) / 1000000L >= timeout) {
+					timeouts.add(connection.count);
+					reconnectLater(connection);
+				}
+			}
+		}
+
+		private void reconnectLater(Connection connection)
+		{
+			close(connection);
+			waiting.remove(connection);
+
+			connection.next_send = System.nanoTime() + RECONNECT_DELAY * 1000000L;
+			waiting.add(connection);
+		}
+
+		private void close(Connection connection)
+		{
+			connection.connected = false;
+			connection.head = 0;
+			connection.count = 0;
+			connection.write_buffer.clear().flip();
+
+			if (connection.channel != null) {
+				try {
+					connection.channel.close();
+				} catch (IOException ignore) {
+				}
+				connection.channel = null;
+				connection.key = null;
+			}
+		}
+	}
+
+	/**
+	 * @param address     address of the WUT server
+	 * @param connections number of simulated WUT clients
+	 * @param rate        total requests per second
+	 * @param mix         weights of the input requests, output requests and output accesses
+	 * @param outputs     number of outputs, which are accessed
+	 * @param timeout     time in milliseconds until a request is given up
+	 */
+	public WutLoadGenerator(InetSocketAddress address, int connections, double rate, int[] mix, int outputs, int timeout)
+	{
+		this.address = address;
+		this.connections = connections;
+		this.rate = rate;
+		this.timeout = timeout;
+
+		this.mix = new int[3];
+		this.mix[0] = mix[0];
+		this.mix[1] = this.mix[0] + mix[1];
+		this.mix[2] = this.mix[1] + mix[2];
+
+		access_requests = new byte[outputs * 2][];
+		for (int i = 0; i < access_requests.length; i++) {
+			String state = (i & 1) == 0 ? "OFF" : "ON";
+			access_requests[i] = ("GET /outputaccess" + (i / 2) + "?State=" + state + "\0GET /output?\0")
+			.getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private byte[] nextRequest()
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		int r = random.nextInt(mix[2]);
+		if (r < mix[0])
+			return INPUT_REQUEST;
+		if (r < mix[1])
+			return OUTPUT_REQUEST;
+		return access_requests[random.nextInt(access_requests.length)];
+	}
+
+	/**
+	 * Generate the load and print the results.
+	 *
+	 * @param duration time in seconds
+	 * @param threads  number of threads for the connections
+	 */
+	public void run(int duration, int threads) throws IOException, InterruptedException
+	{
+		// every connection sends at the same rate, the first requests are spread over one interval
+		long interval = (long) (connections * 1e9 / rate);
+		long start = System.nanoTime();
+
+		Shard[] shards = new Shard[threads];
+		for (int i = 0; i < threads; i++)
+			shards[i] = new Shard(i, interval);
+		for (int i = 0; i < connections; i++) {
+			shards[i % threads].add(new Connection(start + (long) (i * 1e9 / rate)));
+		}
+		for (Shard shard : shards)
+			shard.start();
+
+		System.out.println("   time  requests/s  completed/s    errors     p50 us     p99 us     max us");
+
+		LatencyHistogram latencies = new LatencyHistogram();
+		long last_sent = 0;
+		long last_completed = 0;
+		long last_errors = 0;
+
+		for (int second = 1; second <= duration; second++) {
+			Thread.sleep(Math.max(0, (start + second * 1000000000L - System.nanoTime()) / 1000000L));
+
+			LatencyHistogram interval_histogram = interval_latencies.drain();
+			latencies.add(interval_histogram);
+
+			long sent_now = sent.sum();
+			long completed_now = completed.sum();
+			long errors_now = errors();
+			System.out.printf("%6ds %11d %12d %9d %10d %10d %10d%n", second,
+			sent_now - last_sent, completed_now - last_completed, errors_now - last_errors,
+			interval_histogram.getValueAtPercentile(50), interval_histogram.getValueAtPercentile(99),
+			interval_histogram.getMax());
+
+			last_sent = sent_now;
+			last_completed = completed_now;
+			last_errors = errors_now;
+		}
+
+		running = false;
+		for (Shard shard : shards)
+			shard.join();
+
+		printResults(latencies, duration);
+	}
+
+	private long errors()
+	{
+		return timeouts.sum() + closed.sum() + connect_failures.sum();
+	}
+
+	private void printResults(LatencyHistogram latencies, int duration)
+	{
+		long requests = sent.sum();
+		System.out.println();
+		System.out.printf("requests: %d sent, %d completed (%.1f/s), target %.1f/s%n",
+		requests, completed.sum(), completed.sum() / (double) duration, rate);
+		System.out.printf("errors: %d (%.3f%%), timeouts %d, closed by server %d, connect failures %d%n",
+		errors(), requests == 0 ? 0 : 100.0 * errors() / requests, timeouts.sum(), closed.sum(), connect_failures.sum());
+		System.out.println("latency in microseconds, measured from the intended send time:");
+		System.out.printf("   mean %10.1f%n", latencies.getMean());
+		double[] percentiles = {50, 90, 99, 99.9, 99.99};
+		String[] labels = {"p50", "p90", "p99", "p99.9", "p99.99"};
+		for (int i = 0; i < percentiles.length; i++)
+			System.out.printf(" %6s %10d%n", labels[i], latencies.getValueAtPercentile(percentiles[i]));
+		System.out.printf("    max %10d%n", latencies.getMax());
+	}
+
+	static void printHelp()
+	{
+		System.out.println("usage: java -cp wutmodbus.jar WutLoadGenerator [host:port] {options}\n" +
+		"   options:\n" +
+		"      -connections=[n]      -   number of simulated WUT clients (default 100)\n" +
+		"      -rate=[n]             -   total requests per second (default 1000)\n" +
+		"      -duration=[s]         -   duration of the test (default 30)\n" +
+		"      -mix=[in:out:access]  -   weights of the request types (default 8:1:1)\n" +
+		"      -outputs=[n]          -   number of outputs, which are accessed (default 16)\n" +
+		"      -timeout=[ms]         -   time until a request is given up (default 5000)\n" +
+		"      -threads=[n]          -   number of threads for the connections (default 1)");
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		List<String> params = new ArrayList<>();
+		Map<String, String> options = new HashMap<>();
+		WutWrapperServer.parseArguments(args, params, options);
+
+		if (params.size() != 1 || !params.get(0).contains(":")) {
+			printHelp();
+			return;
+		}
+
+		try {
+			String host = params.get(0).substring(0, params.get(0).lastIndexOf(':'));
+			int port = Integer.parseInt(params.get(0).substring(params.get(0).lastIndexOf(':') + 1));
+
+			String[] weights = options.getOrDefault("mix", "8:1:1").split(":");
+			if (weights.length != 3)
+				throw new NumberFormatException("mix needs three weights");
+			int[] mix = new int[3];
+			for (int i = 0; i < 3; i++)
+				mix[i] = Integer.parseInt(weights[i]);
+			if (mix[0] + mix[1] + mix[2] <= 0)
+				throw new NumberFormatException("mix needs a positive weight");
+
+			WutLoadGenerator generator = new WutLoadGenerator(new InetSocketAddress(host, port),
+			Integer.parseInt(options.getOrDefault("connections", "100")),
+			Double.parseDouble(options.getOrDefault("rate", "1000")),
+			mix,
+			Integer.parseInt(options.getOrDefault("outputs", "16")),
+			Integer.parseInt(options.getOrDefault("timeout", "5000")));
+
+			generator.run(Integer.parseInt(options.getOrDefault("duration", "30")),
+			Integer.parseInt(options.getOrDefault("threads", "1")));
+		} catch (NumberFormatException e) {
+			printHelp();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+import modbus.ByteBufferPool;
+import modbus.ModbusEventLoop;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event driven variant of the WutWrapperServer.
+ * <p>
+ * All connections are served by one selector thread. The requests are cut out
+ * of bulk reads at the 0 terminator and handed over to a bounded pool of workers,
+ * which call the (possibly blocking) connection service.
+ * <p>
+ * A connection is kept open for further requests until the client closes it
+ * or it was idle for too long.
+ */
+public class WutSelectorServer implements ModbusEventLoop.Handler
+{
+	/* max. number of requests waiting for a worker */
+	private final static int MAX_QUEUED_REQUESTS = 1024;
+
+	private final ModbusEventLoop loop;
+	private final ServerSocketChannel ssocket;
+	private final WutWrapper wut;
+	private final ExecutorService workers;
+	private final boolean own_workers;
+	private final ByteBufferPool buffers;
+	private final int idle_timeout;
+
+	class Connection implements ModbusEventLoop.Handler, InputNotifier.Subscriber
+	{
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer read_buffer;
+		private ByteBuffer request_buffer;
+		private ByteBuffer write_buffer;
+
+		/* true while a request is processed, the next one waits in the read buffer */
+		private boolean busy;
+		private boolean has_response;
+		private long last_activity;
+
+		/* subscribed to changes of the inputs, the latest inputs are pushed when the connection is idle */
+		private boolean subscribed;
+		private boolean push_pending;
+		private volatile long[] pushed_inputs;
+		private final AtomicBoolean push_queued = new AtomicBoolean();
+
+		/* the tasks are created once, so processing a request doesn't create any objects */
+		private final Runnable process_task = this::process;
+		private final Runnable respond_task = this::respond;
+		private final Runnable close_task = this::close;
+		private final Runnable push_task = () -> {
+			push_queued.set(false);
+			push_pending = true;
+			processNext();
+		};
+
+		Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+			read_buffer = buffers.acquire();
+			request_buffer = buffers.acquire();
+			write_buffer = buffers.acquire();
+			last_activity = System.nanoTime();
+			loop.schedule(idle_timeout, this::checkIdle);
+		}
+
+		@Override
+		public void handle(SelectionKey key)
+		{
+			try {
+				if (key.isReadable())
+					read();
+				if (key.isValid() && key.isWritable())
+					write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void read() throws IOException
+		{
+			// -1 when connection is closed
+			if (channel.read(read_buffer) == -1) {
+				close();
+				return;
+			}
+
+			last_activity = System.nanoTime();
+			processNext();
+		}
+
+		/**
+		 * Process the next complete request in the read buffer. The requests
+		 * of a connection are answered one after another in the received order.
+		 */
+		private void processNext()
+		{
+			if (busy || !channel.isOpen())
+				return;
+
+			if (push_pending) {
+				push_pending = false;
+				push();
+				return;
+			}
+
+			// look for the 0 terminator in the received bytes
+			int end = -1;
+			for (int i = 0; i < read_buffer.position(); i++) {
+				if (read_buffer.get(i) == 0) {
+					end = i;
+					break;
+				}
+			}
+
+			if (end < 0) {
+				// the request doesn't fit into the buffer
+				if (!read_buffer.hasRemaining()) {
+					close();
+					return;
+				}
+
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+
+			// move the request to its own buffer, so the worker can access it
+			request_buffer.clear();
+			read_buffer.flip();
+			for (int i = 0; i < end; i++)
+				request_buffer.put(read_buffer.get());
+			request_buffer.flip();
+
+			// skip the 0 terminator and keep the following requests
+			read_buffer.get();
+			read_buffer.compact();
+
+			// the subscription belongs to the connection, so it isn't processed by a worker
+			if (wut.isSubscription(request_buffer)) {
+				if (!subscribed) {
+					subscribed = true;
+					wut.subscribe(this);
+				}
+				processNext();
+				return;
+			}
+
+			// stop reading until the request is answered
+			busy = true;
+			key.interestOps(0);
+
+			try {
+				workers.execute(process_task);
+			} catch (RejectedExecutionException e) {
+				System.out.println("wut: too many requests, connection dropped");
+				close();
+			}
+		}
+
+		/**
+		 * Called by a worker.
+		 */
+		private void process()
+		{
+			try {
+				write_buffer.clear();
+				has_response = wut.doRequest(request_buffer, write_buffer);
+				write_buffer.put((byte) 0);
+				write_buffer.flip();
+			} catch (Exception e) {
+				// unknown or malformed requests are IllegalArgumentExceptions, so they close the connection too
+				e.printStackTrace();
+				loop.execute(close_task);
+				return;
+			}
+
+			loop.execute(respond_task);
+		}
+
+		private void respond()
+		{
+			if (!channel.isOpen())
+				return;
+
+			last_activity = System.nanoTime();
+
+			// not every request has a response
+			if (!has_response) {
+				busy = false;
+				processNext();
+				return;
+			}
+
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void write() throws IOException
+		{
+			channel.write(write_buffer);
+
+			// wait for the socket to become writable again, if not all data was written
+			if (write_buffer.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			// the connection is kept open for the next request
+			busy = false;
+			processNext();
+		}
+
+		/**
+		 * Called by the notifier.
+		 */
+		@Override
+		public void inputsChanged(long[] inputs)
+		{
+			pushed_inputs = inputs;
+
+			// only the latest inputs are pushed, when the connection is still busy
+			if (push_queued.compareAndSet(false, true))
+				loop.execute(push_task);
+		}
+
+		private void push()
+		{
+			write_buffer.clear();
+			wut.putInputs(write_buffer, pushed_inputs);
+			write_buffer.put((byte) 0);
+			write_buffer.flip();
+
+			busy = true;
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void checkIdle()
+		{
+			if (!channel.isOpen())
+				return;
+
+			long idle = (System.nanoTime() - last_activity) / 1000000L;
+			// a subscriber waits for pushes without sending requests
+			if (idle >= idle_timeout && !busy && !subscribed) {
+				close();
+				return;
+			}
+
+			loop.schedule(Math.max(1, idle_timeout - idle), this::checkIdle);
+		}
+
+		private void close()
+		{
+			if (subscribed) {
+				subscribed = false;
+				wut.unsubscribe(this);
+			}
+
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+
+			buffers.release(read_buffer);
+			buffers.release(request_buffer);
+			buffers.release(write_buffer);
+			read_buffer = null;
+			request_buffer = null;
+			write_buffer = null;
+		}
+	}
+
+	/**
+	 * Start a WUT server on the given event loop.
+	 *
+	 * @param port    port of the emulated WUT server
+	 * @param wut     wrapper, which processes the requests
+	 * @param loop    event loop for the I/O
+	 * @param threads number of workers for the requests
+	 * @param idle_timeout time in milliseconds after an idle connection is closed
+	 * @throws IOException when the port can't be opened
+	 */
+	public WutSelectorServer(int port, WutWrapper wut, ModbusEventLoop loop, int threads, int idle_timeout) throws IOException
+	{
+		this(port, wut, loop, newWorkers(threads), newBufferPool(), idle_timeout, true);
+	}
+
+	/**
+	 * Start a WUT server, which shares the event loop, the workers and the buffers with other servers.
+	 *
+	 * @param port    port of the emulated WUT server
+	 * @param wut     wrapper, which processes the requests
+	 * @param loop    event loop for the I/O
+	 * @param workers workers for the requests, see newWorkers()
+	 * @param buffers buffers for the connections, see newBufferPool()
+	 * @param idle_timeout time in milliseconds after an idle connection is closed
+	 * @throws IOException when the port can't be opened
+	 */
+	public WutSelectorServer(int port, WutWrapper wut, ModbusEventLoop loop, ExecutorService workers,
+	ByteBufferPool buffers, int idle_timeout) throws IOException
+	{
+		this(port, wut, loop, workers, buffers, idle_timeout, false);
+	}
+
+	private WutSelectorServer(int port, WutWrapper wut, ModbusEventLoop loop, ExecutorService workers,
+	ByteBufferPool buffers, int idle_timeout, boolean own_workers) throws IOException
+	{
+		this.wut = wut;
+		this.loop = loop;
+		this.workers = workers;
+		this.buffers = buffers;
+		this.idle_timeout = idle_timeout;
+		this.own_workers = own_workers;
+
+		ssocket = ServerSocketChannel.open();
+		ssocket.bind(new InetSocketAddress(port));
+		ssocket.configureBlocking(false);
+		loop.register(ssocket, SelectionKey.OP_ACCEPT, this);
+	}
+
+	/**
+	 * @param threads number of workers
+	 * @return bounded pool of workers for the requests
+	 */
+	public static ExecutorService newWorkers(int threads)
+	{
+		// the queue is bounded, so a connection storm can't exhaust the memory
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+		new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS), r -> {
+			Thread thread = new Thread(r, "wut-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return pool of buffers for the connections
+	 */
+	public static ByteBufferPool newBufferPool()
+	{
+		return new ByteBufferPool(Math.max(WutWrapper.MAX_REQUEST_LENGTH, WutWrapper.MAX_RESPONSE_LENGTH + 1), 256, true);
+	}
+
+	/**
+	 * Accept new connections.
+	 */
+	@Override
+	public void handle(SelectionKey key)
+	{
+		SocketChannel channel;
+		try {
+			while ((channel = ssocket.accept()) != null) {
+				channel.configureBlocking(false);
+				// a response must not wait for the ack of the previous one, when the requests are pipelined
+				channel.socket().setTcpNoDelay(true);
+
+				Connection connection = new Connection(channel);
+				connection.key = channel.register(key.selector(), SelectionKey.OP_READ, connection);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the port the server listens on, useful when it was opened on port 0
+	 */
+	public int getPort() throws IOException
+	{
+		return ((InetSocketAddress) ssocket.getLocalAddress()).getPort();
+	}
+
+	public void close()
+	{
+		try {
+			ssocket.close();
+		} catch (IOException ignore) {
+		}
+
+		if (own_workers)
+			workers.shutdown();
+	}
+}
\ No newline at end of file
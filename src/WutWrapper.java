@@ -1,70 +1,239 @@
+import metrics.Metrics;
+import metrics.WutMetrics;
+import services.ChannelMap;
 import services.ConnectionService;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  *
  */
 public class WutWrapper
 {
+	private final static byte[] REQ_INPUTS = "GET /input?".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] REQ_OUTPUTS = "GET /output?".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] REQ_OUTPUT_ACCESS = "GET /outputaccess".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] REQ_ANALOG_INPUT = "GET /analogin".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] REQ_ANALOG_OUTPUT = "GET /analogout".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] REQ_INPUT_SUBSCRIBE = "GET /inputsubscribe?".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] REQ_ANALOG_OUTPUT_ACCESS = "GET /analogoutaccess".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] STATE_ON = "State=ON".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] STATE_OFF = "State=OFF".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] VALUE = "Value=".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] QUESTION_MARK = "?".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] RES_INPUTS = "input=".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] RES_OUTPUTS = "output=".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] RES_ANALOG_INPUT = "analogin".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] RES_ANALOG_OUTPUT = "analogout".getBytes(StandardCharsets.ISO_8859_1);
+	private final static byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.ISO_8859_1);
+
+	/* max. length of a request including the 0 terminator */
+	final static int MAX_REQUEST_LENGTH = 512;
+
+	/* max. length of a response of doRequest(ByteBuffer, ByteBuffer), 4 bits per hex digit */
+	final static int MAX_RESPONSE_LENGTH = 16 + ChannelMap.MAX_CHANNELS / 4;
+
+	/* default max. time in milliseconds to answer a request */
+	final static int DEFAULT_TIMEOUT = 5000;
+
+	/* default time in milliseconds between two reads of the inputs for the subscribers */
+	final static int DEFAULT_NOTIFY_INTERVAL = 50;
+
 	ConnectionService service;
+	private long timeout = DEFAULT_TIMEOUT * 1000000L;
+	private int notify_interval = DEFAULT_NOTIFY_INTERVAL;
+
+	/* created by the first subscription, guarded by this */
+	private InputNotifier notifier;
 
 	public WutWrapper(ConnectionService service)
 	{
 		this.service = service;
 	}
 
+	/**
+	 * Set the max. time to answer a request. The deadline is handed down to the service,
+	 * which fails the request, when the deadline is over.
+	 *
+	 * @param timeout timeout in milliseconds
+	 */
+	public void setTimeout(int timeout)
+	{
+		this.timeout = timeout * 1000000L;
+	}
+
+	/**
+	 * Set the time between two reads of the inputs, while there are subscribers.
+	 * Must be called before the first subscription.
+	 *
+	 * @param interval time in milliseconds
+	 */
+	public void setNotifyInterval(int interval)
+	{
+		this.notify_interval = interval;
+	}
+
+	/**
+	 * @return true if the request subscribes to changes of the inputs ("GET /inputsubscribe?").
+	 * It's handled by the server, because the subscription belongs to the connection.
+	 */
+	public boolean isSubscription(ByteBuffer req)
+	{
+		return startsWith(req, REQ_INPUT_SUBSCRIBE);
+	}
+
+	/**
+	 * Push the inputs to {@code subscriber} at once and whenever they change.
+	 */
+	public synchronized void subscribe(InputNotifier.Subscriber subscriber)
+	{
+		if (notifier == null)
+			notifier = new InputNotifier(service, notify_interval, timeout);
+		notifier.subscribe(subscriber);
+	}
+
+	public synchronized void unsubscribe(InputNotifier.Subscriber subscriber)
+	{
+		if (notifier != null)
+			notifier.unsubscribe(subscriber);
+	}
+
 	public String doRequest(String req) throws Exception
 	{
-		String response = null;
+		ByteBuffer res = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
 
-		// parse request
-		if (req.startsWith("GET /input?"))
-			response = getInputs();
-		else if (req.startsWith("GET /output?"))
-			response = getOutputs();
-		else if (req.startsWith("GET /outputaccess"))
-			writeOutput(req);
-		else
-			throw new NoSuchMethodError(req);
+		if (!doRequest(ByteBuffer.wrap(req.getBytes(StandardCharsets.ISO_8859_1)), res))
+			return null;
 
-		return response != null ? response : null;
+		return new String(res.array(), 0, res.position(), StandardCharsets.ISO_8859_1);
 	}
 
-	String getInputs() throws Exception
+	/**
+	 * Process a request without creating any objects.
+	 * <p>
+	 * The request is read between position and limit of {@code req} (without the 0 terminator),
+	 * the response is appended to {@code res} (also without the 0 terminator).
+	 *
+	 * @param req request bytes, the buffer isn't modified
+	 * @param res buffer for the response with at least MAX_RESPONSE_LENGTH bytes remaining
+	 * @return true if a response was written
+	 * @throws IllegalArgumentException when the request is unknown or malformed
+	 * @throws Exception when the service failed
+	 */
+	public boolean doRequest(ByteBuffer req, ByteBuffer res) throws Exception
 	{
-		boolean[] values = service.getInputs();
-		String binaryInputString = "";
+		long start = System.nanoTime();
+		long deadline = start + timeout;
+		int type = requestType(req);
+		boolean success = false;
 
-		// convert boolean array to a 4 character hex-string
-		for (boolean value : values) binaryInputString = (value ? "1" : "0") + binaryInputString;
+		try {
+			switch (type) {
+				case WutMetrics.INPUTS:
+					getInputs(res, deadline);
+					break;
+				case WutMetrics.OUTPUTS:
+					getOutputs(res, deadline);
+					break;
+				case WutMetrics.OUTPUT_ACCESS:
+					writeOutput(req, deadline);
+					success = true;
+					return false;
+				case WutMetrics.ANALOG_INPUT:
+					getAnalogInput(req, res, deadline);
+					break;
+				case WutMetrics.ANALOG_OUTPUT_ACCESS:
+					writeAnalogOutput(req, deadline);
+					success = true;
+					return false;
+				case WutMetrics.ANALOG_OUTPUT:
+					getAnalogOutput(req, res, deadline);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown request: " + StandardCharsets.ISO_8859_1.decode(req.duplicate()).toString());
+			}
 
-		int inputInteger = Integer.parseInt(binaryInputString, 2);
+			success = true;
+			return true;
+		} finally {
+			Metrics.WUT.request(type, System.nanoTime() - start, success);
+		}
+	}
 
-		return "input=" + String.format("%04X", inputInteger);
+	private static int requestType(ByteBuffer req)
+	{
+		if (startsWith(req, REQ_INPUTS))
+			return WutMetrics.INPUTS;
+		if (startsWith(req, REQ_OUTPUTS))
+			return WutMetrics.OUTPUTS;
+		if (startsWith(req, REQ_OUTPUT_ACCESS))
+			return WutMetrics.OUTPUT_ACCESS;
+		if (startsWith(req, REQ_ANALOG_INPUT))
+			return WutMetrics.ANALOG_INPUT;
+		// the longer prefix must be checked first
+		if (startsWith(req, REQ_ANALOG_OUTPUT_ACCESS))
+			return WutMetrics.ANALOG_OUTPUT_ACCESS;
+		if (startsWith(req, REQ_ANALOG_OUTPUT))
+			return WutMetrics.ANALOG_OUTPUT;
+		return WutMetrics.UNKNOWN;
 	}
 
-	String getOutputs() throws Exception
+	void getInputs(ByteBuffer res, long deadline) throws Exception
 	{
-		boolean[] values = service.getOutputs();
-		String binaryOutputString = "";
+		int count = service.getInputCount();
 
-		// convert boolean array to a 4 character hex-string
-		for (boolean value : values) binaryOutputString = (value ? "1" : "0") + binaryOutputString;
+		// up to 64 inputs are read as bit mask without creating objects
+		res.put(RES_INPUTS);
+		if (count <= 64)
+			putHex(res, service.getInputMask(deadline), digits(count));
+		else
+			putHex(res, service.getInputWords(deadline), digits(count));
+	}
+
+	/**
+	 * Append the response of an input request, which is also pushed to the subscribers.
+	 */
+	void putInputs(ByteBuffer res, long[] inputs)
+	{
+		res.put(RES_INPUTS);
+		putHex(res, inputs, digits(service.getInputCount()));
+	}
 
-		int outputInteger = Integer.parseInt(binaryOutputString, 2);
+	void getOutputs(ByteBuffer res, long deadline) throws Exception
+	{
+		int count = service.getOutputCount();
 
-		return "output=" + String.format("%04X", outputInteger);
+		res.put(RES_OUTPUTS);
+		if (count <= 64)
+			putHex(res, service.getOutputMask(deadline), digits(count));
+		else
+			putHex(res, service.getOutputWords(deadline), digits(count));
 	}
 
-	void writeOutput(String req) throws Exception
+	void writeOutput(ByteBuffer req, long deadline) throws Exception
 	{
 		// parse port
-		int port = Integer.parseInt(req.substring("GET /outputaccess".length(), req.indexOf("?")));
+		int port = 0;
+		int pos = req.position() + REQ_OUTPUT_ACCESS.length;
+		int digits = 0;
+		for (; pos < req.limit() && req.get(pos) != '?'; pos++, digits++) {
+			int digit = req.get(pos) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("invalid output port");
+			port = port * 10 + digit;
+			// stop before the port can overflow and wrap to a valid port
+			if (port >= ChannelMap.MAX_CHANNELS)
+				throw new NumberFormatException("invalid output port");
+		}
+		if (digits == 0 || pos == req.limit())
+			throw new NumberFormatException("invalid output port");
 
 		// parse value
 		boolean value;
-		if (req.contains("State=ON"))
+		if (indexOf(req, STATE_ON, pos) >= 0)
 			value = true;
-		else if (req.contains("State=OFF"))
+		else if (indexOf(req, STATE_OFF, pos) >= 0)
 			value = false;
 		else {
 			System.out.println("writeOutput: wrong State");
@@ -72,11 +241,163 @@ public class WutWrapper
 		}
 
 		// write to the connection-service
-		service.setOutput(port, value);
+		service.setOutput(port, value, deadline);
+	}
+
+	/**
+	 * GET /analoginN? is answered with analoginN=[decimal value]
+	 */
+	void getAnalogInput(ByteBuffer req, ByteBuffer res, long deadline) throws Exception
+	{
+		int channel = parseChannel(req, REQ_ANALOG_INPUT.length);
+
+		res.put(RES_ANALOG_INPUT);
+		putDecimal(res, channel);
+		res.put((byte) '=');
+		putDecimal(res, service.getAnalogInput(channel, deadline));
+	}
+
+	/**
+	 * GET /analogoutN? is answered with analogoutN=[decimal value]
+	 */
+	void getAnalogOutput(ByteBuffer req, ByteBuffer res, long deadline) throws Exception
+	{
+		int channel = parseChannel(req, REQ_ANALOG_OUTPUT.length);
+
+		res.put(RES_ANALOG_OUTPUT);
+		putDecimal(res, channel);
+		res.put((byte) '=');
+		putDecimal(res, service.getAnalogOutput(channel, deadline));
+	}
+
+	/**
+	 * GET /analogoutaccessN?Value=[decimal value] sets an analog output, there is no response
+	 */
+	void writeAnalogOutput(ByteBuffer req, long deadline) throws Exception
+	{
+		int channel = parseChannel(req, REQ_ANALOG_OUTPUT_ACCESS.length);
+
+		int pos = indexOf(req, VALUE, req.position() + REQ_ANALOG_OUTPUT_ACCESS.length);
+		if (pos < 0)
+			throw new NumberFormatException("invalid analog value");
+
+		// the value ends at the end of the request or at the next parameter
+		pos += VALUE.length;
+		int end = pos;
+		while (end < req.limit() && req.get(end) >= '0' && req.get(end) <= '9')
+			end++;
+
+		int value = parseNumber(req, pos, end, 0xffff, "invalid analog value");
+
+		service.setAnalogOutput(channel, value, deadline);
+	}
+
+	/**
+	 * Parse the channel between the prefix of the request and the '?'.
+	 */
+	private static int parseChannel(ByteBuffer req, int prefix_length)
+	{
+		int pos = req.position() + prefix_length;
+		int end = indexOf(req, QUESTION_MARK, pos);
+		if (end < 0)
+			throw new NumberFormatException("invalid analog channel");
+
+		return parseNumber(req, pos, end, ChannelMap.MAX_CHANNELS - 1, "invalid analog channel");
+	}
+
+	/**
+	 * Parse the decimal digits between {@code from} and {@code to}.
+	 * Numbers above {@code max} are rejected as soon as they exceed it, so any number of digits can't overflow.
+	 */
+	private static int parseNumber(ByteBuffer buff, int from, int to, int max, String error)
+	{
+		if (from >= to)
+			throw new NumberFormatException(error);
+
+		int number = 0;
+		for (int i = from; i < to; i++) {
+			int digit = buff.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException(error);
+			number = number * 10 + digit;
+			if (number > max)
+				throw new NumberFormatException(error);
+		}
+		return number;
+	}
+
+	/**
+	 * Write a non-negative value as decimal string.
+	 */
+	static void putDecimal(ByteBuffer res, int value)
+	{
+		int divisor = 1;
+		while (value / divisor >= 10)
+			divisor *= 10;
+
+		for (; divisor > 0; divisor /= 10)
+			res.put((byte) ('0' + value / divisor % 10));
+	}
+
+	/**
+	 * @return number of hex digits for {@code count} inputs or outputs, at least 4 like the WUT devices
+	 */
+	static int digits(int count)
+	{
+		return Math.max(4, (count + 3) / 4);
+	}
+
+	/**
+	 * Write the value as upper case hex-string with the given number of digits.
+	 */
+	static void putHex(ByteBuffer res, long value, int digits)
+	{
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+			res.put(HEX_DIGITS[shift < 64 ? (int) (value >>> shift) & 0xf : 0]);
+	}
+
+	/**
+	 * Write the words as upper case hex-string with the given number of digits,
+	 * the last digit is the lowest nibble of the first word.
+	 */
+	static void putHex(ByteBuffer res, long[] words, int digits)
+	{
+		for (int i = digits - 1; i >= 0; i--) {
+			int word = i >> 4;
+			res.put(HEX_DIGITS[word < words.length ? (int) (words[word] >>> ((i & 15) * 4)) & 0xf : 0]);
+		}
+	}
+
+	private static boolean startsWith(ByteBuffer buff, byte[] prefix)
+	{
+		if (buff.remaining() < prefix.length)
+			return false;
+
+		for (int i = 0; i < prefix.length; i++)
+			if (buff.get(buff.position() + i) != prefix[i])
+				return false;
+		return true;
+	}
+
+	private static int indexOf(ByteBuffer buff, byte[] pattern, int from)
+	{
+		for (int i = from; i <= buff.limit() - pattern.length; i++) {
+			int j = 0;
+			while (j < pattern.length && buff.get(i + j) == pattern[j])
+				j++;
+			if (j == pattern.length)
+				return i;
+		}
+		return -1;
 	}
 
 	public void shutdown()
 	{
+		synchronized (this) {
+			if (notifier != null)
+				notifier.close();
+			notifier = null;
+		}
 		service.close();
 	}
-}
\ No newline at end of file
+}
@@ -1,32 +1,77 @@
+import metrics.Metrics;
+import metrics.MetricsServer;
+import modbus.ModbusClient;
+import modbus.ModbusEventLoop;
+import modbus.ModbusTransport;
+import services.ChannelMap;
 import services.ConnectionService;
+import services.LimitedConnectionService;
 import services.ModbusConnectionService;
 import services.VirtualConnectionService;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class WutWrapperServer
 {
 	static boolean virtual_mode;
 
+	/* time in milliseconds after an idle connection is closed */
+	final static int DEFAULT_IDLE_TIMEOUT = 60000;
+
 	private ServerSocket ssocket;
 	private WutWrapper wut;
 
-	class ClientHandler extends Thread
+	/* runs the ClientHandlers and their pushers or null to start a new thread for each */
+	private Executor executor;
+
+	class ClientHandler implements Runnable, InputNotifier.Subscriber
 	{
+		private Socket socket;
 		private InputStream is;
 		private OutputStream os;
+		private boolean subscribed;
+
+		/* reused for all requests of the connection */
+		private final ByteBuffer request = ByteBuffer.allocate(WutWrapper.MAX_REQUEST_LENGTH);
+		private final ByteBuffer response = ByteBuffer.allocate(WutWrapper.MAX_RESPONSE_LENGTH + 1);
 
-		public ClientHandler(Socket socket) throws IOException
+		/* the latest inputs from the notifier, written by the pusher */
+		private final AtomicReference<long[]> pushed_inputs = new AtomicReference<>();
+		private final ByteBuffer push = ByteBuffer.allocate(WutWrapper.MAX_RESPONSE_LENGTH + 1);
+		private volatile Thread pusher;
+		private volatile boolean closed;
+
+		/* a push must not be written into a response */
+		private final Object write_lock = new Object();
+
+		public ClientHandler(Socket socket, int idle_timeout) throws IOException
 		{
-			is = socket.getInputStream();
-			os = socket.getOutputStream();
+			this.socket = socket;
 
-			// start client thread
-			start();
+			// close the connection, when the client doesn't send a request for a while
+			socket.setSoTimeout(idle_timeout);
+			// a response must not wait for the ack of the previous one, when the requests are pipelined
+			socket.setTcpNoDelay(true);
+
+			is = new BufferedInputStream(socket.getInputStream());
+			os = socket.getOutputStream();
 		}
 
 		@Override
@@ -34,42 +79,149 @@ public class WutWrapperServer
 		{
 			try {
 				while (true) {
-					StringBuilder sb = new StringBuilder();
-					int ch;
-
-					// read characters until 0 terminator
-					while ((ch = is.read()) != 0 && ch != -1)
-						sb.append((char) ch);
+					int ch = is.read();
 
 					// -1 when connection is closed
 					if (ch == -1)
 						break;
 
-					String request = sb.toString();
+					// read characters until 0 terminator
+					if (ch != 0) {
+						if (!request.hasRemaining())
+							throw new IOException("wut: request too long");
+						request.put((byte) ch);
+						continue;
+					}
+
+					request.flip();
+					response.clear();
+
+					// a subscriber waits for pushes without sending requests
+					if (wut.isSubscription(request)) {
+						if (!subscribed) {
+							subscribed = true;
+							socket.setSoTimeout(0);
+							start(this::pushInputs);
+							wut.subscribe(this);
+						}
+						request.clear();
+						continue;
+					}
 
 					// process the request
-					String response = wut.doRequest(request);
+					boolean has_response = wut.doRequest(request, response);
+					request.clear();
 
-					// write response
-					if (response != null)
-						os.write((response + "\u0000").getBytes());
-					break;
+					// write response and wait for the next request
+					if (has_response) {
+						response.put((byte) 0);
+						synchronized (write_lock) {
+							os.write(response.array(), 0, response.position());
+						}
+					}
 				}
+			} catch (SocketTimeoutException e) {
+				// connection was idle for too long
 			} catch (Exception e) {
 				e.printStackTrace();
+			} finally {
+				if (subscribed)
+					wut.unsubscribe(this);
+				closed = true;
+				LockSupport.unpark(pusher);
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		/**
+		 * Called by the notifier, the inputs are handed to the pusher of the connection,
+		 * so a slow client doesn't delay the pushes to the others.
+		 */
+		@Override
+		public void inputsChanged(long[] inputs)
+		{
+			pushed_inputs.set(inputs);
+			LockSupport.unpark(pusher);
+		}
+
+		/**
+		 * Write the latest inputs, whenever the notifier hands new ones, until the connection is closed.
+		 */
+		private void pushInputs()
+		{
+			pusher = Thread.currentThread();
+			try {
+				while (!closed && !Thread.currentThread().isInterrupted()) {
+					// inputs, which arrive before the pusher is known, are taken here without waiting
+					long[] inputs = pushed_inputs.getAndSet(null);
+					if (inputs == null) {
+						LockSupport.park(this);
+						continue;
+					}
+
+					push.clear();
+					wut.putInputs(push, inputs);
+					push.put((byte) 0);
+					synchronized (write_lock) {
+						os.write(push.array(), 0, push.position());
+					}
+				}
+			} catch (IOException e) {
+				// the connection is broken, the thread of the connection notices it by its next read
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
 			}
 		}
 	}
 
+	private void start(Runnable task)
+	{
+		if (executor != null)
+			executor.execute(task);
+		else
+			new Thread(task).start();
+	}
+
 	public WutWrapperServer(int port, ConnectionService service) throws IOException
+	{
+		this(port, new WutWrapper(service), null, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param port         port of the emulated wut-server
+	 * @param wut          wrapper, which processes the requests
+	 * @param executor     runs the ClientHandlers and the pushers of subscribed connections or null to start
+	 *                     a new thread for each
+	 * @param idle_timeout time in milliseconds after an idle connection is closed
+	 */
+	public WutWrapperServer(int port, WutWrapper wut, Executor executor, int idle_timeout) throws IOException
 	{
 		ssocket = new ServerSocket(port);
 
-		wut = new WutWrapper(service);
+		this.wut = wut;
+		this.executor = executor;
 
 		// for each new connection create a new ClientHandler
-		while(true) {
-			new ClientHandler(ssocket.accept());
+		while(true)
+			start(new ClientHandler(ssocket.accept(), idle_timeout));
+	}
+
+	/**
+	 * Virtual threads are available since java 21, so the executor is looked up at runtime.
+	 *
+	 * @return executor, which starts a new virtual thread for each task
+	 */
+	static ExecutorService newVirtualThreadExecutor()
+	{
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("virtual threads need java 21 or newer", e);
 		}
 	}
 
@@ -77,43 +229,203 @@ public class WutWrapperServer
 	{
 		System.out.println("- - WUT-MODBUS-ADAPTER-SERVER - -\n" +
 		"this server converts WUT requests to MODBUS requests\n\n" +
-		"usage: ./wmas [wut-port] [service] {service-options}\n" +
+		"usage: ./wmas [wut-port] [service] {service-options} {server-options}\n" +
+		"       ./wmas -config=[file] {server-options}\n" +
 		"  wut-port           -   port of emulated wut-server\n" +
 		"  service            -   type of the wrapped protocol\n" +
 		"      modbus [host]  -   use the modbus protocol\n" +
-		"      virtual        -   use a virtual interactive service\n");
+		"        -pipelined   -   send requests without waiting for previous responses\n" +
+		"        -connections=[n] - number of connections to the modbus server (default 1)\n" +
+		"        -rtu         -   send RTU frames over TCP, e.g. to a serial device server\n" +
+		"        -batch=[ms]  -   merge adjacent reads issued within this time into one request\n" +
+		"        -cache=[ms]  -   serve inputs and outputs from a cache with max. age\n" +
+		"        -combine=[ms] -  write outputs set within this time with as few requests as possible\n" +
+		"        -scan=[ms]   -   read inputs and outputs in a fixed cycle and serve them from memory\n" +
+		"        -analogin=[address:]n  - n analog inputs mapped to input registers\n" +
+		"        -analogout=[address:]n - n analog outputs mapped to holding registers\n" +
+		"        -inputs=[map]  - inputs mapped to discrete inputs, blocks [port=][!]address[:n],...\n" +
+		"        -outputs=[map] - outputs mapped to coils, like -inputs (default 0:16)\n" +
+		"        -gap=[n]     -   read up to n unmapped addresses to merge blocks into one request\n" +
+		"      virtual        -   use a virtual interactive service\n" +
+		"        -pattern=[hex,hex,...] - replay these inputs in a loop instead of the console\n" +
+		"        -script=[file] -  replay the inputs of the file, one hex value per line\n" +
+		"        -random=[hex] -   toggle a random one of these inputs in each step\n" +
+		"        -rate=[Hz]   -   steps per second of the pattern or random inputs (default 1)\n" +
+		"        -seed=[n]    -   seed of the random inputs\n" +
+		"        -ports=[n]   -   number of inputs and outputs, at most 64 (default 16)\n" +
+		"  server-options\n" +
+		"      -server=thread -   one thread per connection (default)\n" +
+		"      -server=nio    -   one selector thread for all connections\n" +
+		"      -server=virtual - one virtual thread per connection (java 21)\n" +
+		"      -workers=[n]   -   number of threads for the requests in nio mode (default 8)\n" +
+		"      -limit=[n]     -   max. number of concurrent service calls\n" +
+		"      -idle=[ms]     -   close connections without requests after this time (default 60000)\n" +
+		"      -timeout=[ms]  -   max. time to answer a request (default 5000)\n" +
+		"      -notify=[ms]   -   read the inputs for subscribers in this interval (default 50)\n" +
+		"      -metrics=[port] -  serve the metrics as text on http://host:port/metrics\n" +
+		"  -config=[file]     -   gateway for all devices in the file, one per line:\n" +
+		"                         [wut-port] [host[:port]] {-pipelined -connections -rtu -batch -cache -combine\n" +
+		"                          -analogin -analogout -limit -unit -window -inputs -outputs -gap}\n");
 
 	}
 
+	/**
+	 * Split arguments in parameters and options like -name or -name=value.
+	 */
+	static void parseArguments(String[] args, List<String> params, Map<String, String> options)
+	{
+		for (String arg : args) {
+			if (!arg.startsWith("-")) {
+				params.add(arg);
+				continue;
+			}
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				options.put(arg.substring(1), "");
+			else
+				options.put(arg.substring(1, eq), arg.substring(eq + 1));
+		}
+	}
+
+	/**
+	 * Create the virtual service, which is interactive unless its inputs are generated
+	 * by the options -pattern, -script or -random.
+	 */
+	static VirtualConnectionService createVirtualService(Map<String, String> options) throws IOException
+	{
+		double rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+		int ports = Integer.parseInt(options.getOrDefault("ports", "16"));
+
+		if (options.containsKey("pattern") || options.containsKey("script")) {
+			long[] patterns = options.containsKey("script") ?
+				VirtualConnectionService.readPatterns(Paths.get(options.get("script"))) :
+				VirtualConnectionService.parsePatterns(options.get("pattern").split(","));
+
+			VirtualConnectionService service = new VirtualConnectionService(false, ports);
+			service.startPattern(patterns, rate);
+			return service;
+		}
+		if (options.containsKey("random")) {
+			VirtualConnectionService service = new VirtualConnectionService(false, ports);
+			service.startRandom(Long.parseLong(options.get("random"), 16), rate,
+				Long.parseLong(options.getOrDefault("seed", String.valueOf(System.nanoTime()))));
+			return service;
+		}
+		return new VirtualConnectionService(true, ports);
+	}
+
+	/**
+	 * Parse the channel map of the option -inputs or -outputs, by default 16 channels at address 0.
+	 * The option -gap=[n] allows to read n unmapped addresses to merge two blocks into one request.
+	 */
+	static ChannelMap parseChannelMap(Map<String, String> options, String name)
+	{
+		return ChannelMap.parse(options.getOrDefault(name, "0"), Integer.parseInt(options.getOrDefault("gap", "0")));
+	}
+
+	/**
+	 * Map the analog channels given by the options -analogin=[address:]n and -analogout=[address:]n.
+	 */
+	static void setAnalogChannels(ModbusConnectionService service, Map<String, String> options)
+	{
+		if (options.containsKey("analogin")) {
+			int[] range = parseRange(options.get("analogin"));
+			service.setAnalogInputs(range[0], range[1]);
+		}
+		if (options.containsKey("analogout")) {
+			int[] range = parseRange(options.get("analogout"));
+			service.setAnalogOutputs(range[0], range[1]);
+		}
+	}
+
+	/**
+	 * @return address and count of [address:]count
+	 */
+	private static int[] parseRange(String range)
+	{
+		int colon = range.indexOf(':');
+		if (colon < 0)
+			return new int[]{0, Integer.parseInt(range)};
+		return new int[]{Integer.parseInt(range.substring(0, colon)), Integer.parseInt(range.substring(colon + 1))};
+	}
+
 	public static void main(String[] args)
 	{
 		int port;
 		String service_string;
 		ConnectionService service;
+		List<String> params = new ArrayList<>();
+		Map<String, String> options = new HashMap<>();
+
+		parseArguments(args, params, options);
 
-		if (args.length < 2) {
+		// the metrics are always available by JMX, the text endpoint is optional
+		Metrics.registerMBean();
+		if (options.containsKey("metrics")) {
+			try {
+				new MetricsServer(Integer.parseInt(options.get("metrics")));
+			} catch (IOException e) {
+				System.out.println("metrics: can't open port " + options.get("metrics") + ": " + e.getMessage());
+			}
+		}
+
+		// serve many modbus servers from one process
+		if (options.containsKey("config")) {
+			try {
+				WutGateway gateway = new WutGateway(options);
+				gateway.start(Paths.get(options.get("config")));
+				gateway.join();
+			} catch (IOException | InterruptedException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		if (params.size() < 2) {
 			printHelp();
 			return;
 		}
 
 		// parse settings
-		port = Integer.parseInt(args[0]);
-		service_string = args[1];
+		port = Integer.parseInt(params.get(0));
+		service_string = params.get(1);
 
 		switch (service_string) {
 			case "virtual":
 				virtual_mode = true;
-				service = new VirtualConnectionService();
+				try {
+					service = createVirtualService(options);
+				} catch (Exception e) {
+					e.printStackTrace();
+					return;
+				}
 				break;
 			case "modbus":
-				if (args.length < 3) {
+				if (params.size() < 3) {
 					System.out.println("please specify the address of the modbus server");
 					System.out.println("example: java -jar server.jar 80 modbus 192.168.0.34");
 					return;
 				}
 				try {
-					service = new ModbusConnectionService(args[2]);
-				} catch (IOException e) {
+					ModbusClient client = new ModbusClient(params.get(2));
+					client.setPipelined(options.containsKey("pipelined"));
+					if (options.containsKey("rtu"))
+						client.setTransport(ModbusTransport.RTU);
+					client.setConnections(Integer.parseInt(options.getOrDefault("connections", "1")));
+					client.setReadBatching(Integer.parseInt(options.getOrDefault("batch", "-1")));
+					client.connect();
+
+					long max_age = Long.parseLong(options.getOrDefault("cache", "0"));
+					ModbusConnectionService modbus_service = new ModbusConnectionService(client,
+					parseChannelMap(options, "inputs"), parseChannelMap(options, "outputs"), max_age);
+					service = modbus_service;
+
+					modbus_service.setWriteCombining(Long.parseLong(options.getOrDefault("combine", "0")));
+					setAnalogChannels(modbus_service, options);
+
+					if (options.containsKey("scan"))
+						modbus_service.startScan(Long.parseLong(options.get("scan")));
+				} catch (Exception e) {
 					e.printStackTrace();
 					return;
 				}
@@ -123,10 +435,35 @@ public class WutWrapperServer
 				return;
 		}
 
+		// protect the service from too many concurrent calls
+		if (options.containsKey("limit"))
+			service = new LimitedConnectionService(service, Integer.parseInt(options.get("limit")));
+
+		int idle_timeout = Integer.parseInt(options.getOrDefault("idle", String.valueOf(DEFAULT_IDLE_TIMEOUT)));
+
+		WutWrapper wut = new WutWrapper(service);
+		wut.setTimeout(Integer.parseInt(options.getOrDefault("timeout", String.valueOf(WutWrapper.DEFAULT_TIMEOUT))));
+		wut.setNotifyInterval(Integer.parseInt(options.getOrDefault("notify", String.valueOf(WutWrapper.DEFAULT_NOTIFY_INTERVAL))));
+
 		try {
 			// create and start server
-			new WutWrapperServer(port, service);
-		} catch (IOException e) {
+			switch (options.getOrDefault("server", "thread")) {
+				case "nio":
+					ModbusEventLoop loop = new ModbusEventLoop("wut-event-loop");
+					int workers = Integer.parseInt(options.getOrDefault("workers", "8"));
+					new WutSelectorServer(port, wut, loop, workers, idle_timeout);
+					loop.join();
+					break;
+				case "thread":
+					new WutWrapperServer(port, wut, null, idle_timeout);
+					break;
+				case "virtual":
+					new WutWrapperServer(port, wut, newVirtualThreadExecutor(), idle_timeout);
+					break;
+				default:
+					System.out.println("server not found! only available: thread, nio, virtual");
+			}
+		} catch (IOException | InterruptedException | UnsupportedOperationException e) {
 			e.printStackTrace();
 		}
 		finally {
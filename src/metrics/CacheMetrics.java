@@ -0,0 +1,55 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the process image caches.
+ */
+public class CacheMetrics implements Metrics.Source
+{
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	CacheMetrics()
+	{
+	}
+
+	/**
+	 * The image was served from the cache.
+	 */
+	public void hit()
+	{
+		hits.increment();
+	}
+
+	/**
+	 * The image was read from the modbus server.
+	 */
+	public void miss()
+	{
+		misses.increment();
+	}
+
+	/**
+	 * The caller joined a read, which was already in flight.
+	 */
+	public void coalesced()
+	{
+		coalesced.increment();
+	}
+
+	@Override
+	public void collect(Metrics.Collector collector)
+	{
+		long hits = this.hits.sum();
+		long misses = this.misses.sum();
+		long coalesced = this.coalesced.sum();
+		long total = hits + misses + coalesced;
+
+		collector.value("cache_hits_total", "", hits);
+		collector.value("cache_misses_total", "", misses);
+		collector.value("cache_coalesced_total", "", coalesced);
+		collector.value("cache_hit_ratio", "", total == 0 ? 0 : (double) (hits + coalesced) / total);
+	}
+}
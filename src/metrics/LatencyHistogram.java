@@ -0,0 +1,145 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies with a relative error below 1%, like the HdrHistogram.
+ * <p>
+ * Values below 128 have their own bucket, above each power of two is divided into 64 buckets.
+ * Recording is a single atomic increment, so many threads can record at the same time.
+ * The unit of the values is chosen by the caller, e.g. microseconds.
+ */
+public class LatencyHistogram
+{
+	private final static int SUB_BUCKETS = 128;
+	private final static int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private final static int BUCKETS = SUB_BUCKETS + 57 * HALF_SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value the latency, negative values are recorded as 0
+	 */
+	public void record(long value)
+	{
+		value = Math.max(0, value);
+
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+	}
+
+	private static int index(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		// value >> shift is between 64 and 127
+		int shift = 57 - Long.numberOfLeadingZeros(value);
+		return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >> shift) - HALF_SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the highest value, which is recorded in the bucket
+	 */
+	private static long highestValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		long sub = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return (sub << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount()
+	{
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	/**
+	 * @return sum of the recorded values
+	 */
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long count = getCount();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the value, which isn't exceeded by {@code percentile} percent of the recorded values
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long count = getCount();
+		if (count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Add the values of another histogram.
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0)
+				counts.addAndGet(i, count);
+		}
+		sum.add(other.sum.sum());
+
+		long value = other.max.get();
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+	}
+
+	/**
+	 * Move the recorded values into a new histogram, e.g. for the values of an interval.
+	 * Every value is moved exactly once, even while other threads are recording.
+	 *
+	 * @return histogram with the values recorded since the last drain
+	 */
+	public LatencyHistogram drain()
+	{
+		LatencyHistogram drained = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			if (counts.get(i) != 0)
+				drained.counts.set(i, counts.getAndSet(i, 0));
+		}
+		drained.sum.add(sum.sumThenReset());
+		drained.max.set(max.getAndSet(0));
+		return drained;
+	}
+}
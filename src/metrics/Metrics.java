@@ -0,0 +1,116 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the process.
+ * <p>
+ * The metrics are recorded lock-free and without creating objects, so they can stay
+ * enabled in production. The values are only collected, when the metrics are scraped
+ * by the text endpoint (MetricsServer) or read by JMX.
+ */
+public class Metrics
+{
+	/**
+	 * Receives the current values of the metrics.
+	 */
+	public interface Collector
+	{
+		/**
+		 * @param name   name of the metric, e.g. wut_requests_total
+		 * @param labels labels in the text format, e.g. type="input", or an empty string
+		 * @param value  current value
+		 */
+		void value(String name, String labels, double value);
+	}
+
+	/**
+	 * A group of metrics, which reports its values to a collector.
+	 */
+	public interface Source
+	{
+		void collect(Collector collector);
+	}
+
+	public final static WutMetrics WUT = new WutMetrics();
+	public final static ModbusMetrics MODBUS = new ModbusMetrics();
+	public final static CacheMetrics CACHE = new CacheMetrics();
+
+	private final static List<Source> sources = new CopyOnWriteArrayList<>(new Source[]{WUT, MODBUS, CACHE});
+
+	/* percentiles of the latency histograms */
+	private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	/**
+	 * Add a source, e.g. of a device, which is created at runtime.
+	 */
+	public static void register(Source source)
+	{
+		sources.add(source);
+	}
+
+	public static void unregister(Source source)
+	{
+		sources.remove(source);
+	}
+
+	/**
+	 * Report the values of all sources.
+	 */
+	public static void collect(Collector collector)
+	{
+		for (Source source : sources)
+			source.collect(collector);
+	}
+
+	/**
+	 * @return all metrics in the text format of prometheus
+	 */
+	public static String scrape()
+	{
+		StringBuilder out = new StringBuilder();
+		collect((name, labels, value) -> {
+			out.append(name);
+			if (!labels.isEmpty())
+				out.append('{').append(labels).append('}');
+			out.append(' ');
+			if (value == (long) value)
+				out.append((long) value);
+			else
+				out.append(value);
+			out.append('\n');
+		});
+		return out.toString();
+	}
+
+	/**
+	 * Report a histogram as summary with quantiles, count, sum and max.
+	 */
+	static void collectHistogram(Collector collector, String name, String labels, LatencyHistogram histogram)
+	{
+		String separator = labels.isEmpty() ? "" : ",";
+		for (double quantile : QUANTILES)
+			collector.value(name, labels + separator + "quantile=\"" + quantile + "\"", histogram.getValueAtPercentile(quantile * 100));
+
+		collector.value(name + "_count", labels, histogram.getCount());
+		collector.value(name + "_sum", labels, histogram.getSum());
+		collector.value(name + "_max", labels, histogram.getMax());
+	}
+
+	/**
+	 * Publish the metrics as attributes of the MBean wutmodbus:type=Metrics.
+	 */
+	public static void registerMBean()
+	{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("wutmodbus:type=Metrics"));
+		} catch (JMException e) {
+			System.out.println("metrics: can't register mbean: " + e.getMessage());
+		}
+	}
+}
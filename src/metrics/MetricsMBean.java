@@ -0,0 +1,92 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Read-only MBean with one attribute per metric.
+ * <p>
+ * The name of an attribute is the name of the metric followed by the values
+ * of its labels, e.g. wut_requests_total_input.
+ */
+class MetricsMBean implements DynamicMBean
+{
+	private static Map<String, Double> snapshot()
+	{
+		Map<String, Double> values = new LinkedHashMap<>();
+		Metrics.collect((name, labels, value) -> values.put(attributeName(name, labels), value));
+		return values;
+	}
+
+	private static String attributeName(String name, String labels)
+	{
+		if (labels.isEmpty())
+			return name;
+
+		// keep only the values of the labels
+		StringBuilder attribute = new StringBuilder(name);
+		for (String label : labels.split(","))
+			attribute.append('_').append(label, label.indexOf('"') + 1, label.lastIndexOf('"'));
+		return attribute.toString();
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		Double value = snapshot().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("metrics are read-only");
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes)
+	{
+		Map<String, Double> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+			if (values.containsKey(attribute))
+				list.add(new Attribute(attribute, values.get(attribute)));
+		return list;
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String action, Object[] params, String[] signature)
+	{
+		throw new UnsupportedOperationException(action);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		// the sources can change at runtime, so the attributes are looked up each time
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String name : snapshot().keySet())
+			attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false));
+
+		return new MBeanInfo(getClass().getName(), "metrics of the wut modbus wrapper",
+		attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,48 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain-text endpoint for scrapers like prometheus: GET /metrics returns all metrics.
+ */
+public class MetricsServer
+{
+	private final HttpServer server;
+
+	/**
+	 * @param port port of the http endpoint
+	 * @throws IOException when the port can't be opened
+	 */
+	public MetricsServer(int port) throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return the port the endpoint listens on
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	public void close()
+	{
+		server.stop(0);
+	}
+}
@@ -0,0 +1,139 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the modbus requests of all clients.
+ */
+public class ModbusMetrics implements Metrics.Source
+{
+	/* the supported function codes, all others are counted as 'other' */
+	private final static int[] FUNCTION_CODES = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x0F, 0x10};
+	private final static int OTHER = FUNCTION_CODES.length;
+
+	/* exception codes 0x01 to 0x0b, 0 for unknown codes */
+	private final static int EXCEPTION_CODES = 0x0c;
+
+	private final LongAdder[] requests = new LongAdder[OTHER + 1];
+
+	/* round trip times in microseconds */
+	private final LatencyHistogram[] latencies = new LatencyHistogram[OTHER + 1];
+	private final LongAdder[] exceptions = new LongAdder[EXCEPTION_CODES];
+
+	private final LongAdder in_flight = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder deadlines_exceeded = new LongAdder();
+	private final LongAdder connection_losses = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+
+	ModbusMetrics()
+	{
+		for (int i = 0; i <= OTHER; i++) {
+			requests[i] = new LongAdder();
+			latencies[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < EXCEPTION_CODES; i++)
+			exceptions[i] = new LongAdder();
+	}
+
+	private static int index(int function_code)
+	{
+		for (int i = 0; i < FUNCTION_CODES.length; i++)
+			if (FUNCTION_CODES[i] == function_code)
+				return i;
+		return OTHER;
+	}
+
+	/**
+	 * A request has been sent.
+	 */
+	public void sent(int function_code)
+	{
+		requests[index(function_code)].increment();
+		in_flight.increment();
+	}
+
+	/**
+	 * The response of a request arrived.
+	 *
+	 * @param nanos round trip time in nanoseconds
+	 */
+	public void responded(int function_code, long nanos)
+	{
+		in_flight.decrement();
+		latencies[index(function_code)].record(nanos / 1000);
+	}
+
+	/**
+	 * The server answered with an exception code.
+	 */
+	public void exception(int exception_code)
+	{
+		exceptions[exception_code > 0 && exception_code < EXCEPTION_CODES ? exception_code : 0].increment();
+	}
+
+	/**
+	 * A sent request got no response in time.
+	 *
+	 * @param by_deadline true when the deadline of the caller was over before the timeout of the client
+	 */
+	public void expired(boolean by_deadline)
+	{
+		in_flight.decrement();
+		if (by_deadline)
+			deadlines_exceeded.increment();
+		else
+			timeouts.increment();
+	}
+
+	/**
+	 * A request wasn't sent, because the deadline of the caller was already over.
+	 */
+	public void dropped()
+	{
+		deadlines_exceeded.increment();
+	}
+
+	/**
+	 * Sent requests failed, because their connection was closed.
+	 */
+	public void aborted(int count)
+	{
+		in_flight.add(-count);
+	}
+
+	public void connectionLost()
+	{
+		connection_losses.increment();
+	}
+
+	public void reconnected()
+	{
+		reconnects.increment();
+	}
+
+	@Override
+	public void collect(Metrics.Collector collector)
+	{
+		for (int i = 0; i <= OTHER; i++)
+			collector.value("modbus_requests_total", functionLabel(i), requests[i].sum());
+		for (int i = 0; i < EXCEPTION_CODES; i++)
+			collector.value("modbus_exceptions_total", "code=\"0x" + Integer.toHexString(i) + "\"", exceptions[i].sum());
+
+		collector.value("modbus_in_flight", "", in_flight.sum());
+		collector.value("modbus_timeouts_total", "", timeouts.sum());
+		collector.value("modbus_deadlines_exceeded_total", "", deadlines_exceeded.sum());
+		collector.value("modbus_connection_losses_total", "", connection_losses.sum());
+		collector.value("modbus_reconnects_total", "", reconnects.sum());
+
+		for (int i = 0; i <= OTHER; i++)
+			Metrics.collectHistogram(collector, "modbus_latency_us", functionLabel(i), latencies[i]);
+	}
+
+	private static String functionLabel(int index)
+	{
+		if (index == OTHER)
+			return "function=\"other\"";
+		return "function=\"0x" + Integer.toHexString(FUNCTION_CODES[index]) + "\"";
+	}
+}
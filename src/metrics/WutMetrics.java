@@ -0,0 +1,85 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the WUT requests by type.
+ */
+public class WutMetrics implements Metrics.Source
+{
+	/* types of the requests */
+	public final static int INPUTS = 0;
+	public final static int OUTPUTS = 1;
+	public final static int OUTPUT_ACCESS = 2;
+	public final static int ANALOG_INPUT = 3;
+	public final static int ANALOG_OUTPUT = 4;
+	public final static int ANALOG_OUTPUT_ACCESS = 5;
+	public final static int UNKNOWN = 6;
+
+	private final static String[] TYPES = {"input", "output", "outputaccess", "analogin", "analogout", "analogoutaccess", "unknown"};
+
+	private final LongAdder[] requests = new LongAdder[TYPES.length];
+	private final LongAdder[] errors = new LongAdder[TYPES.length];
+
+	/* latencies in microseconds */
+	private final LatencyHistogram[] latencies = new LatencyHistogram[TYPES.length];
+
+	/* subscriptions to changes of the inputs */
+	private final LongAdder subscribers = new LongAdder();
+	private final LongAdder pushes = new LongAdder();
+
+	WutMetrics()
+	{
+		for (int i = 0; i < TYPES.length; i++) {
+			requests[i] = new LongAdder();
+			errors[i] = new LongAdder();
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @param type    type of the request
+	 * @param nanos   time in nanoseconds to process the request
+	 * @param success false when the request failed
+	 */
+	public void request(int type, long nanos, boolean success)
+	{
+		requests[type].increment();
+		if (!success)
+			errors[type].increment();
+		latencies[type].record(nanos / 1000);
+	}
+
+	public void subscribed()
+	{
+		subscribers.increment();
+	}
+
+	public void unsubscribed()
+	{
+		subscribers.decrement();
+	}
+
+	/**
+	 * Changed inputs were pushed to a subscriber.
+	 */
+	public void pushed()
+	{
+		pushes.increment();
+	}
+
+	@Override
+	public void collect(Metrics.Collector collector)
+	{
+		for (int i = 0; i < TYPES.length; i++) {
+			String labels = "type=\"" + TYPES[i] + "\"";
+			collector.value("wut_requests_total", labels, requests[i].sum());
+			collector.value("wut_errors_total", labels, errors[i].sum());
+		}
+		collector.value("wut_subscribers", "", subscribers.sum());
+		collector.value("wut_pushes_total", "", pushes.sum());
+
+		for (int i = 0; i < TYPES.length; i++)
+			Metrics.collectHistogram(collector, "wut_latency_us", "type=\"" + TYPES[i] + "\"", latencies[i]);
+	}
+}
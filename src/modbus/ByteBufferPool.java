@@ -0,0 +1,58 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A simple pool of equally sized byte buffers.
+ * <p>
+ * The pool is thread-safe, buffers can be acquired and released by different threads.
+ */
+public class ByteBufferPool
+{
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
+	private final int buffer_size;
+	private final boolean direct;
+
+	/**
+	 * @param buffer_size size of each buffer in bytes
+	 * @param max_pooled  max. number of buffers kept in the pool
+	 * @param direct      true to allocate direct buffers
+	 */
+	public ByteBufferPool(int buffer_size, int max_pooled, boolean direct)
+	{
+		this.buffer_size = buffer_size;
+		this.direct = direct;
+		this.buffers = new ArrayBlockingQueue<>(max_pooled);
+	}
+
+	/**
+	 * @return a cleared buffer from the pool or a new one, when the pool is empty
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buff = buffers.poll();
+		if (buff != null)
+			return buff;
+
+		return direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+	}
+
+	/**
+	 * Give a buffer back to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buff buffer acquired from this pool
+	 */
+	public void release(ByteBuffer buff)
+	{
+		if (buff == null || buff.capacity() != buffer_size)
+			return;
+
+		// the buffer is dropped, when the pool is full
+		buff.clear();
+		buffers.offer(buff);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,159 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+/**
+ * A hashed wheel of timers with a resolution of one millisecond.
+ * <p>
+ * A timer is put into the slot of its deadline, so scheduling and cancelling
+ * is O(1), regardless how many timers are waiting. Timers, which are more than
+ * one revolution ahead, stay in their slot until their deadline is reached.
+ * <p>
+ * The wheel isn't thread-safe, it's only used by the thread of an event loop.
+ */
+public class HashedWheelTimer
+{
+	/**
+	 * A scheduled task, which can be cancelled before it runs.
+	 */
+	public static class Timeout
+	{
+		private final HashedWheelTimer wheel;
+		private final long deadline;
+		private final Runnable task;
+
+		/* doubly linked list of the slot, slot is -1 when the timer isn't in the wheel */
+		private Timeout prev;
+		private Timeout next;
+		private int slot = -1;
+
+		Timeout(HashedWheelTimer wheel, long deadline, Runnable task)
+		{
+			this.wheel = wheel;
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Cancel the task. Must be called from the thread of the wheel.
+		 */
+		public void cancel()
+		{
+			wheel.remove(this);
+		}
+	}
+
+	/* number of slots, must be a power of two */
+	private final static int WHEEL_SIZE = 512;
+	private final static int MASK = WHEEL_SIZE - 1;
+	private final static long TICK = 1000000L;
+
+	private final Timeout[] slots = new Timeout[WHEEL_SIZE];
+	private final long start = System.nanoTime();
+
+	/* the next tick, which hasn't been processed yet */
+	private long current_tick;
+	private int size;
+
+	/**
+	 * @param delay time in milliseconds after the task should run
+	 * @param task  the task to run
+	 * @return handle to cancel the task
+	 */
+	public Timeout schedule(long delay, Runnable task)
+	{
+		Timeout timeout = new Timeout(this, System.nanoTime() + delay * TICK, task);
+
+		// a timer can't be put into a slot, which has already been processed
+		long tick = Math.max((timeout.deadline - start) / TICK, current_tick);
+		int slot = (int) (tick & MASK);
+
+		timeout.slot = slot;
+		timeout.next = slots[slot];
+		if (timeout.next != null)
+			timeout.next.prev = timeout;
+		slots[slot] = timeout;
+		size++;
+
+		return timeout;
+	}
+
+	private void remove(Timeout timeout)
+	{
+		if (timeout.slot < 0)
+			return;
+
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+
+	/**
+	 * Run all tasks, whose deadline has been reached.
+	 */
+	public void expire()
+	{
+		long now = System.nanoTime();
+
+		// a tick is processed, when it's completely over, so all deadlines of it are reached
+		long now_tick = (now - start) / TICK;
+		long ticks = Math.min(now_tick - current_tick, WHEEL_SIZE);
+
+		for (long i = 0; i < ticks; i++) {
+			int slot = (int) (current_tick++ & MASK);
+
+			Timeout timeout = slots[slot];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+
+				// timers of later revolutions stay in the slot
+				if (timeout.deadline - now <= 0) {
+					remove(timeout);
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+
+					// the task may have cancelled the next timer, then start again at the head
+					if (next != null && next.slot != slot)
+						next = slots[slot];
+				}
+				timeout = next;
+			}
+		}
+
+		// after a long stall all slots have been visited once
+		if (current_tick < now_tick)
+			current_tick = now_tick;
+	}
+
+	/**
+	 * @param max max. time in milliseconds to wait
+	 * @return time in milliseconds until the next occupied slot is due, at least one millisecond
+	 */
+	public long nextDelay(long max)
+	{
+		if (size == 0)
+			return max;
+
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			long tick = current_tick + i;
+			if (slots[(int) (tick & MASK)] != null) {
+				// round up, so the loop doesn't wake up before the tick is over
+				long millis = (start + (tick + 1) * TICK - System.nanoTime() + TICK - 1) / TICK;
+				return Math.max(1, Math.min(millis, max));
+			}
+		}
+		return max;
+	}
+}
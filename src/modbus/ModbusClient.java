@@ -3,28 +3,533 @@
  */
 package modbus;
 
+import metrics.Metrics;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ModbusClient implements a TCP Client for the Modbus Protocol.
+ * <p>
+ * The I/O is non-blocking and runs on a {@link ModbusEventLoop}. Every function is
+ * available as asynchronous variant, which returns a {@link CompletableFuture}.
+ * The synchronous functions just wait for the result of the asynchronous ones.
+ * <p>
+ * The client can open several connections to the server and spreads the requests
+ * over them. A broken connection is opened again in the background with an
+ * exponential backoff, requests fail immediately while no connection is available.
+ * <p>
+ * Devices behind a gateway (e.g. serial devices) are reached by {@link #forUnit(int)}:
+ * the clients of all units share the connections of this client. Each connection sends
+ * the requests of the units in turns, so a slow unit doesn't delay the others.
+ * <p>
+ * The messages are framed like Modbus/TCP or, for serial device servers, as RTU frames
+ * over TCP, see {@link #setTransport(ModbusTransport)}.
  */
 public class ModbusClient
 {
-	private Socket socket;
-	private OutputStream os;
-	private InputStream is;
+	/* the client, which owns the connections, this for a client created by a constructor */
+	private final ModbusClient root;
+
 	private String host;
 	private int port;
-	private short current_transaction_ident;
+	private InetSocketAddress address;
+
+	/* null while disconnected, a client of a unit uses the loop of its root */
+	private volatile ModbusEventLoop loop;
+	private boolean own_loop;
+	private Connection connections[] = new Connection[0];
+	private int connection_count = 1;
+	private final AtomicInteger next_connection = new AtomicInteger();
+	private volatile boolean disconnected;
+
+	/* pipelined mode: requests are written immediately and matched by the transaction identifier */
+	private boolean pipelined;
+	private ModbusTransport transport = ModbusTransport.MBAP;
+	private int timeout = DEFAULT_TIMEOUT;
+	private byte unit_ident = ModbusProtocol.MODBUS_UNIT_IDENT;
+	private boolean reconnect = true;
+
+	/* max. number of outstanding transactions of a unit on a connection */
+	private int unit_window = Integer.MAX_VALUE;
+
+	/* merges concurrent reads, null when the batching is disabled */
+	private int batch_window = -1;
+	private ReadBatcher<long[]> coil_batcher;
+	private ReadBatcher<long[]> input_batcher;
+	private ReadBatcher<short[]> holding_register_batcher;
+	private ReadBatcher<short[]> input_register_batcher;
+
+	/* the requests are encoded in place into buffers of this pool */
+	private ByteBufferPool request_buffers = new ByteBufferPool(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE, MAX_POOLED_REQUESTS, false);
 
 	/* Modbus frame max. size is 300 bytes, so 900 are enough for 3 frames in buffer */
 	private final static int TCP_RECEIVE_BUFFER_SIZE = 900;
 
+	/* size of the read and write buffers of the channel */
+	private final static int TCP_BUFFER_SIZE = 8 * ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE;
+
+	/* default time in milliseconds to wait for a response */
+	private final static int DEFAULT_TIMEOUT = 3000;
+
+	/* max. number of request buffers kept in the pool */
+	private final static int MAX_POOLED_REQUESTS = 64;
+
+	/* bounds of the delay in milliseconds before a broken connection is opened again */
+	private final static int MIN_RECONNECT_DELAY = 100;
+	private final static int MAX_RECONNECT_DELAY = 30000;
+
+	/* number of transactions in a row without response, after a connection is considered broken */
+	private final static int MAX_MISSED_RESPONSES = 3;
+
+	/* max. number of outputs of a write request (function 0x0F) */
+	private final static int MAX_WRITE_BITS = 1968;
+
+	/* max. number of registers of a write request (function 0x10) */
+	private final static int MAX_WRITE_REGISTERS = 123;
+
+	/**
+	 * Transactions of one unit, which are waiting to be sent on a connection.
+	 */
+	private static class UnitQueue
+	{
+		final ArrayDeque<ModbusTransaction<?>> transactions = new ArrayDeque<>();
+
+		/* sent transactions without response */
+		int in_flight;
+
+		/* true while the unit is in the ready queue */
+		boolean ready;
+	}
+
+	/**
+	 * One TCP connection to the server. Except of the pending queue and the key,
+	 * a connection is only accessed from the event loop.
+	 */
+	private class Connection implements ModbusEventLoop.Handler
+	{
+		/* the loop of the client, when it was connected, tasks still run after disconnect() released it */
+		private final ModbusEventLoop loop = ModbusClient.this.loop;
+
+		private SocketChannel channel;
+
+		/* null while the connection isn't usable */
+		private volatile SelectionKey key;
+
+		/* requests waiting to be sent, filled by any thread */
+		private final Queue<ModbusTransaction<?>> pending = new ConcurrentLinkedQueue<>();
+
+		/* the pending requests sorted by unit, the units with sendable requests take turns */
+		private final UnitQueue[] units = new UnitQueue[256];
+		private final ArrayDeque<UnitQueue> ready = new ArrayDeque<>();
+		private int queued;
+
+		private final TransactionTable transactions = new TransactionTable();
+		private final ByteBuffer write_buffer = ByteBuffer.allocateDirect(TCP_BUFFER_SIZE);
+		private final ByteBuffer read_buffer = ByteBuffer.allocateDirect(TCP_BUFFER_SIZE);
+		private final ModbusMessage response = new ModbusMessage();
+		private final ModbusFraming framing = transport.newFraming();
+		private short current_transaction_ident;
+
+		/* failed connection attempts since the last successful one */
+		private int attempts;
+		private int missed_responses;
+
+		/**
+		 * Connect blocking. Called by the thread, which calls connect().
+		 */
+		void open() throws IOException
+		{
+			channel = SocketChannel.open(address);
+			configure();
+
+			try {
+				key = loop.register(channel, SelectionKey.OP_READ, this).get();
+			} catch (InterruptedException | ExecutionException e) {
+				channel.close();
+				throw new IOException("connection.modbus: can't register channel", e);
+			}
+		}
+
+		/**
+		 * Connect non-blocking, the connection is finished in handle(). Called from the event loop.
+		 */
+		private void reopen()
+		{
+			if (disconnected)
+				return;
+
+			try {
+				channel = SocketChannel.open();
+				configure();
+
+				if (channel.connect(address))
+					connected(channel.register(loop.selector(), SelectionKey.OP_READ, this));
+				else {
+					channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+
+					// give up, when the server doesn't answer
+					SocketChannel connecting = channel;
+					loop.schedule(timeout, () -> {
+						if (channel == connecting && key == null && channel.isOpen())
+							close(new IOException("connection.modbus: connect timed out"));
+					});
+				}
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void configure() throws IOException
+		{
+			// disable nagle's algorithm (send small amount of data directly)
+			// this increases the performance
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, TCP_RECEIVE_BUFFER_SIZE);
+
+			// enable keep-alive so that connection crashes can be detected faster
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+			channel.configureBlocking(false);
+		}
+
+		private void connected(SelectionKey key)
+		{
+			if (attempts > 0) {
+				System.out.println("connection.modbus: reconnected to " + address);
+				Metrics.MODBUS.reconnected();
+			}
+
+			attempts = 0;
+			missed_responses = 0;
+			key.interestOps(SelectionKey.OP_READ);
+			this.key = key;
+		}
+
+		@Override
+		public void handle(SelectionKey key)
+		{
+			try {
+				if (key.isConnectable()) {
+					channel.finishConnect();
+					connected(key);
+					return;
+				}
+				if (key.isReadable())
+					read();
+				if (key.isValid() && key.isWritable())
+					flush();
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		/**
+		 * Queue a transaction. Can be called from any thread.
+		 *
+		 * @return false if the connection isn't usable
+		 */
+		boolean send(ModbusTransaction<?> transaction)
+		{
+			if (key == null)
+				return false;
+
+			// the transaction is sent by the event loop
+			pending.add(transaction);
+			loop.execute(this::flush);
+
+			// the connection could have been closed in the meantime
+			if (key == null)
+				failPending(new IOException("connection.modbus: not connected"));
+
+			return true;
+		}
+
+		/**
+		 * Move pending transactions into the write buffer and write as much as possible.
+		 */
+		private void flush()
+		{
+			if (key == null) {
+				IOException reason = new IOException("connection.modbus: not connected");
+				failQueued(reason);
+				failPending(reason);
+				return;
+			}
+
+			ModbusTransaction<?> transaction;
+			while ((transaction = pending.poll()) != null)
+				enqueue(transaction);
+
+			UnitQueue unit;
+			while ((unit = ready.peek()) != null) {
+				transaction = unit.transactions.peek();
+
+				// the caller doesn't wait anymore, so the request isn't sent at all
+				long remaining = transaction.remainingTime(timeout);
+				if (remaining == 0) {
+					dequeue(unit);
+					request_buffers.release(transaction.getRequest().getBuffer());
+					transaction.fail(new ModbusException("connection.modbus: deadline exceeded before the request was sent"));
+					Metrics.MODBUS.dropped();
+					continue;
+				}
+
+				// without pipelining or transaction identifiers only one transaction may be outstanding
+				if ((!pipelined || !framing.hasTransactionIdentifier()) && !transactions.isEmpty())
+					break;
+
+				ModbusMessage req = transaction.getRequest();
+				if (write_buffer.remaining() < req.getFrameLength())
+					break;
+				unit.in_flight++;
+				dequeue(unit);
+
+				// increase transaction id, avoid invalid zero and ids which are still in use
+				short ident = transactions.nextIdentifier(current_transaction_ident);
+				current_transaction_ident = ident;
+				req.setTransactionIdentifier(ident);
+				transactions.put(ident, transaction);
+				transaction.setSentTime(System.nanoTime());
+				Metrics.MODBUS.sent(transaction.getFunctionCode());
+
+				// the request isn't needed anymore, when it's in the write buffer
+				framing.write(req, write_buffer);
+				request_buffers.release(req.getBuffer());
+
+				ModbusTransaction<?> expiring = transaction;
+				boolean by_deadline = remaining < timeout;
+				transaction.setTimeout(loop.schedule(remaining, () -> expire(ident, expiring, by_deadline)));
+			}
+
+			try {
+				write_buffer.flip();
+				channel.write(write_buffer);
+				write_buffer.compact();
+			} catch (IOException e) {
+				close(e);
+				return;
+			}
+
+			// wait for the socket to become writable again, if not all data was written
+			if (write_buffer.position() > 0)
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			else
+				key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void enqueue(ModbusTransaction<?> transaction)
+		{
+			UnitQueue unit = units[transaction.getUnit()];
+			if (unit == null)
+				unit = units[transaction.getUnit()] = new UnitQueue();
+
+			unit.transactions.add(transaction);
+			queued++;
+			schedule(unit);
+		}
+
+		/**
+		 * Remove the first transaction of the unit, which is the first of the ready queue.
+		 * The unit takes its next turn at the end of the queue.
+		 */
+		private void dequeue(UnitQueue unit)
+		{
+			unit.transactions.poll();
+			queued--;
+			ready.poll();
+			unit.ready = false;
+			schedule(unit);
+		}
+
+		/**
+		 * Add the unit to the ready queue, if it has requests and its window isn't full.
+		 */
+		private void schedule(UnitQueue unit)
+		{
+			if (!unit.ready && !unit.transactions.isEmpty() && unit.in_flight < unit_window) {
+				unit.ready = true;
+				ready.add(unit);
+			}
+		}
+
+		/**
+		 * A transaction of the unit got its response or expired.
+		 */
+		private void finished(ModbusTransaction<?> transaction)
+		{
+			UnitQueue unit = units[transaction.getUnit()];
+			unit.in_flight--;
+			schedule(unit);
+		}
+
+		private boolean hasPending()
+		{
+			return queued > 0 || !pending.isEmpty();
+		}
+
+		/**
+		 * Read the available data and complete the transactions of all received responses.
+		 */
+		private void read() throws IOException
+		{
+			// -1 when connection is closed
+			if (channel.read(read_buffer) == -1)
+				throw new EOFException("connection.modbus: connection closed by server");
+
+			read_buffer.flip();
+			int frame_length;
+			while ((frame_length = framing.frameLength(read_buffer, false)) > 0) {
+				// parse the response, it's only valid until the buffer is compacted,
+				// a frame without transaction identifier is the response of the only outstanding transaction
+				ModbusMessage res = framing.parse(read_buffer, frame_length, current_transaction_ident, response);
+				read_buffer.position(read_buffer.position() + frame_length);
+				missed_responses = 0;
+
+				// responses of expired transactions are dropped
+				ModbusTransaction<?> transaction = transactions.remove(res.getTransactionIdentifier());
+				if (transaction == null)
+					continue;
+				finished(transaction);
+
+				// frames without transaction identifier are matched by their order only,
+				// a response of another unit or function means that the stream is out of sync
+				if (!framing.hasTransactionIdentifier() && !isResponseOf(res, transaction)) {
+					IOException e = new IOException("connection.modbus-rtu: response of unit " + (res.getUnitIdentifier() & 0xff) +
+					", function 0x" + Integer.toHexString(res.getFunctionCode()) + " doesn't match the request");
+					// the transaction isn't outstanding anymore, so close() doesn't count it as aborted
+					Metrics.MODBUS.aborted(1);
+					transaction.fail(e);
+					throw e;
+				}
+				Metrics.MODBUS.responded(transaction.getFunctionCode(), System.nanoTime() - transaction.getSentTime());
+
+				try {
+					checkResponse(transaction.getFunctionCode(), res);
+					transaction.complete(res);
+				} catch (ModbusException e) {
+					if (e.getExceptionCode() != 0)
+						Metrics.MODBUS.exception(e.getExceptionCode());
+					transaction.fail(e);
+				}
+			}
+			read_buffer.compact();
+
+			// a transaction has been completed, so the next may be sent
+			if (hasPending())
+				flush();
+		}
+
+		private void expire(short ident, ModbusTransaction<?> transaction, boolean by_deadline)
+		{
+			if (transactions.get(ident) != transaction)
+				return;
+
+			transactions.remove(ident);
+			finished(transaction);
+			Metrics.MODBUS.expired(by_deadline);
+			if (by_deadline) {
+				transaction.fail(new ModbusException("connection.modbus: deadline of transaction 0x" +
+				Integer.toHexString(ident & 0xffff) + " exceeded"));
+			} else {
+				transaction.fail(new ModbusException("connection.modbus: no response for transaction 0x" +
+				Integer.toHexString(ident & 0xffff) + " within " + timeout + "ms"));
+			}
+
+			// without transaction identifiers a late response would be taken for the response
+			// of the next request, so the connection is opened again
+			if (!framing.hasTransactionIdentifier()) {
+				close(new IOException("connection.modbus-rtu: transaction expired, the responses are out of sync"));
+				return;
+			}
+
+			// the connection is dead, when the server doesn't answer at all,
+			// a short deadline of the caller doesn't say anything about the server
+			if (!by_deadline && ++missed_responses >= MAX_MISSED_RESPONSES) {
+				close(new IOException("connection.modbus: no responses from " + address));
+				return;
+			}
+
+			if (hasPending())
+				flush();
+		}
+
+		/**
+		 * Close the channel, fail all outstanding transactions and schedule the reconnect.
+		 * Called from the event loop.
+		 */
+		void close(IOException reason)
+		{
+			if (key != null && !disconnected)
+				Metrics.MODBUS.connectionLost();
+			Metrics.MODBUS.aborted(transactions.size());
+			key = null;
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException ignore) {
+			}
+
+			transactions.failAll(reason);
+
+			failQueued(reason);
+			failPending(reason);
+			write_buffer.clear();
+			read_buffer.clear();
+
+			if (!reconnect || disconnected)
+				return;
+
+			if (attempts == 0)
+				System.out.println("connection.modbus: connection to " + address + " lost: " + reason.getMessage());
+			loop.schedule(reconnectDelay(attempts++), this::reopen);
+		}
+
+		private void failPending(IOException reason)
+		{
+			ModbusTransaction<?> transaction;
+			while ((transaction = pending.poll()) != null) {
+				request_buffers.release(transaction.getRequest().getBuffer());
+				transaction.fail(reason);
+			}
+		}
+
+		/**
+		 * Fail the transactions in the queues of the units. Called from the event loop.
+		 */
+		private void failQueued(IOException reason)
+		{
+			ModbusTransaction<?> transaction;
+			for (UnitQueue unit : units) {
+				if (unit == null)
+					continue;
+				while ((transaction = unit.transactions.poll()) != null) {
+					request_buffers.release(transaction.getRequest().getBuffer());
+					transaction.fail(reason);
+				}
+				unit.in_flight = 0;
+				unit.ready = false;
+			}
+			ready.clear();
+			queued = 0;
+		}
+	}
+
 	/**
 	 * Create a new Instance of a TCP Modbus Client, which can connect to a TCP Modbus Server .
 	 * Uses the default port 502 for the communication.
@@ -49,43 +554,287 @@ public class ModbusClient
 	 */
 	public ModbusClient(String host, int port)
 	{
+		this(host, port, null);
+	}
+
+	/**
+	 * Create a new Instance of a TCP Modbus Client, which runs its I/O on a shared event loop.
+	 * <p>
+	 * start the connection by calling connect()
+	 *
+	 * @param host server host (ip or hostname)
+	 * @param port port for the connection.modbus communication
+	 * @param loop event loop for the I/O or null to use an own event loop
+	 */
+	public ModbusClient(String host, int port, ModbusEventLoop loop)
+	{
+		this.root = this;
 		this.host = host;
 		this.port = port;
+		this.loop = loop;
+	}
+
+	/**
+	 * Create a client of a unit, which shares the connections of {@code root}.
+	 */
+	private ModbusClient(ModbusClient root, int unit_ident)
+	{
+		this.root = root;
+		this.host = root.host;
+		this.port = root.port;
+		this.request_buffers = root.request_buffers;
+		this.unit_ident = (byte) unit_ident;
+
+		// the reads of different units must not be merged, so each unit has its own batchers
+		if (root.batch_window >= 0) {
+			batch_window = root.batch_window;
+			coil_batcher = newBitBatcher(ModbusProtocol.F_READ_COILS);
+			input_batcher = newBitBatcher(ModbusProtocol.F_READ_DISCRETE_INPUTS);
+			holding_register_batcher = newRegisterBatcher(ModbusProtocol.F_READ_HOLDING_REGISTERS);
+			input_register_batcher = newRegisterBatcher(ModbusProtocol.F_READ_INPUT_REGISTERS);
+		}
+	}
+
+	/**
+	 * Get a client for a unit behind a gateway, which sends its requests over the connections
+	 * of this client. Must be called after connect().
+	 * <p>
+	 * The connections are opened and closed only by this client: connect() of the returned
+	 * client fails and disconnect() does nothing. The settings of the connections
+	 * (pipelining, timeout, unit window) and the event loop are taken from this client,
+	 * whenever they are used, so they also apply after this client connected again.
+	 *
+	 * @param unit_ident unit identifier between 0x00 and 0xff
+	 * @return client, which sends all requests to the unit
+	 */
+	public ModbusClient forUnit(int unit_ident)
+	{
+		if (root != this)
+			return root.forUnit(unit_ident);
+		if (loop == null)
+			throw new IllegalStateException("connect() must be called first");
+		return new ModbusClient(this, unit_ident);
 	}
 
 	/**
-	 * Establish a connection to the Modbus master.
+	 * Establish the connections to the Modbus master.
+	 * <p>
+	 * Connections, which can't be established, are retried in the background.
 	 *
-	 * @throws IOException when a problem with TCP occured or when client is already connected
+	 * @throws IOException when no connection could be established or when client is already connected
 	 */
 	public void connect() throws IOException
 	{
-		if (socket != null && socket.isConnected())
+		if (root != this)
+			throw new IOException("connection.modbus: the connections of a unit are opened by its client");
+		if (connections.length > 0 && !disconnected)
 			throw new IOException("already connected. please close connection first.");
-		socket = new Socket(host, port);
 
-		// disable nagle's algorithm (send small amount of data directly)
-		// this increases the performance
-		socket.setTcpNoDelay(false);
-		socket.setReceiveBufferSize(TCP_RECEIVE_BUFFER_SIZE);
+		if (loop == null) {
+			loop = new ModbusEventLoop("modbus-" + host);
+			own_loop = true;
+		}
+
+		if (batch_window >= 0) {
+			coil_batcher = newBitBatcher(ModbusProtocol.F_READ_COILS);
+			input_batcher = newBitBatcher(ModbusProtocol.F_READ_DISCRETE_INPUTS);
+			holding_register_batcher = newRegisterBatcher(ModbusProtocol.F_READ_HOLDING_REGISTERS);
+			input_register_batcher = newRegisterBatcher(ModbusProtocol.F_READ_INPUT_REGISTERS);
+		}
 
-		// enable keep-alive so that connection crashes can be detected faster
-		socket.setKeepAlive(true);
+		// resolve the host once, so a reconnect doesn't block the event loop
+		address = new InetSocketAddress(host, port);
+		disconnected = false;
 
-		os = socket.getOutputStream();
-		is = socket.getInputStream();
+		// connect blocking, afterwards all I/O is done by the event loop
+		Connection[] opened = new Connection[connection_count];
+		IOException error = null;
+		int count = 0;
+		for (int i = 0; i < opened.length; i++) {
+			opened[i] = new Connection();
+			try {
+				opened[i].open();
+				count++;
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+
+		if (count == 0) {
+			if (own_loop) {
+				loop.close();
+				loop = null;
+			}
+			throw error;
+		}
+
+		// retry the failed connections in the background
+		for (Connection connection : opened)
+			if (connection.key == null)
+				loop.execute(() -> connection.close(new IOException("connection.modbus: not connected")));
+
+		connections = opened;
 	}
 
 	/**
-	 * Closes the connection.
+	 * Closes the connections.
 	 * No error will be thrown when connection is already closed.
 	 */
 	public void disconnect()
 	{
-		try {
-			socket.close();
-		} catch (IOException ignore) {
-		}
+		// the shared connections are closed by the client, which opened them
+		if (loop == null || root != this)
+			return;
+
+		disconnected = true;
+		Connection[] closing = connections;
+		ModbusEventLoop closing_loop = loop;
+		closing_loop.execute(() -> {
+			for (Connection connection : closing)
+				connection.close(new IOException("connection.modbus: disconnected"));
+			if (own_loop)
+				closing_loop.close();
+		});
+
+		// a new loop is created by the next connect()
+		if (own_loop)
+			loop = null;
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * @return unit identifier of the requests, between 0 and 255
+	 */
+	public int getUnitIdentifier()
+	{
+		return unit_ident & 0xff;
+	}
+
+	/**
+	 * Set the number of connections, which are opened by connect().
+	 * <p>
+	 * The requests are spread over the connections, so more requests can be
+	 * outstanding at the same time, even if the server doesn't support pipelining.
+	 *
+	 * @param count number of connections
+	 */
+	public void setConnections(int count)
+	{
+		this.connection_count = Math.max(1, count);
+	}
+
+	/**
+	 * Enable the batching of reads. Must be called before connect().
+	 * <p>
+	 * Reads of inputs, outputs or registers, which are issued within the window, are merged
+	 * into as few requests as possible, if their ranges overlap or touch.
+	 * Each caller gets its own range of the merged response.
+	 * Reads with a deadline aren't batched.
+	 *
+	 * @param window time in milliseconds to collect the reads, 0 merges only
+	 *               the reads issued at the same time, -1 disables the batching (default)
+	 */
+	public void setReadBatching(int window)
+	{
+		this.batch_window = window;
+	}
+
+	/**
+	 * Enable or disable the automatic reconnect of broken connections (enabled by default).
+	 *
+	 * @param reconnect true to open broken connections again
+	 */
+	public void setReconnect(boolean reconnect)
+	{
+		this.reconnect = reconnect;
+	}
+
+	/**
+	 * Enable or disable the pipelined mode.
+	 * <p>
+	 * In pipelined mode multiple requests can be outstanding at the same time.
+	 * Requests are written immediately and the responses are matched to the
+	 * waiting callers by the transaction identifier. Otherwise a request is sent
+	 * not until the response of the previous one arrived.
+	 * The server must support multiple outstanding transactions for this mode.
+	 *
+	 * @param pipelined true to enable the pipelined mode
+	 */
+	public void setPipelined(boolean pipelined)
+	{
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * Set the framing of the messages, Modbus/TCP by default. Must be called before connect().
+	 * <p>
+	 * With {@link ModbusTransport#RTU} the requests are sent as RTU frames with CRC, e.g. to a serial
+	 * device server, which tunnels the bytes to the bus. The pipelined mode has no effect then,
+	 * because the responses can't be matched by a transaction identifier. For the same reason
+	 * the connection is opened again, when a request expires, so a late response isn't taken
+	 * for the response of the next request.
+	 *
+	 * @param transport the framing
+	 */
+	public void setTransport(ModbusTransport transport)
+	{
+		this.transport = transport;
+	}
+
+	/**
+	 * Set the max. number of outstanding transactions of each unit on a connection (unlimited by default).
+	 * <p>
+	 * A gateway to serial devices answers the requests of a slow unit one after another.
+	 * With a small window the requests of the other units aren't queued behind them,
+	 * they are sent in turns.
+	 *
+	 * @param window number of transactions, at least 1
+	 */
+	public void setUnitWindow(int window)
+	{
+		this.unit_window = Math.max(1, window);
+	}
+
+	/**
+	 * Set the unit identifier of the requests.
+	 * <p>
+	 * Only needed, when the server is a gateway to other (e.g. serial) devices.
+	 * Otherwise the default 0xff should be used.
+	 *
+	 * @param unit_ident unit identifier between 0x00 and 0xff
+	 */
+	public void setUnitIdentifier(int unit_ident)
+	{
+		this.unit_ident = (byte) unit_ident;
+	}
+
+	/**
+	 * Use direct buffers for the encoding of the requests.
+	 *
+	 * @param direct true to allocate direct buffers
+	 */
+	public void setDirectBuffers(boolean direct)
+	{
+		request_buffers = new ByteBufferPool(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE, MAX_POOLED_REQUESTS, direct);
+	}
+
+	/**
+	 * Set the time to wait for a response.
+	 *
+	 * @param timeout timeout in milliseconds
+	 */
+	public void setTimeout(int timeout)
+	{
+		this.timeout = timeout;
 	}
 
 	/**
@@ -102,14 +851,63 @@ public class ModbusClient
 	 */
 	public BitSet readOutputs(int start, int n) throws IOException, ModbusException
 	{
-		ModbusMessage req = new ModbusMessage(ModbusProtocol.F_READ_COILS);
-		req.addDataShort((short) start);
-		req.addDataShort((short) n);
+		return await(readOutputsAsync(start, n));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #readOutputs(int, int)}.
+	 *
+	 * @param start address of the first bit
+	 * @param n     how many bits should be read
+	 * @return future of the bit set, which contains the state of the bits
+	 */
+	public CompletableFuture<BitSet> readOutputsAsync(int start, int n)
+	{
+		return readBitsAsync(ModbusProtocol.F_READ_COILS, start, n);
+	}
+
+	/**
+	 * Read {@code n} output bits beginning at {@code start} into a bit mask.
+	 * <p>
+	 * {@code n} must be between 1 and 64.
+	 *
+	 * @param start address of the first bit
+	 * @param n     how many bits should be read
+	 * @return bit mask, the first bit is the lowest bit
+	 */
+	public long readOutputMask(int start, int n) throws IOException, ModbusException
+	{
+		return await(readOutputWordsAsync(start, n, new long[1]))[0];
+	}
 
-		ModbusMessage res = sendRequest(req);
+	/**
+	 * Read {@code n} output bits beginning at {@code start} into packed words.
+	 * <p>
+	 * The bits are decoded from the response directly, without a BitSet.
+	 *
+	 * @param start address of the first bit
+	 * @param n     how many bits should be read
+	 * @param words destination with at least (n + 63) / 64 elements, bit i is bit (i % 64) of word i / 64
+	 * @return future of {@code words}
+	 */
+	public CompletableFuture<long[]> readOutputWordsAsync(int start, int n, long[] words)
+	{
+		return readWordsAsync(ModbusProtocol.F_READ_COILS, start, n, words);
+	}
 
-		int byte_count = res.getDataByte();
-		return BitSet.valueOf(res.getDataBytes(byte_count));
+	/**
+	 * Variant of {@link #readOutputWordsAsync(int, int, long[])} with a deadline.
+	 * The request isn't sent anymore, when the deadline is over before.
+	 *
+	 * @param start    address of the first bit
+	 * @param n        how many bits should be read
+	 * @param words    destination with at least (n + 63) / 64 elements
+	 * @param deadline System.nanoTime() when the future fails with a ModbusException
+	 * @return future of {@code words}
+	 */
+	public CompletableFuture<long[]> readOutputWordsAsync(int start, int n, long[] words, long deadline)
+	{
+		return sendRequest(newReadRequest(ModbusProtocol.F_READ_COILS, start, n), wordsDecoder(words), deadline);
 	}
 
 	/**
@@ -140,14 +938,63 @@ public class ModbusClient
 	 */
 	public BitSet readInputs(int start, int n) throws IOException, ModbusException
 	{
-		ModbusMessage req = new ModbusMessage(ModbusProtocol.F_READ_DISCRETE_INPUTS);
-		req.addDataShort((short) start);
-		req.addDataShort((short) n);
+		return await(readInputsAsync(start, n));
+	}
 
-		ModbusMessage res = sendRequest(req);
+	/**
+	 * Asynchronous variant of {@link #readInputs(int, int)}.
+	 *
+	 * @param start address of the first bit
+	 * @param n     how many bits should be read
+	 * @return future of the bit set, which contains the state of the bits
+	 */
+	public CompletableFuture<BitSet> readInputsAsync(int start, int n)
+	{
+		return readBitsAsync(ModbusProtocol.F_READ_DISCRETE_INPUTS, start, n);
+	}
+
+	/**
+	 * Read {@code n} input bits beginning at {@code start} into a bit mask.
+	 * <p>
+	 * {@code n} must be between 1 and 64.
+	 *
+	 * @param start address of the first bit
+	 * @param n     how many bits should be read
+	 * @return bit mask, the first bit is the lowest bit
+	 */
+	public long readInputMask(int start, int n) throws IOException, ModbusException
+	{
+		return await(readInputWordsAsync(start, n, new long[1]))[0];
+	}
+
+	/**
+	 * Read {@code n} input bits beginning at {@code start} into packed words.
+	 * <p>
+	 * The bits are decoded from the response directly, without a BitSet.
+	 *
+	 * @param start address of the first bit
+	 * @param n     how many bits should be read
+	 * @param words destination with at least (n + 63) / 64 elements, bit i is bit (i % 64) of word i / 64
+	 * @return future of {@code words}
+	 */
+	public CompletableFuture<long[]> readInputWordsAsync(int start, int n, long[] words)
+	{
+		return readWordsAsync(ModbusProtocol.F_READ_DISCRETE_INPUTS, start, n, words);
+	}
 
-		int byte_count = res.getDataByte();
-		return BitSet.valueOf(res.getDataBytes(byte_count));
+	/**
+	 * Variant of {@link #readInputWordsAsync(int, int, long[])} with a deadline.
+	 * The request isn't sent anymore, when the deadline is over before.
+	 *
+	 * @param start    address of the first bit
+	 * @param n        how many bits should be read
+	 * @param words    destination with at least (n + 63) / 64 elements
+	 * @param deadline System.nanoTime() when the future fails with a ModbusException
+	 * @return future of {@code words}
+	 */
+	public CompletableFuture<long[]> readInputWordsAsync(int start, int n, long[] words, long deadline)
+	{
+		return sendRequest(newReadRequest(ModbusProtocol.F_READ_DISCRETE_INPUTS, start, n), wordsDecoder(words), deadline);
 	}
 
 	/**
@@ -177,63 +1024,505 @@ public class ModbusClient
 	 */
 	public void writeOutput(int addr, boolean value) throws IOException, ModbusException
 	{
-		ModbusMessage req = new ModbusMessage(ModbusProtocol.F_WRITE_SINGLE_COIL);
+		await(writeOutputAsync(addr, value));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #writeOutput(int, boolean)}.
+	 *
+	 * @param addr  the output address
+	 * @param value true -> enable the output, false -> disable the output
+	 * @return future, which completes when the server confirmed the write
+	 */
+	public CompletableFuture<Void> writeOutputAsync(int addr, boolean value)
+	{
+		return sendRequest(newWriteRequest(addr, value), res -> null);
+	}
+
+	/**
+	 * Variant of {@link #writeOutput(int, boolean)} with a deadline.
+	 *
+	 * @param addr     the output address
+	 * @param value    true -> enable the output, false -> disable the output
+	 * @param deadline System.nanoTime() when a ModbusException is thrown
+	 */
+	public void writeOutput(int addr, boolean value, long deadline) throws IOException, ModbusException
+	{
+		await(writeOutputAsync(addr, value, deadline), deadline);
+	}
+
+	/**
+	 * Variant of {@link #writeOutputAsync(int, boolean)} with a deadline.
+	 * The request isn't sent anymore, when the deadline is over before.
+	 * <p>
+	 * Note: when the deadline is over after the request has been sent,
+	 * the output may have been written nevertheless.
+	 *
+	 * @param addr     the output address
+	 * @param value    true -> enable the output, false -> disable the output
+	 * @param deadline System.nanoTime() when the future fails with a ModbusException
+	 * @return future, which completes when the server confirmed the write
+	 */
+	public CompletableFuture<Void> writeOutputAsync(int addr, boolean value, long deadline)
+	{
+		return sendRequest(newWriteRequest(addr, value), res -> null, deadline);
+	}
+
+	/**
+	 * Write {@code n} output bits beginning at {@code start} with a single request.
+	 * <p>
+	 * This function wraps the MODBUS function 0x0F
+	 * <p>
+	 * {@code n} must be between 1 and 1968.
+	 *
+	 * @param start address of the first output
+	 * @param n     how many outputs should be written
+	 * @param words new values, bit i is bit (i % 64) of word i / 64
+	 */
+	public void writeOutputs(int start, int n, long[] words) throws IOException, ModbusException
+	{
+		await(writeOutputsAsync(start, n, words));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #writeOutputs(int, int, long[])}.
+	 *
+	 * @param start address of the first output
+	 * @param n     how many outputs should be written
+	 * @param words new values, bit i is bit (i % 64) of word i / 64
+	 * @return future, which completes when the server confirmed the write,
+	 * fails with "illegal data value", when {@code n} is out of range or {@code words} are too short
+	 */
+	public CompletableFuture<Void> writeOutputsAsync(int start, int n, long[] words)
+	{
+		if (n < 1 || n > MAX_WRITE_BITS || words.length < (n + 63) / 64)
+			return illegalDataValue(ModbusProtocol.F_WRITE_MULTIPLE_COILS);
+
+		ModbusMessage req = newRequest(ModbusProtocol.F_WRITE_MULTIPLE_COILS);
+		req.addDataShort((short) start);
+		req.addDataShort((short) n);
+		req.addDataByte((byte) ((n + 7) / 8));
+		req.addDataBits(n, words);
+
+		return sendRequest(req, res -> null);
+	}
+
+	private ModbusMessage newWriteRequest(int addr, boolean value)
+	{
+		ModbusMessage req = newRequest(ModbusProtocol.F_WRITE_SINGLE_COIL);
 		req.addDataShort((short) addr);
 		req.addDataShort((short) (value ? 0xff00 : 0x0000));
+		return req;
+	}
+
+	/**
+	 * Read {@code n} holding registers beginning at {@code start}.
+	 * <p>
+	 * This function wraps the MODBUS function 0x03
+	 * <p>
+	 * {@code n} must be between 1 and 125.
+	 *
+	 * @param start address of the first register
+	 * @param n     how many registers should be read
+	 * @return the registers
+	 */
+	public short[] readHoldingRegisters(int start, int n) throws IOException, ModbusException
+	{
+		if (n < 1 || n > ReadBatcher.MAX_REGISTERS)
+			return await(illegalDataValue(ModbusProtocol.F_READ_HOLDING_REGISTERS));
+		return await(readHoldingRegistersAsync(start, n, new short[n]));
+	}
 
-		sendRequest(req);
+	/**
+	 * Read {@code n} holding registers beginning at {@code start} into {@code registers}.
+	 *
+	 * @param start     address of the first register
+	 * @param n         how many registers should be read
+	 * @param registers destination with at least n elements
+	 * @return future of {@code registers}
+	 */
+	public CompletableFuture<short[]> readHoldingRegistersAsync(int start, int n, short[] registers)
+	{
+		return readRegistersAsync(ModbusProtocol.F_READ_HOLDING_REGISTERS, start, n, registers);
 	}
 
-	private synchronized ModbusMessage sendRequest(ModbusMessage req) throws IOException, ModbusException
+	/**
+	 * Read {@code n} holding registers beginning at {@code start} as unsigned values into {@code registers}.
+	 *
+	 * @param start     address of the first register
+	 * @param n         how many registers should be read
+	 * @param registers destination with at least n elements, each between 0 and 65535
+	 * @return future of {@code registers}
+	 */
+	public CompletableFuture<int[]> readHoldingRegistersAsync(int start, int n, int[] registers)
 	{
-		// increase transaction id and avoid invalid zero
-		if (++current_transaction_ident == 0)
-			current_transaction_ident = 1;
+		return readRegistersAsync(ModbusProtocol.F_READ_HOLDING_REGISTERS, start, n, registers);
+	}
 
-		// set header fields
-		req.setTransactionIdentifier(current_transaction_ident);
+	/**
+	 * Read {@code n} input registers beginning at {@code start}.
+	 * <p>
+	 * This function wraps the MODBUS function 0x04
+	 * <p>
+	 * {@code n} must be between 1 and 125.
+	 *
+	 * @param start address of the first register
+	 * @param n     how many registers should be read
+	 * @return the registers
+	 */
+	public short[] readInputRegisters(int start, int n) throws IOException, ModbusException
+	{
+		if (n < 1 || n > ReadBatcher.MAX_REGISTERS)
+			return await(illegalDataValue(ModbusProtocol.F_READ_INPUT_REGISTERS));
+		return await(readInputRegistersAsync(start, n, new short[n]));
+	}
 
-		// send request
-		os.write(req.getBytes());
+	/**
+	 * Read {@code n} input registers beginning at {@code start} into {@code registers}.
+	 *
+	 * @param start     address of the first register
+	 * @param n         how many registers should be read
+	 * @param registers destination with at least n elements
+	 * @return future of {@code registers}
+	 */
+	public CompletableFuture<short[]> readInputRegistersAsync(int start, int n, short[] registers)
+	{
+		return readRegistersAsync(ModbusProtocol.F_READ_INPUT_REGISTERS, start, n, registers);
+	}
 
-		// receive and parse response
-		ModbusMessage res = receiveResponse();
+	/**
+	 * Read {@code n} input registers beginning at {@code start} as unsigned values into {@code registers}.
+	 *
+	 * @param start     address of the first register
+	 * @param n         how many registers should be read
+	 * @param registers destination with at least n elements, each between 0 and 65535
+	 * @return future of {@code registers}
+	 */
+	public CompletableFuture<int[]> readInputRegistersAsync(int start, int n, int[] registers)
+	{
+		return readRegistersAsync(ModbusProtocol.F_READ_INPUT_REGISTERS, start, n, registers);
+	}
 
-		// check if response is valid
-		if (req.getTransactionIdentifier() != res.getTransactionIdentifier())
-			throw new ModbusException("connection.modbus-header: transaction_ident from request differs from response");
+	/**
+	 * Write a single holding register.
+	 * <p>
+	 * This function wraps the MODBUS function 0x06
+	 *
+	 * @param addr  address of the register
+	 * @param value new value
+	 */
+	public void writeRegister(int addr, short value) throws IOException, ModbusException
+	{
+		await(writeRegisterAsync(addr, value));
+	}
 
-		if (req.getFunctionCode() != res.getFunctionCode()) {
-			// check if error is transmitted
-			if (req.getFunctionCode() + 0x80 == res.getFunctionCode())
-				throw new ModbusException(res.getFunctionCode(), res.getDataByte());
+	/**
+	 * Asynchronous variant of {@link #writeRegister(int, short)}.
+	 *
+	 * @param addr  address of the register
+	 * @param value new value
+	 * @return future, which completes when the server confirmed the write
+	 */
+	public CompletableFuture<Void> writeRegisterAsync(int addr, short value)
+	{
+		return sendRequest(newWriteRegisterRequest(addr, value), res -> null);
+	}
 
-			// well okay, then there is some other problem
-			throw new ModbusException("connection.modbus-header: unexpected function code 0x" + Integer.toHexString(res.getFunctionCode()));
+	/**
+	 * Variant of {@link #writeRegister(int, short)} with a deadline.
+	 *
+	 * @param addr     address of the register
+	 * @param value    new value
+	 * @param deadline System.nanoTime() when a ModbusException is thrown
+	 */
+	public void writeRegister(int addr, short value, long deadline) throws IOException, ModbusException
+	{
+		await(sendRequest(newWriteRegisterRequest(addr, value), res -> null, deadline), deadline);
+	}
+
+	/**
+	 * Write {@code n} holding registers beginning at {@code start} with a single request.
+	 * <p>
+	 * This function wraps the MODBUS function 0x10
+	 * <p>
+	 * {@code n} must be between 1 and 123.
+	 *
+	 * @param start  address of the first register
+	 * @param n      how many registers should be written
+	 * @param values new values
+	 */
+	public void writeRegisters(int start, int n, short[] values) throws IOException, ModbusException
+	{
+		await(writeRegistersAsync(start, n, values));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #writeRegisters(int, int, short[])}.
+	 *
+	 * @param start  address of the first register
+	 * @param n      how many registers should be written
+	 * @param values new values
+	 * @return future, which completes when the server confirmed the write,
+	 * fails with "illegal data value", when {@code n} is out of range or {@code values} are too short
+	 */
+	public CompletableFuture<Void> writeRegistersAsync(int start, int n, short[] values)
+	{
+		if (n < 1 || n > MAX_WRITE_REGISTERS || values.length < n)
+			return illegalDataValue(ModbusProtocol.F_WRITE_MULTIPLE_REGISTERS);
+
+		ModbusMessage req = newRequest(ModbusProtocol.F_WRITE_MULTIPLE_REGISTERS);
+		req.addDataShort((short) start);
+		req.addDataShort((short) n);
+		req.addDataByte((byte) (2 * n));
+		for (int i = 0; i < n; i++)
+			req.addDataShort(values[i]);
+
+		return sendRequest(req, res -> null);
+	}
+
+	private ModbusMessage newWriteRegisterRequest(int addr, short value)
+	{
+		ModbusMessage req = newRequest(ModbusProtocol.F_WRITE_SINGLE_REGISTER);
+		req.addDataShort((short) addr);
+		req.addDataShort(value);
+		return req;
+	}
+
+	private CompletableFuture<short[]> readRegistersAsync(int function_code, int start, int n, short[] registers)
+	{
+		if (n < 1 || n > ReadBatcher.MAX_REGISTERS || registers.length < n)
+			return illegalDataValue(function_code);
+
+		ReadBatcher<short[]> batcher = registerBatcher(function_code, n);
+		if (batcher != null)
+			return batcher.read(start, n, registers);
+
+		return sendRequest(newReadRequest(function_code, start, n), registersDecoder(registers));
+	}
+
+	private CompletableFuture<int[]> readRegistersAsync(int function_code, int start, int n, int[] registers)
+	{
+		if (n < 1 || n > ReadBatcher.MAX_REGISTERS || registers.length < n)
+			return illegalDataValue(function_code);
+
+		ReadBatcher<short[]> batcher = registerBatcher(function_code, n);
+		if (batcher != null) {
+			return batcher.read(start, n, new short[n]).thenApply(values -> {
+				for (int i = 0; i < n; i++)
+					registers[i] = values[i] & 0xffff;
+				return registers;
+			});
 		}
 
-		if (res.getProtocolIdentifier() != ModbusProtocol.MODBUS_PROTOCOL_IDENT)
-			throw new ModbusException("connection.modbus-header: protocol_ident should be zero");
+		return sendRequest(newReadRequest(function_code, start, n), res -> {
+			int count = (res.getDataByte() & 0xff) / 2;
+			for (int i = 0; i < count; i++)
+				registers[i] = res.getDataShort() & 0xffff;
+			return registers;
+		});
+	}
+
+	private static ModbusTransaction.Decoder<short[]> registersDecoder(short[] registers)
+	{
+		return res -> {
+			int count = (res.getDataByte() & 0xff) / 2;
+			for (int i = 0; i < count; i++)
+				registers[i] = res.getDataShort();
+			return registers;
+		};
+	}
+
+	private CompletableFuture<BitSet> readBitsAsync(int function_code, int start, int n)
+	{
+		ReadBatcher<long[]> batcher = batcher(function_code, n);
+		if (batcher != null)
+			return batcher.read(start, n, new long[(n + 63) / 64]).thenApply(BitSet::valueOf);
+
+		return sendRequest(newReadRequest(function_code, start, n), res -> {
+			int byte_count = res.getDataByte() & 0xff;
+			return BitSet.valueOf(res.getDataBytes(byte_count));
+		});
+	}
+
+	private CompletableFuture<long[]> readWordsAsync(int function_code, int start, int n, long[] words)
+	{
+		ReadBatcher<long[]> batcher = batcher(function_code, n);
+		if (batcher != null)
+			return batcher.read(start, n, words);
+
+		return sendRequest(newReadRequest(function_code, start, n), wordsDecoder(words));
+	}
+
+	/**
+	 * @return the batcher for the reads or null, if they must be sent directly
+	 */
+	private ReadBatcher<long[]> batcher(int function_code, int n)
+	{
+		// invalid reads are sent as they are, so the server can reject them
+		if (n < 1 || n > ReadBatcher.MAX_BITS)
+			return null;
+
+		return function_code == ModbusProtocol.F_READ_COILS ? coil_batcher : input_batcher;
+	}
+
+	private ReadBatcher<short[]> registerBatcher(int function_code, int n)
+	{
+		if (n < 1 || n > ReadBatcher.MAX_REGISTERS)
+			return null;
+
+		return function_code == ModbusProtocol.F_READ_HOLDING_REGISTERS ? holding_register_batcher : input_register_batcher;
+	}
+
+	private ReadBatcher<long[]> newBitBatcher(int function_code)
+	{
+		return ReadBatcher.forBits(() -> root.loop, (start, n, words) ->
+		sendRequest(newReadRequest(function_code, start, n), wordsDecoder(words)), batch_window);
+	}
+
+	private ReadBatcher<short[]> newRegisterBatcher(int function_code)
+	{
+		return ReadBatcher.forRegisters(() -> root.loop, (start, n, registers) ->
+		sendRequest(newReadRequest(function_code, start, n), registersDecoder(registers)), batch_window);
+	}
+
+	private ModbusMessage newReadRequest(int function_code, int start, int n)
+	{
+		ModbusMessage req = newRequest(function_code);
+		req.addDataShort((short) start);
+		req.addDataShort((short) n);
+		return req;
+	}
+
+	private static ModbusTransaction.Decoder<long[]> wordsDecoder(long[] words)
+	{
+		// the bits are decoded from the receive buffer directly into the words
+		return res -> {
+			int byte_count = res.getDataByte() & 0xff;
+			res.getDataBits(byte_count, words);
+			return words;
+		};
+	}
+
+	/**
+	 * Wait for the result of an asynchronous request.
+	 */
+	private static <T> T await(CompletableFuture<T> future) throws IOException, ModbusException
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for response", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Wait for the result of an asynchronous request until the deadline is over.
+	 * <p>
+	 * The future isn't cancelled, when the deadline is over, so a result shared
+	 * by other callers is still completed.
+	 *
+	 * @param future   result of the request
+	 * @param deadline System.nanoTime() when the waiting is given up
+	 * @return the result of the request
+	 * @throws ModbusException when the deadline is over or the server returned an exception
+	 * @throws IOException     when the request failed
+	 */
+	public static <T> T await(CompletableFuture<T> future, long deadline) throws IOException, ModbusException
+	{
+		try {
+			return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new ModbusException("connection.modbus: deadline exceeded");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for response", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private static IOException unwrap(ExecutionException e) throws ModbusException
+	{
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException)
+			return (IOException) cause;
+		if (cause instanceof ModbusException)
+			throw (ModbusException) cause;
+		return new IOException(cause);
+	}
+
+	private ModbusMessage newRequest(int function_code)
+	{
+		return new ModbusMessage(request_buffers.acquire(), unit_ident, function_code);
+	}
+
+	private <T> CompletableFuture<T> sendRequest(ModbusMessage req, ModbusTransaction.Decoder<T> decoder)
+	{
+		return send(new ModbusTransaction<>(req, decoder));
+	}
+
+	private <T> CompletableFuture<T> sendRequest(ModbusMessage req, ModbusTransaction.Decoder<T> decoder, long deadline)
+	{
+		return send(new ModbusTransaction<>(req, decoder, deadline));
+	}
+
+	private <T> CompletableFuture<T> send(ModbusTransaction<T> transaction)
+	{
+		// round robin over the usable connections
+		Connection[] connections = root.connections;
+		int first = root.next_connection.getAndIncrement();
+		for (int i = 0; i < connections.length; i++) {
+			if (connections[Math.floorMod(first + i, connections.length)].send(transaction))
+				return transaction.getFuture();
+		}
+
+		// fail fast, while the connections are broken
+		request_buffers.release(transaction.getRequest().getBuffer());
+		transaction.fail(new IOException("connection.modbus: not connected"));
+		return transaction.getFuture();
+	}
+
+	/**
+	 * @return delay in milliseconds before the next attempt, doubled with every attempt
+	 * and randomized, so many clients don't reconnect at the same time
+	 */
+	static long reconnectDelay(int attempts)
+	{
+		long max = Math.min(MAX_RECONNECT_DELAY, (long) MIN_RECONNECT_DELAY << Math.min(attempts, 20));
+		return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+	}
 
-		return res;
+	/**
+	 * @return future, which failed like a request, which the server rejected as illegal data value
+	 */
+	private static <T> CompletableFuture<T> illegalDataValue(int function_code)
+	{
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(new ModbusException(function_code + 0x80, ModbusProtocol.E_ILLEGAL_DATA_VALUE));
+		return future;
 	}
 
-	private ModbusMessage receiveResponse() throws IOException
+	private static boolean isResponseOf(ModbusMessage res, ModbusTransaction<?> transaction)
 	{
-		// read header
-		ByteBuffer buff = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
-		int read = 0;
-		while (read < ModbusProtocol.MBAP_HEADER_LENGTH)
-			read += is.read(buff.array(), read, ModbusProtocol.MBAP_HEADER_LENGTH - read);
+		return (res.getUnitIdentifier() & 0xff) == transaction.getUnit()
+		&& (res.getFunctionCode() & 0x7f) == transaction.getFunctionCode();
+	}
 
-		// get the length of the data from the 'length' field in the header
-		short data_length = (short) (buff.getShort(4) - 2);
+	private void checkResponse(int function_code, ModbusMessage res) throws ModbusException
+	{
+		if (function_code != res.getFunctionCode()) {
+			// check if error is transmitted
+			if (function_code + 0x80 == res.getFunctionCode())
+				throw new ModbusException(res.getFunctionCode(), res.getDataByte());
 
-		// read all data bytes
-		read = 0;
-		while (read < data_length)
-			read += is.read(buff.array(), read + ModbusProtocol.MBAP_HEADER_LENGTH, data_length - read);
+			// well okay, then there is some other problem
+			throw new ModbusException("connection.modbus-header: unexpected function code 0x" + Integer.toHexString(res.getFunctionCode()));
+		}
 
-		return new ModbusMessage(buff);
+		if (res.getProtocolIdentifier() != ModbusProtocol.MODBUS_PROTOCOL_IDENT)
+			throw new ModbusException("connection.modbus-header: protocol_ident should be zero");
 	}
 }
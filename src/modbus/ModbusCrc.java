@@ -0,0 +1,77 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The CRC-16 of Modbus RTU frames (polynomial 0xA001 reflected, initial value 0xFFFF).
+ * <p>
+ * {@link #crc16(ByteBuffer, int, int)} processes 8 bytes per step with 8 lookup tables
+ * (slicing-by-8), {@link #crc16Table(ByteBuffer, int, int)} one byte per step with a single table.
+ * The CRC is transmitted with the low byte first.
+ */
+final class ModbusCrc
+{
+	/* TABLES[k][b] is the CRC of byte b followed by k zero bytes */
+	private final static int[][] TABLES = new int[8][256];
+
+	static {
+		for (int b = 0; b < 256; b++) {
+			int crc = b;
+			for (int bit = 0; bit < 8; bit++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+			TABLES[0][b] = crc;
+		}
+		for (int k = 1; k < 8; k++)
+			for (int b = 0; b < 256; b++)
+				TABLES[k][b] = (TABLES[k - 1][b] >>> 8) ^ TABLES[0][TABLES[k - 1][b] & 0xff];
+	}
+
+	private final static int[] T0 = TABLES[0];
+	private final static int[] T1 = TABLES[1];
+	private final static int[] T2 = TABLES[2];
+	private final static int[] T3 = TABLES[3];
+	private final static int[] T4 = TABLES[4];
+	private final static int[] T5 = TABLES[5];
+	private final static int[] T6 = TABLES[6];
+	private final static int[] T7 = TABLES[7];
+
+	private ModbusCrc()
+	{
+	}
+
+	/**
+	 * @return CRC of the bytes from {@code from} (inclusive) to {@code to} (exclusive), the buffer isn't modified
+	 */
+	static int crc16(ByteBuffer buff, int from, int to)
+	{
+		int crc = 0xffff;
+		int i = from;
+
+		for (; i + 8 <= to; i += 8) {
+			// the first byte is the lowest byte of the word, like the bits of the reflected crc
+			long word = Long.reverseBytes(buff.getLong(i)) ^ crc;
+			crc = T7[(int) word & 0xff] ^ T6[(int) (word >>> 8) & 0xff]
+			^ T5[(int) (word >>> 16) & 0xff] ^ T4[(int) (word >>> 24) & 0xff]
+			^ T3[(int) (word >>> 32) & 0xff] ^ T2[(int) (word >>> 40) & 0xff]
+			^ T1[(int) (word >>> 48) & 0xff] ^ T0[(int) (word >>> 56) & 0xff];
+		}
+
+		for (; i < to; i++)
+			crc = (crc >>> 8) ^ T0[(crc ^ buff.get(i)) & 0xff];
+		return crc;
+	}
+
+	/**
+	 * Variant of {@link #crc16(ByteBuffer, int, int)}, which processes one byte per step.
+	 */
+	static int crc16Table(ByteBuffer buff, int from, int to)
+	{
+		int crc = 0xffff;
+		for (int i = from; i < to; i++)
+			crc = (crc >>> 8) ^ T0[(crc ^ buff.get(i)) & 0xff];
+		return crc;
+	}
+}
@@ -0,0 +1,204 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ModbusEventLoop runs the non-blocking I/O of one or more channels on a single thread.
+ * <p>
+ * All registered channels are served by one selector. Tasks and timers are also
+ * executed on this thread, so a handler never has to synchronize its state as long
+ * as it is only touched from the event loop.
+ * <p>
+ * Handlers must never block, otherwise all channels of the loop are blocked.
+ */
+public class ModbusEventLoop implements Runnable, Closeable
+{
+	/**
+	 * Handles the I/O events of a registered channel.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Called on the event loop when the channel is ready for the selected operations.
+		 *
+		 * @param key selection key of the channel
+		 */
+		void handle(SelectionKey key);
+	}
+
+	/* max. time in milliseconds the selector sleeps without any event or timer */
+	private final static int MAX_SELECT_TIME = 1000;
+
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final HashedWheelTimer timer = new HashedWheelTimer();
+	private volatile boolean running = true;
+
+	/**
+	 * Create and start a new event loop.
+	 *
+	 * @param name name of the event loop thread
+	 * @throws IOException when the selector can't be opened
+	 */
+	public ModbusEventLoop(String name) throws IOException
+	{
+		selector = Selector.open();
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return true if the calling thread is the thread of this event loop
+	 */
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Wait until the event loop has been stopped.
+	 *
+	 * @throws InterruptedException when the waiting thread is interrupted
+	 */
+	public void join() throws InterruptedException
+	{
+		thread.join();
+	}
+
+	/**
+	 * Run a task on the event loop. Can be called from any thread.
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Schedule a task on the event loop. Must be called from the event loop.
+	 *
+	 * @param delay time in milliseconds after the task should run
+	 * @param task  the task to run
+	 * @return handle to cancel the task
+	 */
+	public HashedWheelTimer.Timeout schedule(long delay, Runnable task)
+	{
+		return timer.schedule(delay, task);
+	}
+
+	/**
+	 * @return the selector, channels must only be registered from the event loop
+	 */
+	Selector selector()
+	{
+		return selector;
+	}
+
+	/**
+	 * Register a channel at the selector of this event loop. Can be called from any thread.
+	 *
+	 * @param channel non-blocking channel
+	 * @param ops     interest set
+	 * @param handler handler of the channel events
+	 * @return future of the selection key
+	 */
+	public CompletableFuture<SelectionKey> register(SelectableChannel channel, int ops, Handler handler)
+	{
+		CompletableFuture<SelectionKey> future = new CompletableFuture<>();
+
+		execute(() -> {
+			try {
+				future.complete(channel.register(selector, ops, handler));
+			} catch (ClosedChannelException e) {
+				future.completeExceptionally(e);
+			}
+		});
+
+		return future;
+	}
+
+	@Override
+	public void run()
+	{
+		while (running) {
+			try {
+				selector.select(nextSelectTime());
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			// handle the ready channels
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				if (!key.isValid())
+					continue;
+
+				try {
+					((Handler) key.attachment()).handle(key);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+
+			runTasks();
+			timer.expire();
+		}
+
+		try {
+			selector.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	private long nextSelectTime()
+	{
+		if (!tasks.isEmpty())
+			return 1;
+
+		// select(0) would block forever, so the timer waits at least one millisecond
+		return timer.nextDelay(MAX_SELECT_TIME);
+	}
+
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stop the event loop. The channels registered at this loop aren't closed.
+	 */
+	@Override
+	public void close()
+	{
+		running = false;
+		selector.wakeup();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,202 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Delimits the frames of a transport in a stream and encodes the messages.
+ * <p>
+ * A received frame is parsed into the MBAP layout of {@link ModbusMessage}, so the
+ * requests and responses are handled the same for every transport.
+ */
+abstract class ModbusFraming
+{
+	/* the framing of Modbus/TCP is stateless, so all connections share one instance */
+	final static ModbusFraming MBAP = new Mbap();
+
+	/**
+	 * @return true if the frames have a transaction identifier, so several transactions can be outstanding
+	 */
+	abstract boolean hasTransactionIdentifier();
+
+	/**
+	 * @param in      stream with the next frame at its position
+	 * @param request true if the stream contains requests, false for responses
+	 * @return length of the next frame, 0 if the frame isn't received completely
+	 * @throws IOException when the stream doesn't contain a valid frame
+	 */
+	abstract int frameLength(ByteBuffer in, boolean request) throws IOException;
+
+	/**
+	 * Parse the frame at the position of {@code in}. The buffer isn't modified.
+	 * The message is only valid until the next frame is parsed or the buffer is changed.
+	 *
+	 * @param length  length of the frame given by frameLength()
+	 * @param ident   transaction identifier of a frame, which doesn't have one
+	 * @param message view of the frame
+	 * @return {@code message}
+	 * @throws IOException when the frame is corrupted
+	 */
+	abstract ModbusMessage parse(ByteBuffer in, int length, short ident, ModbusMessage message) throws IOException;
+
+	/**
+	 * Encode the message into {@code out}.
+	 *
+	 * @param out destination with at least message.getFrameLength() bytes remaining
+	 */
+	abstract void write(ModbusMessage message, ByteBuffer out);
+
+	/**
+	 * Modbus/TCP: the frames are the messages themselves.
+	 */
+	private static class Mbap extends ModbusFraming
+	{
+		@Override
+		boolean hasTransactionIdentifier()
+		{
+			return true;
+		}
+
+		@Override
+		int frameLength(ByteBuffer in, boolean request) throws IOException
+		{
+			if (in.remaining() < 6)
+				return 0;
+
+			// a frame, which can't be parsed, makes the rest of the stream useless
+			int pos = in.position();
+			int length = in.getShort(pos + 4) & 0xffff;
+			// the protocol identifier of a response is checked with the response itself
+			if (request && in.getShort(pos + 2) != ModbusProtocol.MODBUS_PROTOCOL_IDENT
+			|| length < 2 || length > ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE - 6)
+				throw new IOException("connection.modbus-header: invalid header");
+
+			return in.remaining() < 6 + length ? 0 : 6 + length;
+		}
+
+		@Override
+		ModbusMessage parse(ByteBuffer in, int length, short ident, ModbusMessage message)
+		{
+			return message.wrap(in, in.position());
+		}
+
+		@Override
+		void write(ModbusMessage message, ByteBuffer out)
+		{
+			message.writeTo(out);
+		}
+	}
+
+	/**
+	 * Modbus RTU over TCP: unit identifier, function code, data and the CRC-16 with the low byte first.
+	 * <p>
+	 * The frames don't have a length field, the length is given by the function code and the byte count.
+	 * A frame is copied into an MBAP header in the scratch buffer, so an instance is used by one connection only.
+	 */
+	static class Rtu extends ModbusFraming
+	{
+		/* unit identifier, function code and CRC */
+		private final static int MIN_FRAME_LENGTH = 4;
+
+		private final ByteBuffer scratch = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+
+		@Override
+		boolean hasTransactionIdentifier()
+		{
+			return false;
+		}
+
+		@Override
+		int frameLength(ByteBuffer in, boolean request) throws IOException
+		{
+			if (in.remaining() < MIN_FRAME_LENGTH)
+				return 0;
+
+			int pos = in.position();
+			int function_code = in.get(pos + 1) & 0xff;
+			int length;
+			if (request)
+				length = requestLength(in, pos, function_code);
+			else
+				length = responseLength(in, pos, function_code);
+
+			return in.remaining() < length ? 0 : length;
+		}
+
+		/**
+		 * @return length of the request, {@code MIN_FRAME_LENGTH} while the byte count isn't received
+		 */
+		private static int requestLength(ByteBuffer in, int pos, int function_code) throws IOException
+		{
+			switch (function_code) {
+				case ModbusProtocol.F_READ_COILS:
+				case ModbusProtocol.F_READ_DISCRETE_INPUTS:
+				case ModbusProtocol.F_READ_HOLDING_REGISTERS:
+				case ModbusProtocol.F_READ_INPUT_REGISTERS:
+				case ModbusProtocol.F_WRITE_SINGLE_COIL:
+				case ModbusProtocol.F_WRITE_SINGLE_REGISTER:
+					return 8;
+				case ModbusProtocol.F_WRITE_MULTIPLE_COILS:
+				case ModbusProtocol.F_WRITE_MULTIPLE_REGISTERS:
+					// address, quantity and byte count precede the values
+					return in.remaining() < 7 ? 7 : 9 + (in.get(pos + 6) & 0xff);
+				default:
+					throw new IOException("connection.modbus-rtu: can't delimit request of function 0x" + Integer.toHexString(function_code));
+			}
+		}
+
+		private static int responseLength(ByteBuffer in, int pos, int function_code) throws IOException
+		{
+			if ((function_code & 0x80) != 0)
+				return 5;
+
+			switch (function_code) {
+				case ModbusProtocol.F_READ_COILS:
+				case ModbusProtocol.F_READ_DISCRETE_INPUTS:
+				case ModbusProtocol.F_READ_HOLDING_REGISTERS:
+				case ModbusProtocol.F_READ_INPUT_REGISTERS:
+					return 5 + (in.get(pos + 2) & 0xff);
+				case ModbusProtocol.F_WRITE_SINGLE_COIL:
+				case ModbusProtocol.F_WRITE_SINGLE_REGISTER:
+				case ModbusProtocol.F_WRITE_MULTIPLE_COILS:
+				case ModbusProtocol.F_WRITE_MULTIPLE_REGISTERS:
+					return 8;
+				default:
+					throw new IOException("connection.modbus-rtu: can't delimit response of function 0x" + Integer.toHexString(function_code));
+			}
+		}
+
+		@Override
+		ModbusMessage parse(ByteBuffer in, int length, short ident, ModbusMessage message) throws IOException
+		{
+			int pos = in.position();
+			int end = pos + length - 2;
+
+			// without a valid CRC the length of the frame and so the rest of the stream is unknown
+			int crc = (in.get(end) & 0xff) | (in.get(end + 1) & 0xff) << 8;
+			if (ModbusCrc.crc16(in, pos, end) != crc)
+				throw new IOException("connection.modbus-rtu: CRC error");
+
+			scratch.putShort(0, ident);
+			scratch.putShort(2, (short) ModbusProtocol.MODBUS_PROTOCOL_IDENT);
+			scratch.putShort(4, (short) (length - 2));
+			for (int i = pos, j = 6; i < end; i++, j++)
+				scratch.put(j, in.get(i));
+			return message.wrap(scratch, 0);
+		}
+
+		@Override
+		void write(ModbusMessage message, ByteBuffer out)
+		{
+			int start = out.position();
+			message.writeUnitTo(out);
+
+			int crc = ModbusCrc.crc16(out, start, out.position());
+			out.put((byte) crc);
+			out.put((byte) (crc >>> 8));
+		}
+	}
+}
@@ -31,127 +31,227 @@ import java.nio.ByteBuffer;
  * ----------------------------------
  * <p>
  * All stuff is transmitted in BIG ENDIAN
+ * <p>
+ * A ModbusMessage is a flyweight: it doesn't hold a copy of the frame but reads
+ * and writes the fields directly in a ByteBuffer. A request is encoded in place
+ * into its buffer, a response is parsed as a view of the receive buffer.
  */
 class ModbusMessage
 {
-	private short transaction_ident;
-	private short protocol_ident = 0;
-	private short length;
-	private byte unit_ident;
-	private byte function_code;
-	private ByteBuffer data;
+	/* offsets of the header fields in the frame */
+	private final static int TRANSACTION_IDENT = 0;
+	private final static int PROTOCOL_IDENT = 2;
+	private final static int LENGTH = 4;
+	private final static int UNIT_IDENT = 6;
+	private final static int FUNCTION_CODE = 7;
+
+	private ByteBuffer buff;
+	private int offset;
+
+	/* absolute position of the next data byte to read */
+	private int data_pos;
+
+	/**
+	 * Create an empty view, use wrap() to parse a frame.
+	 */
+	public ModbusMessage()
+	{
+	}
 
 	/**
-	 * Extract and parse a ModbusMessage from a ByteBuffer
+	 * Create a new ModbusMessage, which is encoded in place at the beginning of {@code buff}.
 	 *
-	 * @param buff
+	 * @param buff          buffer for the frame with at least MODBUS_MAX_SEGMENT_SIZE bytes
+	 * @param unit_ident    address of the unit behind a gateway
+	 * @param function_code
 	 */
-	public ModbusMessage(ByteBuffer buff)
+	public ModbusMessage(ByteBuffer buff, byte unit_ident, int function_code)
 	{
-		// extract packet
-		this.transaction_ident = buff.getShort();
-		this.protocol_ident = buff.getShort();
-		this.length = buff.getShort();
-		this.unit_ident = buff.get();
-		this.function_code = buff.get();
-		this.data = ByteBuffer.allocate(length - 2);
+		this.buff = buff;
+		this.offset = 0;
 
-		// extract data and copy it in the data buffer
-		buff.get(this.data.array(), 0, length - 2);
+		buff.putShort(TRANSACTION_IDENT, (short) 0);
+		buff.putShort(PROTOCOL_IDENT, (short) ModbusProtocol.MODBUS_PROTOCOL_IDENT);
+		buff.putShort(LENGTH, (short) 2);
+		buff.put(UNIT_IDENT, unit_ident);
+		buff.put(FUNCTION_CODE, (byte) function_code);
 	}
 
 	/**
-	 * Create a new ModbusMessage
+	 * Parse the ModbusMessage at {@code offset} in {@code buff} without copying it.
+	 * The view is only valid as long as the content of the buffer isn't changed.
 	 *
-	 * @param function_code
+	 * @param buff   buffer, which contains the whole frame
+	 * @param offset position of the frame in the buffer
+	 * @return this view
 	 */
-	public ModbusMessage(int function_code)
+	public ModbusMessage wrap(ByteBuffer buff, int offset)
 	{
-		this.function_code = (byte) function_code;
-		this.length = 2;
-		this.unit_ident = ModbusProtocol.MODBUS_UNIT_IDENT;
-		this.protocol_ident = ModbusProtocol.MODBUS_PROTOCOL_IDENT;
+		this.buff = buff;
+		this.offset = offset;
+		this.data_pos = offset + ModbusProtocol.MBAP_HEADER_LENGTH;
+		return this;
+	}
 
-		// allocate new data buffer
-		this.data = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+	/**
+	 * @return the buffer of the frame
+	 */
+	public ByteBuffer getBuffer()
+	{
+		return buff;
 	}
 
 	public void setTransactionIdentifier(short transaction_ident)
 	{
-		this.transaction_ident = transaction_ident;
+		buff.putShort(offset + TRANSACTION_IDENT, transaction_ident);
 	}
 
 	public int getFunctionCode()
 	{
-		return function_code & 0xff;
+		return buff.get(offset + FUNCTION_CODE) & 0xff;
+	}
+
+	public byte getUnitIdentifier()
+	{
+		return buff.get(offset + UNIT_IDENT);
 	}
 
 	public short getTransactionIdentifier()
 	{
-		return transaction_ident;
+		return buff.getShort(offset + TRANSACTION_IDENT);
 	}
 
 	public short getProtocolIdentifier()
 	{
-		return protocol_ident;
+		return buff.getShort(offset + PROTOCOL_IDENT);
+	}
+
+	private int getLength()
+	{
+		return buff.getShort(offset + LENGTH);
+	}
+
+	private int addData(int n)
+	{
+		int length = getLength();
+		buff.putShort(offset + LENGTH, (short) (length + n));
+		return offset + UNIT_IDENT + length;
 	}
 
 	public void addDataByte(byte b)
 	{
-		data.put(b);
-		length++;
+		buff.put(addData(1), b);
 	}
 
 	public void addDataShort(short s)
 	{
-		data.putShort(s);
-		length += 2;
+		buff.putShort(addData(2), s);
 	}
 
 	public void addDataInt(int i)
 	{
-		data.putInt(i);
-		length += 4;
+		buff.putInt(addData(4), i);
+	}
+
+	/**
+	 * Add {@code n} bits as bytes, the first bit is the lowest bit of the first byte.
+	 * The unused bits of the last byte are set to zero.
+	 *
+	 * @param n     number of bits
+	 * @param words packed bits, bit i is bit (i % 64) of word i / 64
+	 */
+	public void addDataBits(int n, long[] words)
+	{
+		int bytes = (n + 7) / 8;
+		for (int i = 0; i < bytes; i++) {
+			int b = (int) (words[i >> 3] >>> ((i & 7) << 3));
+			if (i == bytes - 1 && (n & 7) != 0)
+				b &= (1 << (n & 7)) - 1;
+			addDataByte((byte) b);
+		}
 	}
 
 	public byte getDataByte()
 	{
-		return data.get();
+		return buff.get(data_pos++);
 	}
 
 	public short getDataShort()
 	{
-		return data.getShort();
+		short s = buff.getShort(data_pos);
+		data_pos += 2;
+		return s;
 	}
 
 	public int getDataInt()
 	{
-		return data.getInt();
+		int i = buff.getInt(data_pos);
+		data_pos += 4;
+		return i;
 	}
 
 	public byte[] getDataBytes(int n)
 	{
 		byte[] bytes = new byte[n];
-		data.get(bytes, 0, n);
+		for (int i = 0; i < n; i++)
+			bytes[i] = buff.get(data_pos++);
 		return bytes;
 	}
 
-	public byte[] getBytes()
+	/**
+	 * Read {@code n} bytes of packed bits (like the response of the functions 0x01 and 0x02)
+	 * into {@code words}. The first bit is the lowest bit of the first word.
+	 *
+	 * @param n     number of bytes
+	 * @param words destination with at least (n + 7) / 8 elements
+	 */
+	public void getDataBits(int n, long[] words)
+	{
+		for (int i = 0; i < (n + 7) / 8; i++)
+			words[i] = 0;
+
+		for (int i = 0; i < n; i++)
+			words[i >> 3] |= (buff.get(data_pos++) & 0xffL) << ((i & 7) << 3);
+	}
+
+	/**
+	 * @return length of the whole frame including the header in bytes
+	 */
+	public int getFrameLength()
+	{
+		return ModbusProtocol.MBAP_HEADER_LENGTH + getLength() - 2;
+	}
+
+	/**
+	 * Copy the frame into {@code dst}.
+	 *
+	 * @param dst destination with at least getFrameLength() bytes remaining
+	 */
+	public void writeTo(ByteBuffer dst)
 	{
-		// create packet with the right size
-		ByteBuffer buff = ByteBuffer.allocate(ModbusProtocol.MBAP_HEADER_LENGTH + length - 2);
+		copy(offset, dst);
+	}
 
-		// append header
-		buff.putShort(transaction_ident);
-		buff.putShort(protocol_ident);
-		buff.putShort(length);
-		buff.put(unit_ident);
-		buff.put(function_code);
+	/**
+	 * Copy the frame without transaction identifier, protocol identifier and length into {@code dst},
+	 * i.e. the unit identifier, the function code and the data like in a RTU frame.
+	 *
+	 * @param dst destination with at least getFrameLength() - 6 bytes remaining
+	 */
+	public void writeUnitTo(ByteBuffer dst)
+	{
+		copy(offset + UNIT_IDENT, dst);
+	}
+
+	private void copy(int from, ByteBuffer dst)
+	{
+		int limit = buff.limit();
+		int position = buff.position();
 
-		// append data
-		buff.put(data.array(), 0, length - 2);
+		buff.limit(offset + getFrameLength()).position(from);
+		dst.put(buff);
 
-		return buff.array();
+		buff.limit(limit).position(position);
 	}
 
 	/**
@@ -163,19 +263,19 @@ class ModbusMessage
 	{
 		String s = "{\n";
 
-		s += "\ttrans_ident: 0x" + Integer.toHexString(transaction_ident);
-		s += "\n\tproto_ident: 0x" + Integer.toHexString(protocol_ident);
-		s += "\n\tlength: 0x" + Integer.toHexString(length);
-		s += "\n\tunit_ident: 0x" + Integer.toHexString(unit_ident & 0xff);
-		s += "\n\tfunction: 0x" + Integer.toHexString(function_code & 0xff);
+		s += "\ttrans_ident: 0x" + Integer.toHexString(getTransactionIdentifier() & 0xffff);
+		s += "\n\tproto_ident: 0x" + Integer.toHexString(getProtocolIdentifier());
+		s += "\n\tlength: 0x" + Integer.toHexString(getLength());
+		s += "\n\tunit_ident: 0x" + Integer.toHexString(buff.get(offset + UNIT_IDENT) & 0xff);
+		s += "\n\tfunction: 0x" + Integer.toHexString(getFunctionCode());
 
 		String data_string = "";
-		for (int i = 0; i < length - 2; i++)
-			data_string += "0x" + Integer.toHexString(data.get(i) & 0xff) + ", ";
-		s += "\n\tdata[" + (length - 2) + "]: " + data_string;
+		for (int i = 0; i < getLength() - 2; i++)
+			data_string += "0x" + Integer.toHexString(buff.get(offset + ModbusProtocol.MBAP_HEADER_LENGTH + i) & 0xff) + ", ";
+		s += "\n\tdata[" + (getLength() - 2) + "]: " + data_string;
 
 		s += "\n}";
 
 		return s;
 	}
-}
+}
\ No newline at end of file
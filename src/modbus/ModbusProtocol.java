@@ -19,6 +19,7 @@ class ModbusProtocol
 
 	/* using  connection.modbus on tcp, the unit identifier is useless, because
 	the addressing works with IPs, so the unit identifier is set to 0xff
+	(except the server is a gateway to other devices)
 	 */
 	public static final byte MODBUS_UNIT_IDENT = (byte) 0xff;
 
@@ -28,7 +29,12 @@ class ModbusProtocol
 	/* MODBUS functions */
 	public static final int F_READ_COILS = 0x01;
 	public static final int F_READ_DISCRETE_INPUTS = 0x02;
+	public static final int F_READ_HOLDING_REGISTERS = 0x03;
+	public static final int F_READ_INPUT_REGISTERS = 0x04;
 	public static final int F_WRITE_SINGLE_COIL = 0x05;
+	public static final int F_WRITE_SINGLE_REGISTER = 0x06;
+	public static final int F_WRITE_MULTIPLE_COILS = 0x0F;
+	public static final int F_WRITE_MULTIPLE_REGISTERS = 0x10;
 
 	/* exceptions */
 	public static final int E_ILLEGAL_FUNCTION = 0x01;
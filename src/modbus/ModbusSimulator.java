@@ -0,0 +1,672 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-process Modbus/TCP server, which simulates a PLC for load and soak tests.
+ * <p>
+ * All connections are served by one event loop. The coils, discrete inputs and registers
+ * can be changed from any thread. To simulate a real device, the responses can be delayed
+ * by a latency and a random jitter, answered with an exception code or dropped.
+ * The responses of a connection are always sent in the order of the requests.
+ * With {@link ModbusTransport#RTU} the simulator is a serial device behind a device server,
+ * which tunnels the RTU frames over TCP.
+ * <p>
+ * Supported are the functions 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x0F and 0x10.
+ */
+public class ModbusSimulator implements ModbusEventLoop.Handler
+{
+	/* max. number of values of the maps */
+	public final static int MAX_ADDRESSES = 65536;
+
+	/* max. number of delayed responses of a connection, then the connection isn't read anymore */
+	private final static int MAX_DELAYED_RESPONSES = 1024;
+
+	private final static int READ_BUFFER_SIZE = 4096;
+	private final static int WRITE_BUFFER_SIZE = 16384;
+
+	private final ModbusEventLoop loop;
+	private final boolean own_loop;
+	private final ServerSocketChannel ssocket;
+
+	/* only used by the event loop */
+	private final Set<Connection> connections = new HashSet<>();
+	private volatile int connection_count;
+
+	/* packed bits, bit i is bit (i % 64) of word i / 64 */
+	private final AtomicLongArray coils;
+	private final AtomicLongArray discrete_inputs;
+	private final int coil_count;
+	private final int discrete_input_count;
+
+	/* unsigned 16 bit values */
+	private final AtomicIntegerArray holding_registers;
+	private final AtomicIntegerArray input_registers;
+
+	private volatile int latency;
+	private volatile int jitter;
+	private volatile double exception_rate;
+	private volatile int exception_code = ModbusProtocol.E_SLAVE_DEVICE_BUSY;
+	private volatile double drop_rate;
+	private volatile ModbusTransport transport = ModbusTransport.MBAP;
+
+	/**
+	 * A response, which waits for its delay.
+	 */
+	private static class DelayedResponse
+	{
+		final ByteBuffer frame;
+		final long due;
+
+		DelayedResponse(ByteBuffer frame, long due)
+		{
+			this.frame = frame;
+			this.due = due;
+		}
+	}
+
+	private class Connection implements ModbusEventLoop.Handler
+	{
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final ByteBuffer read_buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		private final ByteBuffer write_buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		private final ByteBuffer response_buffer = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+		private final ModbusMessage request = new ModbusMessage();
+		private final ModbusFraming framing = transport.newFraming();
+
+		/* delayed responses in the order of the requests, the due times are ascending */
+		private final ArrayDeque<DelayedResponse> delayed = new ArrayDeque<>();
+		private long last_due;
+		private boolean timer_scheduled;
+
+		private final Runnable release_task = () -> {
+			timer_scheduled = false;
+			pump();
+		};
+
+		Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public void handle(SelectionKey key)
+		{
+			try {
+				// -1 when connection is closed
+				if (key.isReadable() && channel.read(read_buffer) == -1) {
+					close();
+					return;
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+
+			pump();
+		}
+
+		/**
+		 * Answer the received requests as long as there is room, move the due responses
+		 * into the write buffer and write as much as possible.
+		 */
+		private void pump()
+		{
+			if (!channel.isOpen())
+				return;
+
+			try {
+				if (!processRequests())
+					return;
+				releaseDue();
+
+				write_buffer.flip();
+				channel.write(write_buffer);
+				write_buffer.compact();
+			} catch (IOException e) {
+				close();
+				return;
+			}
+
+			int ops = 0;
+			if (canRespond() && read_buffer.hasRemaining())
+				ops |= SelectionKey.OP_READ;
+			if (write_buffer.position() > 0)
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		/**
+		 * The requests are only answered, when the response surely fits into the write buffer,
+		 * so a client, which doesn't read, is slowed down instead of filling the memory.
+		 */
+		private boolean canRespond()
+		{
+			return write_buffer.remaining() >= ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE
+			&& delayed.size() < MAX_DELAYED_RESPONSES;
+		}
+
+		/**
+		 * @return false when the connection has been closed because of an invalid frame
+		 */
+		private boolean processRequests()
+		{
+			read_buffer.flip();
+
+			while (canRespond()) {
+				int length;
+				ModbusMessage req;
+				try {
+					length = framing.frameLength(read_buffer, true);
+					if (length == 0)
+						break;
+					req = framing.parse(read_buffer, length, (short) 0, request);
+				} catch (IOException e) {
+					// a frame, which can't be parsed, makes the rest of the stream useless
+					close();
+					return false;
+				}
+
+				respond(req, req.getFrameLength() - ModbusProtocol.MBAP_HEADER_LENGTH);
+				read_buffer.position(read_buffer.position() + length);
+			}
+
+			read_buffer.compact();
+			return true;
+		}
+
+		private void respond(ModbusMessage req, int data_length)
+		{
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (drop_rate > 0 && random.nextDouble() < drop_rate)
+				return;
+
+			int function_code = req.getFunctionCode();
+			ModbusMessage res = new ModbusMessage(response_buffer, req.getUnitIdentifier(), function_code);
+			res.setTransactionIdentifier(req.getTransactionIdentifier());
+
+			int code;
+			if (exception_rate > 0 && random.nextDouble() < exception_rate)
+				code = exception_code;
+			else
+				code = execute(req, data_length, res);
+
+			if (code != 0) {
+				res = new ModbusMessage(response_buffer, req.getUnitIdentifier(), function_code | 0x80);
+				res.setTransactionIdentifier(req.getTransactionIdentifier());
+				res.addDataByte((byte) code);
+			}
+
+			int delay = latency;
+			if (jitter > 0)
+				delay += random.nextInt(jitter + 1);
+
+			if (delay == 0 && delayed.isEmpty()) {
+				framing.write(res, write_buffer);
+				return;
+			}
+
+			// a response is never sent before the response of an earlier request
+			long due = Math.max(System.nanoTime() + delay * 1000000L, last_due);
+			last_due = due;
+
+			ByteBuffer frame = ByteBuffer.allocate(res.getFrameLength());
+			framing.write(res, frame);
+			delayed.add(new DelayedResponse(frame.flip(), due));
+		}
+
+		private void releaseDue()
+		{
+			long now = System.nanoTime();
+
+			DelayedResponse next;
+			while ((next = delayed.peek()) != null && next.due - now <= 0 && write_buffer.remaining() >= next.frame.remaining())
+				write_buffer.put(delayed.poll().frame);
+
+			// a response, which is due but doesn't fit, is released by the next write
+			if (next != null && next.due - now > 0 && !timer_scheduled) {
+				timer_scheduled = true;
+				loop.schedule((next.due - now + 999999) / 1000000, release_task);
+			}
+		}
+
+		void close()
+		{
+			connections.remove(this);
+			connection_count = connections.size();
+			delayed.clear();
+
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	/**
+	 * Start a simulator with the max. number of coils, discrete inputs and registers on its own event loop.
+	 *
+	 * @param port port of the modbus server, 0 for any free port
+	 * @throws IOException when the port can't be opened
+	 */
+	public ModbusSimulator(int port) throws IOException
+	{
+		this(port, null, MAX_ADDRESSES, MAX_ADDRESSES, MAX_ADDRESSES, MAX_ADDRESSES);
+	}
+
+	/**
+	 * Start a simulator.
+	 *
+	 * @param port                port of the modbus server, 0 for any free port
+	 * @param loop                event loop for the I/O or null to use an own event loop
+	 * @param coils               number of coils
+	 * @param discrete_inputs     number of discrete inputs
+	 * @param holding_registers   number of holding registers
+	 * @param input_registers     number of input registers
+	 * @throws IOException when the port can't be opened
+	 */
+	public ModbusSimulator(int port, ModbusEventLoop loop, int coils, int discrete_inputs,
+	int holding_registers, int input_registers) throws IOException
+	{
+		this.coils = new AtomicLongArray((coils + 63) / 64);
+		this.discrete_inputs = new AtomicLongArray((discrete_inputs + 63) / 64);
+		this.coil_count = coils;
+		this.discrete_input_count = discrete_inputs;
+		this.holding_registers = new AtomicIntegerArray(holding_registers);
+		this.input_registers = new AtomicIntegerArray(input_registers);
+
+		this.own_loop = loop == null;
+		this.loop = own_loop ? new ModbusEventLoop("modbus-simulator") : loop;
+
+		ssocket = ServerSocketChannel.open();
+		ssocket.bind(new InetSocketAddress(port));
+		ssocket.configureBlocking(false);
+		this.loop.register(ssocket, SelectionKey.OP_ACCEPT, this);
+	}
+
+	/**
+	 * @return the port the simulator listens on
+	 */
+	public int getPort() throws IOException
+	{
+		return ((InetSocketAddress) ssocket.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return number of open client connections
+	 */
+	public int getConnectionCount()
+	{
+		return connection_count;
+	}
+
+	/**
+	 * Delay every response by a fixed time plus a random jitter.
+	 *
+	 * @param latency fixed delay in milliseconds
+	 * @param jitter  max. additional random delay in milliseconds
+	 */
+	public void setLatency(int latency, int jitter)
+	{
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Answer a part of the requests with an exception instead of executing them.
+	 *
+	 * @param rate probability between 0 and 1
+	 * @param code exception code of the responses, e.g. 0x06 slave device busy
+	 */
+	public void setExceptions(double rate, int code)
+	{
+		this.exception_code = code;
+		this.exception_rate = rate;
+	}
+
+	/**
+	 * Set the framing of the connections, which are accepted afterwards.
+	 *
+	 * @param transport Modbus/TCP (default) or RTU over TCP
+	 */
+	public void setTransport(ModbusTransport transport)
+	{
+		this.transport = transport;
+	}
+
+	/**
+	 * Ignore a part of the requests, so the client runs into its timeout.
+	 *
+	 * @param rate probability between 0 and 1
+	 */
+	public void setDropRate(double rate)
+	{
+		this.drop_rate = rate;
+	}
+
+	public boolean getCoil(int addr)
+	{
+		return getBit(coils, addr);
+	}
+
+	public void setCoil(int addr, boolean value)
+	{
+		setBit(coils, addr, value);
+	}
+
+	public boolean getDiscreteInput(int addr)
+	{
+		return getBit(discrete_inputs, addr);
+	}
+
+	public void setDiscreteInput(int addr, boolean value)
+	{
+		setBit(discrete_inputs, addr, value);
+	}
+
+	public int getHoldingRegister(int addr)
+	{
+		return holding_registers.get(addr);
+	}
+
+	public void setHoldingRegister(int addr, int value)
+	{
+		holding_registers.set(addr, value & 0xffff);
+	}
+
+	public int getInputRegister(int addr)
+	{
+		return input_registers.get(addr);
+	}
+
+	public void setInputRegister(int addr, int value)
+	{
+		input_registers.set(addr, value & 0xffff);
+	}
+
+	private static boolean getBit(AtomicLongArray bits, int addr)
+	{
+		return (bits.get(addr >> 6) & (1L << addr)) != 0;
+	}
+
+	private static void setBit(AtomicLongArray bits, int addr, boolean value)
+	{
+		long mask = 1L << addr;
+		if (value)
+			bits.getAndAccumulate(addr >> 6, mask, (word, m) -> word | m);
+		else
+			bits.getAndAccumulate(addr >> 6, mask, (word, m) -> word & ~m);
+	}
+
+	/**
+	 * @return {@code n} (at most 8) bits beginning at {@code addr}
+	 */
+	private static byte getBits(AtomicLongArray bits, int addr, int n)
+	{
+		int shift = addr & 63;
+		long value = bits.get(addr >> 6) >>> shift;
+		if (shift > 56 && (addr >> 6) + 1 < bits.length())
+			value |= bits.get((addr >> 6) + 1) << (64 - shift);
+		return (byte) (value & ((1 << n) - 1));
+	}
+
+	/**
+	 * Execute a request and add the data of the response.
+	 *
+	 * @return 0 or the exception code
+	 */
+	private int execute(ModbusMessage req, int data_length, ModbusMessage res)
+	{
+		int function_code = req.getFunctionCode();
+		if (!isSupported(function_code))
+			return ModbusProtocol.E_ILLEGAL_FUNCTION;
+
+		// all supported requests begin with an address and a quantity or value
+		if (data_length < 4)
+			return ModbusProtocol.E_ILLEGAL_DATA_VALUE;
+
+		int start = req.getDataShort() & 0xffff;
+		int n = req.getDataShort() & 0xffff;
+
+		switch (function_code) {
+			case ModbusProtocol.F_READ_COILS:
+				return readBits(coils, coil_count, start, n, res);
+			case ModbusProtocol.F_READ_DISCRETE_INPUTS:
+				return readBits(discrete_inputs, discrete_input_count, start, n, res);
+			case ModbusProtocol.F_READ_HOLDING_REGISTERS:
+				return readRegisters(holding_registers, start, n, res);
+			case ModbusProtocol.F_READ_INPUT_REGISTERS:
+				return readRegisters(input_registers, start, n, res);
+
+			case ModbusProtocol.F_WRITE_SINGLE_COIL:
+				// n is the value, only 0xff00 and 0x0000 are valid
+				if (n != 0xff00 && n != 0)
+					return ModbusProtocol.E_ILLEGAL_DATA_VALUE;
+				if (start >= coil_count)
+					return ModbusProtocol.E_ILLEGAL_DATA_ADDRESS;
+				setCoil(start, n != 0);
+				break;
+
+			case ModbusProtocol.F_WRITE_SINGLE_REGISTER:
+				if (start >= holding_registers.length())
+					return ModbusProtocol.E_ILLEGAL_DATA_ADDRESS;
+				setHoldingRegister(start, n);
+				break;
+
+			case ModbusProtocol.F_WRITE_MULTIPLE_COILS: {
+				int bytes = data_length > 4 ? req.getDataByte() & 0xff : -1;
+				if (n < 1 || n > 0x7b0 || bytes != (n + 7) / 8 || data_length < 5 + bytes)
+					return ModbusProtocol.E_ILLEGAL_DATA_VALUE;
+				if (start + n > coil_count)
+					return ModbusProtocol.E_ILLEGAL_DATA_ADDRESS;
+
+				for (int i = 0; i < bytes; i++) {
+					int b = req.getDataByte();
+					for (int j = 0; j < 8 && i * 8 + j < n; j++)
+						setCoil(start + i * 8 + j, (b & (1 << j)) != 0);
+				}
+				break;
+			}
+
+			case ModbusProtocol.F_WRITE_MULTIPLE_REGISTERS: {
+				int bytes = data_length > 4 ? req.getDataByte() & 0xff : -1;
+				if (n < 1 || n > 0x7b || bytes != 2 * n || data_length < 5 + bytes)
+					return ModbusProtocol.E_ILLEGAL_DATA_VALUE;
+				if (start + n > holding_registers.length())
+					return ModbusProtocol.E_ILLEGAL_DATA_ADDRESS;
+
+				for (int i = 0; i < n; i++)
+					setHoldingRegister(start + i, req.getDataShort());
+				break;
+			}
+
+			default:
+				return ModbusProtocol.E_ILLEGAL_FUNCTION;
+		}
+
+		// the writes are confirmed with the address and the value or the quantity
+		res.addDataShort((short) start);
+		res.addDataShort((short) n);
+		return 0;
+	}
+
+	private static boolean isSupported(int function_code)
+	{
+		return function_code >= ModbusProtocol.F_READ_COILS && function_code <= ModbusProtocol.F_WRITE_SINGLE_REGISTER
+		|| function_code == ModbusProtocol.F_WRITE_MULTIPLE_COILS || function_code == ModbusProtocol.F_WRITE_MULTIPLE_REGISTERS;
+	}
+
+	private static int readBits(AtomicLongArray bits, int count, int start, int n, ModbusMessage res)
+	{
+		if (n < 1 || n > ReadBatcher.MAX_BITS)
+			return ModbusProtocol.E_ILLEGAL_DATA_VALUE;
+		if (start + n > count)
+			return ModbusProtocol.E_ILLEGAL_DATA_ADDRESS;
+
+		res.addDataByte((byte) ((n + 7) / 8));
+		for (int i = 0; i < n; i += 8)
+			res.addDataByte(getBits(bits, start + i, Math.min(8, n - i)));
+		return 0;
+	}
+
+	private static int readRegisters(AtomicIntegerArray registers, int start, int n, ModbusMessage res)
+	{
+		if (n < 1 || n > ReadBatcher.MAX_REGISTERS)
+			return ModbusProtocol.E_ILLEGAL_DATA_VALUE;
+		if (start + n > registers.length())
+			return ModbusProtocol.E_ILLEGAL_DATA_ADDRESS;
+
+		res.addDataByte((byte) (2 * n));
+		for (int i = 0; i < n; i++)
+			res.addDataShort((short) registers.get(start + i));
+		return 0;
+	}
+
+	/**
+	 * Accept new connections.
+	 */
+	@Override
+	public void handle(SelectionKey key)
+	{
+		SocketChannel channel;
+		try {
+			while ((channel = ssocket.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				Connection connection = new Connection(channel);
+				connection.key = channel.register(key.selector(), SelectionKey.OP_READ, connection);
+				connections.add(connection);
+				connection_count = connections.size();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop the simulator and close all connections.
+	 */
+	public void close()
+	{
+		loop.execute(() -> {
+			try {
+				ssocket.close();
+			} catch (IOException ignore) {
+			}
+
+			for (Connection connection : connections.toArray(new Connection[0]))
+				connection.close();
+
+			if (own_loop)
+				loop.close();
+		});
+	}
+
+	private static void printHelp()
+	{
+		System.out.println("usage: java -cp wutmodbus.jar modbus.ModbusSimulator [port] {options}\n" +
+		"   options:\n" +
+		"      -coils=[n]               -   number of coils (default 65536)\n" +
+		"      -inputs=[n]              -   number of discrete inputs (default 65536)\n" +
+		"      -holding=[n]             -   number of holding registers (default 65536)\n" +
+		"      -registers=[n]           -   number of input registers (default 65536)\n" +
+		"      -latency=[ms]            -   delay of every response\n" +
+		"      -jitter=[ms]             -   max. additional random delay of a response\n" +
+		"      -exceptions=[rate[:code]] -  probability of an exception response (default code 6, busy)\n" +
+		"      -drop=[rate]             -   probability of a dropped response\n" +
+		"      -rtu                     -   RTU frames over TCP instead of Modbus/TCP");
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int port = ModbusProtocol.MODBUS_DEFAULT_PORT;
+		int coils = MAX_ADDRESSES;
+		int inputs = MAX_ADDRESSES;
+		int holding = MAX_ADDRESSES;
+		int registers = MAX_ADDRESSES;
+		int latency = 0;
+		int jitter = 0;
+		double exception_rate = 0;
+		int exception_code = ModbusProtocol.E_SLAVE_DEVICE_BUSY;
+		double drop_rate = 0;
+		ModbusTransport transport = ModbusTransport.MBAP;
+
+		try {
+			for (String arg : args) {
+				if (!arg.startsWith("-")) {
+					port = Integer.parseInt(arg);
+					continue;
+				}
+
+				String option = arg.contains("=") ? arg.substring(1, arg.indexOf('=')) : arg.substring(1);
+				String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+
+				switch (option) {
+					case "coils":
+						coils = Integer.parseInt(value);
+						break;
+					case "inputs":
+						inputs = Integer.parseInt(value);
+						break;
+					case "holding":
+						holding = Integer.parseInt(value);
+						break;
+					case "registers":
+						registers = Integer.parseInt(value);
+						break;
+					case "latency":
+						latency = Integer.parseInt(value);
+						break;
+					case "jitter":
+						jitter = Integer.parseInt(value);
+						break;
+					case "exceptions":
+						String rate[] = value.split(":");
+						exception_rate = Double.parseDouble(rate[0]);
+						if (rate.length > 1)
+							exception_code = Integer.parseInt(rate[1]);
+						break;
+					case "drop":
+						drop_rate = Double.parseDouble(value);
+						break;
+					case "rtu":
+						transport = ModbusTransport.RTU;
+						break;
+					default:
+						printHelp();
+						return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			printHelp();
+			return;
+		}
+
+		ModbusSimulator simulator = new ModbusSimulator(port, null, coils, inputs, holding, registers);
+		simulator.setLatency(latency, jitter);
+		simulator.setExceptions(exception_rate, exception_code);
+		simulator.setDropRate(drop_rate);
+		simulator.setTransport(transport);
+
+		System.out.println("modbus simulator started on port " + simulator.getPort());
+		simulator.loop.join();
+	}
+}
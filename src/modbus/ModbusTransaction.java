@@ -0,0 +1,148 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A ModbusTransaction is a request which is sent to the server and
+ * waits for its response. The response is matched to the transaction
+ * by the transaction identifier of the MBAP header.
+ * <p>
+ * Except of the future, a transaction is only accessed from the event loop.
+ */
+class ModbusTransaction<T>
+{
+	/**
+	 * Extracts the result from the response.
+	 * The response is only a view of the receive buffer, so it must not be kept.
+	 */
+	interface Decoder<T>
+	{
+		T decode(ModbusMessage res) throws ModbusException;
+	}
+
+	private final ModbusMessage request;
+	private final int function_code;
+	private final int unit;
+	private final Decoder<T> decoder;
+	private final CompletableFuture<T> future = new CompletableFuture<>();
+	private final long deadline;
+	private final boolean has_deadline;
+	private HashedWheelTimer.Timeout timeout;
+
+	/* System.nanoTime() when the request was written */
+	private long sent_time;
+
+	ModbusTransaction(ModbusMessage request, Decoder<T> decoder)
+	{
+		this(request, decoder, 0, false);
+	}
+
+	/**
+	 * @param deadline System.nanoTime() when the caller stops waiting for the result
+	 */
+	ModbusTransaction(ModbusMessage request, Decoder<T> decoder, long deadline)
+	{
+		this(request, decoder, deadline, true);
+	}
+
+	private ModbusTransaction(ModbusMessage request, Decoder<T> decoder, long deadline, boolean has_deadline)
+	{
+		this.request = request;
+		this.function_code = request.getFunctionCode();
+		this.unit = request.getUnitIdentifier() & 0xff;
+		this.decoder = decoder;
+		this.deadline = deadline;
+		this.has_deadline = has_deadline;
+	}
+
+	/**
+	 * @return the request, which is only valid until it has been sent
+	 */
+	ModbusMessage getRequest()
+	{
+		return request;
+	}
+
+	int getFunctionCode()
+	{
+		return function_code;
+	}
+
+	/**
+	 * @return unit identifier of the request, between 0 and 255
+	 */
+	int getUnit()
+	{
+		return unit;
+	}
+
+	CompletableFuture<T> getFuture()
+	{
+		return future;
+	}
+
+	/**
+	 * @param timeout max. time in milliseconds to wait for the response
+	 * @return time in milliseconds until the transaction expires, 0 when the deadline is over
+	 */
+	long remainingTime(long timeout)
+	{
+		if (!has_deadline)
+			return timeout;
+
+		long remaining = (deadline - System.nanoTime()) / 1000000L;
+		return Math.max(0, Math.min(remaining, timeout));
+	}
+
+	void setSentTime(long sent_time)
+	{
+		this.sent_time = sent_time;
+	}
+
+	long getSentTime()
+	{
+		return sent_time;
+	}
+
+	void setTimeout(HashedWheelTimer.Timeout timeout)
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Called when the response for this transaction arrived.
+	 *
+	 * @param response the received response
+	 */
+	void complete(ModbusMessage response)
+	{
+		cancelTimeout();
+
+		// decode while the response is still in the receive buffer
+		try {
+			future.complete(decoder.decode(response));
+		} catch (ModbusException | RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Called when the transaction can't be completed anymore (e.g. the connection was lost).
+	 *
+	 * @param error reason of the failure
+	 */
+	void fail(Exception error)
+	{
+		cancelTimeout();
+		future.completeExceptionally(error);
+	}
+
+	private void cancelTimeout()
+	{
+		if (timeout != null)
+			timeout.cancel();
+	}
+}
\ No newline at end of file
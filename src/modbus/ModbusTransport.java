@@ -0,0 +1,30 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+/**
+ * The framing of the modbus messages on a TCP connection.
+ */
+public enum ModbusTransport
+{
+	/**
+	 * Modbus/TCP: each frame starts with the MBAP header, the responses are matched by the transaction identifier.
+	 */
+	MBAP,
+
+	/**
+	 * Modbus RTU frames tunneled over TCP, e.g. by serial device servers: unit identifier, function code,
+	 * data and the CRC-16. The frames don't have a transaction identifier, so only one transaction
+	 * is outstanding on a connection.
+	 */
+	RTU;
+
+	/**
+	 * @return framing for one connection
+	 */
+	ModbusFraming newFraming()
+	{
+		return this == RTU ? new ModbusFraming.Rtu() : ModbusFraming.MBAP;
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Collects the reads of one function code for a short window and merges
+ * overlapping and adjacent ranges into as few requests as possible.
+ * <p>
+ * Ranges with a gap between them aren't merged, because the addresses
+ * of the gap may not exist on the server, which would fail all reads.
+ *
+ * @param <A> type of the destination array, long[] for packed bits, short[] for registers
+ */
+class ReadBatcher<A>
+{
+	/**
+	 * Reads a range of bits or registers from the server.
+	 */
+	interface Reader<A>
+	{
+		CompletableFuture<A> read(int start, int n, A dst);
+	}
+
+	/**
+	 * Copies {@code n} elements beginning at {@code offset} of a merged response.
+	 */
+	interface Slicer<A>
+	{
+		void copy(A src, int offset, A dst, int n);
+	}
+
+	/* max. number of bits in a single read request */
+	final static int MAX_BITS = 2000;
+
+	/* max. number of registers in a single read request */
+	final static int MAX_REGISTERS = 125;
+
+	private class Read
+	{
+		final int start;
+		final int n;
+		final A dst;
+		final CompletableFuture<A> future = new CompletableFuture<>();
+
+		Read(int start, int n, A dst)
+		{
+			this.start = start;
+			this.n = n;
+			this.dst = dst;
+		}
+	}
+
+	private final Supplier<ModbusEventLoop> loop;
+	private final Reader<A> reader;
+	private final int window;
+	private final int max_count;
+	private final IntFunction<A> allocator;
+	private final Slicer<A> slicer;
+
+	/* reads of the current window, filled by any thread */
+	private final Queue<Read> queued = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable flush_task = this::flush;
+
+	/**
+	 * @param loop      supplies the event loop, which sends the merged requests, null while the client is disconnected
+	 * @param reader    sends a single request
+	 * @param window    time in milliseconds to collect the reads,
+	 *                  0 merges only reads, which are queued before the loop runs again
+	 * @param max_count max. number of elements in a single request
+	 * @param allocator creates the destination of a merged request for n elements
+	 * @param slicer    copies the range of a read out of a merged response
+	 */
+	ReadBatcher(Supplier<ModbusEventLoop> loop, Reader<A> reader, int window, int max_count, IntFunction<A> allocator, Slicer<A> slicer)
+	{
+		this.loop = loop;
+		this.reader = reader;
+		this.window = window;
+		this.max_count = max_count;
+		this.allocator = allocator;
+		this.slicer = slicer;
+	}
+
+	/**
+	 * @return batcher for bits packed into words
+	 */
+	static ReadBatcher<long[]> forBits(Supplier<ModbusEventLoop> loop, Reader<long[]> reader, int window)
+	{
+		return new ReadBatcher<>(loop, reader, window, MAX_BITS, n -> new long[(n + 63) / 64], ReadBatcher::copyBits);
+	}
+
+	/**
+	 * @return batcher for registers
+	 */
+	static ReadBatcher<short[]> forRegisters(Supplier<ModbusEventLoop> loop, Reader<short[]> reader, int window)
+	{
+		return new ReadBatcher<>(loop, reader, window, MAX_REGISTERS, short[]::new,
+		(src, offset, dst, n) -> System.arraycopy(src, offset, dst, 0, n));
+	}
+
+	/**
+	 * @return max. number of elements of a single read
+	 */
+	int getMaxCount()
+	{
+		return max_count;
+	}
+
+	/**
+	 * Queue a read. Can be called from any thread.
+	 *
+	 * @param start address of the first element
+	 * @param n     how many elements should be read, at most getMaxCount()
+	 * @param dst   destination for n elements
+	 * @return future of {@code dst}
+	 */
+	CompletableFuture<A> read(int start, int n, A dst)
+	{
+		Read read = new Read(start, n, dst);
+		ModbusEventLoop loop = this.loop.get();
+		if (loop == null) {
+			read.future.completeExceptionally(new IOException("connection.modbus: not connected"));
+			return read.future;
+		}
+		queued.add(read);
+
+		// the first read of a window schedules the flush
+		if (scheduled.compareAndSet(false, true)) {
+			if (window > 0)
+				loop.execute(() -> loop.schedule(window, flush_task));
+			else
+				loop.execute(flush_task);
+		}
+
+		return read.future;
+	}
+
+	private void flush()
+	{
+		scheduled.set(false);
+
+		List<Read> reads = new ArrayList<>();
+		Read read;
+		while ((read = queued.poll()) != null)
+			reads.add(read);
+		if (reads.isEmpty())
+			return;
+
+		reads.sort(Comparator.comparingInt(r -> r.start));
+
+		// merge the sorted ranges as long as they touch and fit into a request
+		int first = 0;
+		int end = reads.get(0).start + reads.get(0).n;
+		for (int i = 1; i < reads.size(); i++) {
+			Read next = reads.get(i);
+			int merged_end = Math.max(end, next.start + next.n);
+
+			if (next.start > end || merged_end - reads.get(first).start > max_count) {
+				send(reads.subList(first, i), end);
+				first = i;
+				merged_end = next.start + next.n;
+			}
+			end = merged_end;
+		}
+		send(reads.subList(first, reads.size()), end);
+	}
+
+	/**
+	 * Send one request for the sorted reads and hand each read its slice.
+	 */
+	private void send(List<Read> group, int end)
+	{
+		// a single read is decoded directly into its destination
+		if (group.size() == 1) {
+			Read read = group.get(0);
+			reader.read(read.start, read.n, read.dst).whenComplete((dst, error) -> {
+				if (error != null)
+					read.future.completeExceptionally(error);
+				else
+					read.future.complete(dst);
+			});
+			return;
+		}
+
+		List<Read> reads = new ArrayList<>(group);
+		int start = reads.get(0).start;
+		int n = end - start;
+
+		reader.read(start, n, allocator.apply(n)).whenComplete((merged, error) -> {
+			for (Read read : reads) {
+				if (error != null) {
+					read.future.completeExceptionally(error);
+					continue;
+				}
+
+				slicer.copy(merged, read.start - start, read.dst, read.n);
+				read.future.complete(read.dst);
+			}
+		});
+	}
+
+	/**
+	 * Copy {@code n} bits beginning at bit {@code offset} of {@code src} to {@code dst}.
+	 */
+	static void copyBits(long[] src, int offset, long[] dst, int n)
+	{
+		int count = (n + 63) / 64;
+		int shift = offset & 63;
+
+		for (int i = 0; i < count; i++) {
+			int word = (offset >> 6) + i;
+			long value = src[word] >>> shift;
+			if (shift != 0 && word + 1 < src.length)
+				value |= src[word + 1] << (64 - shift);
+			dst[i] = value;
+		}
+
+		// clear the bits behind the range
+		if ((n & 63) != 0)
+			dst[count - 1] &= (1L << n) - 1;
+	}
+}
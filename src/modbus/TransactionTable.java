@@ -0,0 +1,125 @@
+/**
+ * @author Maximilian Etti
+ */
+package modbus;
+
+/**
+ * The outstanding transactions of a connection by their transaction identifier.
+ * <p>
+ * The slot of a transaction is its identifier masked by the size of the table. The identifiers
+ * are chosen by {@link #nextIdentifier(short)} so that no two transactions share a slot,
+ * thus neither keys are boxed nor entries are allocated per transaction.
+ * The table grows when all slots are in use. It isn't thread-safe.
+ */
+final class TransactionTable
+{
+	private final static int INITIAL_CAPACITY = 64;
+	private final static int MAX_CAPACITY = 1 << 16;
+
+	private ModbusTransaction<?>[] transactions = new ModbusTransaction<?>[INITIAL_CAPACITY];
+	private short[] idents = new short[INITIAL_CAPACITY];
+	private int size;
+
+	int size()
+	{
+		return size;
+	}
+
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @param last the previous identifier
+	 * @return the next identifier after {@code last}, which isn't zero and whose slot is free
+	 */
+	short nextIdentifier(short last)
+	{
+		if (size == transactions.length)
+			grow();
+
+		short ident = last;
+		do {
+			if (++ident == 0)
+				ident = 1;
+		} while (transactions[ident & (transactions.length - 1)] != null);
+		return ident;
+	}
+
+	/**
+	 * @param ident identifier from {@link #nextIdentifier(short)}
+	 */
+	void put(short ident, ModbusTransaction<?> transaction)
+	{
+		int slot = ident & (transactions.length - 1);
+		if (transactions[slot] != null)
+			throw new IllegalStateException("transaction slot 0x" + Integer.toHexString(slot) + " in use");
+
+		transactions[slot] = transaction;
+		idents[slot] = ident;
+		size++;
+	}
+
+	/**
+	 * @return the transaction or null, when there is no transaction with this identifier
+	 */
+	ModbusTransaction<?> get(short ident)
+	{
+		int slot = ident & (transactions.length - 1);
+		return idents[slot] == ident ? transactions[slot] : null;
+	}
+
+	/**
+	 * @return the removed transaction or null, when there is no transaction with this identifier
+	 */
+	ModbusTransaction<?> remove(short ident)
+	{
+		int slot = ident & (transactions.length - 1);
+		ModbusTransaction<?> transaction = transactions[slot];
+		if (transaction == null || idents[slot] != ident)
+			return null;
+
+		transactions[slot] = null;
+		size--;
+		return transaction;
+	}
+
+	/**
+	 * Fail and remove all transactions.
+	 */
+	void failAll(Exception reason)
+	{
+		for (int slot = 0; size > 0 && slot < transactions.length; slot++) {
+			ModbusTransaction<?> transaction = transactions[slot];
+			if (transaction == null)
+				continue;
+
+			transactions[slot] = null;
+			size--;
+			transaction.fail(reason);
+		}
+	}
+
+	/**
+	 * Double the capacity, the identifiers of different slots stay in different slots.
+	 */
+	private void grow()
+	{
+		if (transactions.length == MAX_CAPACITY)
+			throw new IllegalStateException("too many outstanding transactions");
+
+		ModbusTransaction<?>[] old_transactions = transactions;
+		short[] old_idents = idents;
+		transactions = new ModbusTransaction<?>[old_transactions.length * 2];
+		idents = new short[transactions.length];
+
+		for (int slot = 0; slot < old_transactions.length; slot++) {
+			if (old_transactions[slot] == null)
+				continue;
+			int new_slot = old_idents[slot] & (transactions.length - 1);
+			transactions[new_slot] = old_transactions[slot];
+			idents[new_slot] = old_idents[slot];
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Maps the WUT ports of the digital inputs or outputs to modbus addresses.
+ * <p>
+ * A map is given by blocks of adjacent addresses, e.g. {@code "0:16"} or {@code "100:8,!200:8,32=300:64"}:
+ * <pre>
+ * [port=][!]address[:count]
+ * </pre>
+ * Each block maps {@code count} (default 16) addresses to the WUT ports starting at {@code port},
+ * by default the port after the previous block. A block with {@code !} is inverted.
+ * <p>
+ * The map is compiled once into the modbus requests, which read all blocks with as few frames
+ * as possible, and into a table of bit moves. Each move copies up to 64 bits from a frame to the
+ * image of the WUT ports with a shift and a mask, so an image is translated word by word.
+ */
+public class ChannelMap
+{
+	/* max. number of WUT ports */
+	public final static int MAX_CHANNELS = 2048;
+
+	/* max. number of bits of a read request */
+	final static int MAX_FRAME_BITS = 2000;
+
+	/* default number of addresses of a block */
+	private final static int DEFAULT_COUNT = 16;
+
+	/**
+	 * Reads {@code n} bits starting at {@code start} packed into {@code words},
+	 * e.g. {@code client::readInputWordsAsync}.
+	 */
+	public interface Reader
+	{
+		CompletableFuture<long[]> read(int start, int n, long[] words);
+	}
+
+	private final int count;
+
+	/* the frames to read */
+	final int[] frame_addresses;
+	final int[] frame_counts;
+
+	/* the bit moves, one entry per move */
+	private final int[] move_frames;
+	private final int[] move_source_words;
+	private final int[] move_source_shifts;
+	private final int[] move_target_words;
+	private final int[] move_target_shifts;
+	private final long[] move_masks;
+	private final long[] move_inversions;
+
+	/* true if the image is the only frame without translation */
+	private final boolean direct;
+
+	/* address and inversion of each port for the writes, -1 if a port isn't mapped */
+	private final int[] addresses;
+	private final long[] inverted;
+
+	/**
+	 * @param ports      first WUT port of each block
+	 * @param starts     first address of each block
+	 * @param counts     number of addresses of each block
+	 * @param inversions true if a block is inverted
+	 * @param max_gap    max. number of unmapped addresses, which are read to merge two blocks into one frame
+	 */
+	ChannelMap(int[] ports, int[] starts, int[] counts, boolean[] inversions, int max_gap)
+	{
+		int blocks = ports.length;
+		if (blocks == 0)
+			throw new IllegalArgumentException("no channels");
+
+		// the ports of the blocks must not overlap
+		int count = 0;
+		for (int b = 0; b < blocks; b++) {
+			if (ports[b] < 0 || starts[b] < 0 || counts[b] < 1 || starts[b] + counts[b] > 0x10000)
+				throw new IllegalArgumentException("invalid block " + starts[b] + ":" + counts[b]);
+			count = Math.max(count, ports[b] + counts[b]);
+		}
+		if (count > MAX_CHANNELS)
+			throw new IllegalArgumentException("more than " + MAX_CHANNELS + " channels");
+		this.count = count;
+
+		addresses = new int[count];
+		inverted = new long[words(count)];
+		Arrays.fill(addresses, -1);
+		for (int b = 0; b < blocks; b++) {
+			for (int i = 0; i < counts[b]; i++) {
+				int port = ports[b] + i;
+				if (addresses[port] >= 0)
+					throw new IllegalArgumentException("port " + port + " is mapped twice");
+				addresses[port] = starts[b] + i;
+				if (inversions[b])
+					inverted[port >> 6] |= 1L << port;
+			}
+		}
+
+		// merge the address ranges into frames of up to MAX_FRAME_BITS
+		Integer[] order = new Integer[blocks];
+		for (int b = 0; b < blocks; b++)
+			order[b] = b;
+		Arrays.sort(order, (a, b) -> Integer.compare(starts[a], starts[b]));
+
+		List<int[]> frames = new ArrayList<>();
+		int frame_start = starts[order[0]];
+		int frame_end = frame_start;
+		for (int b : order) {
+			int start = starts[b];
+			int end = start + counts[b];
+
+			// adjacent ranges are always merged, ranges with a gap only into one frame
+			int gap = start - frame_end;
+			if (gap <= 0 || gap <= max_gap && Math.max(end, frame_end) - frame_start <= MAX_FRAME_BITS) {
+				frame_end = Math.max(end, frame_end);
+				continue;
+			}
+			split(frames, frame_start, frame_end);
+			frame_start = start;
+			frame_end = end;
+		}
+		split(frames, frame_start, frame_end);
+
+		frame_addresses = new int[frames.size()];
+		frame_counts = new int[frames.size()];
+		for (int f = 0; f < frames.size(); f++) {
+			frame_addresses[f] = frames.get(f)[0];
+			frame_counts[f] = frames.get(f)[1] - frames.get(f)[0];
+		}
+
+		// split the blocks into moves, which don't cross a word in the frame or in the image
+		List<long[]> moves = new ArrayList<>();
+		for (int b = 0; b < blocks; b++) {
+			for (int i = 0; i < counts[b]; ) {
+				int address = starts[b] + i;
+				int f = frame(address);
+				int source = address - frame_addresses[f];
+				int target = ports[b] + i;
+				int length = Math.min(Math.min(counts[b] - i, frame_counts[f] - source),
+				Math.min(64 - (source & 63), 64 - (target & 63)));
+
+				moves.add(new long[]{f, source, target, length, inversions[b] ? 1 : 0});
+				i += length;
+			}
+		}
+
+		int n = moves.size();
+		move_frames = new int[n];
+		move_source_words = new int[n];
+		move_source_shifts = new int[n];
+		move_target_words = new int[n];
+		move_target_shifts = new int[n];
+		move_masks = new long[n];
+		move_inversions = new long[n];
+		for (int m = 0; m < n; m++) {
+			long[] move = moves.get(m);
+			move_frames[m] = (int) move[0];
+			move_source_words[m] = (int) move[1] >> 6;
+			move_source_shifts[m] = (int) move[1] & 63;
+			move_target_words[m] = (int) move[2] >> 6;
+			move_target_shifts[m] = (int) move[2] & 63;
+			move_masks[m] = move[3] == 64 ? -1L : (1L << move[3]) - 1;
+			move_inversions[m] = move[4] != 0 ? move_masks[m] : 0;
+		}
+
+		direct = blocks == 1 && ports[0] == 0 && !inversions[0] && frame_addresses.length == 1;
+	}
+
+	/**
+	 * @return map of {@code count} adjacent addresses starting at {@code address}
+	 */
+	public static ChannelMap of(int address, int count)
+	{
+		return new ChannelMap(new int[]{0}, new int[]{address}, new int[]{count}, new boolean[1], 0);
+	}
+
+	/**
+	 * @param spec    blocks like "[port=][!]address[:count],...", see the description of the class
+	 * @param max_gap max. number of unmapped addresses, which are read to merge two blocks into one frame
+	 */
+	public static ChannelMap parse(String spec, int max_gap)
+	{
+		String[] blocks = spec.split(",");
+		int[] ports = new int[blocks.length];
+		int[] starts = new int[blocks.length];
+		int[] counts = new int[blocks.length];
+		boolean[] inversions = new boolean[blocks.length];
+
+		int next_port = 0;
+		for (int b = 0; b < blocks.length; b++) {
+			String block = blocks[b].trim();
+
+			int eq = block.indexOf('=');
+			ports[b] = eq < 0 ? next_port : Integer.parseInt(block.substring(0, eq));
+			block = block.substring(eq + 1);
+
+			inversions[b] = block.startsWith("!");
+			if (inversions[b])
+				block = block.substring(1);
+
+			int colon = block.indexOf(':');
+			starts[b] = Integer.parseInt(colon < 0 ? block : block.substring(0, colon));
+			counts[b] = colon < 0 ? DEFAULT_COUNT : Integer.parseInt(block.substring(colon + 1));
+			next_port = ports[b] + counts[b];
+		}
+
+		return new ChannelMap(ports, starts, counts, inversions, max_gap);
+	}
+
+	/**
+	 * Add the frames to read the addresses from {@code start} to {@code end} (exclusive).
+	 */
+	private static void split(List<int[]> frames, int start, int end)
+	{
+		for (; start < end; start += MAX_FRAME_BITS)
+			frames.add(new int[]{start, Math.min(end, start + MAX_FRAME_BITS)});
+	}
+
+	int frame(int address)
+	{
+		for (int f = 0; f < frame_addresses.length; f++)
+			if (address >= frame_addresses[f] && address < frame_addresses[f] + frame_counts[f])
+				return f;
+		throw new IllegalStateException("address " + address + " isn't read");
+	}
+
+	private static int words(int bits)
+	{
+		return (bits + 63) / 64;
+	}
+
+	/**
+	 * @return number of WUT ports, including the unmapped ones below the highest port
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return number of modbus requests to read the image
+	 */
+	public int getFrames()
+	{
+		return frame_addresses.length;
+	}
+
+	/**
+	 * Read all frames at the same time and translate them into the image of the WUT ports.
+	 *
+	 * @return image of the WUT ports, the first port is the lowest bit of the first word
+	 */
+	CompletableFuture<long[]> read(Reader reader)
+	{
+		if (direct)
+			return reader.read(frame_addresses[0], frame_counts[0], new long[words(count)]);
+
+		List<CompletableFuture<long[]>> reads = new ArrayList<>(frame_addresses.length);
+		for (int f = 0; f < frame_addresses.length; f++)
+			reads.add(reader.read(frame_addresses[f], frame_counts[f], new long[words(frame_counts[f])]));
+
+		return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(ignore -> {
+			long[][] frames = new long[reads.size()][];
+			for (int f = 0; f < frames.length; f++)
+				frames[f] = reads.get(f).join();
+			return translate(frames);
+		});
+	}
+
+	/**
+	 * Translate the frames into the image of the WUT ports with the precomputed moves.
+	 */
+	long[] translate(long[][] frames)
+	{
+		long[] image = new long[words(count)];
+		for (int m = 0; m < move_masks.length; m++) {
+			long bits = (frames[move_frames[m]][move_source_words[m]] >>> move_source_shifts[m] & move_masks[m]) ^ move_inversions[m];
+			image[move_target_words[m]] |= bits << move_target_shifts[m];
+		}
+		return image;
+	}
+
+	/**
+	 * @return address of the WUT port
+	 * @throws IndexOutOfBoundsException when the port isn't mapped
+	 */
+	int address(int port)
+	{
+		if (port < 0 || port >= count || addresses[port] < 0)
+			throw new IndexOutOfBoundsException("port " + port + " isn't mapped");
+		return addresses[port];
+	}
+
+	/**
+	 * @return the value to write for the value of a WUT port
+	 */
+	boolean value(int port, boolean value)
+	{
+		return value ^ (inverted[port >> 6] & (1L << port)) != 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder string = new StringBuilder();
+		for (int f = 0; f < frame_addresses.length; f++)
+			string.append(f == 0 ? "" : ",").append(frame_addresses[f]).append(':').append(frame_counts[f]);
+		return count + " channels in " + frame_addresses.length + " frames (" + string + ")";
+	}
+}
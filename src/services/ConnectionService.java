@@ -6,4 +6,173 @@ public interface ConnectionService
 	boolean[] getOutputs() throws Exception;
 	void setOutput(int port, boolean value) throws Exception;
 	void close();
-}
+
+	/**
+	 * Get the first 64 inputs packed into a bit mask, the first input is the lowest bit.
+	 */
+	default long getInputMask() throws Exception
+	{
+		return pack(getInputs());
+	}
+
+	/**
+	 * Get the first 64 outputs packed into a bit mask, the first output is the lowest bit.
+	 */
+	default long getOutputMask() throws Exception
+	{
+		return pack(getOutputs());
+	}
+
+	/**
+	 * Variant of {@link #getInputMask()}, which gives up when the deadline is over.
+	 * <p>
+	 * Services, which can't block for long, don't need to care about the deadline.
+	 *
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default long getInputMask(long deadline) throws Exception
+	{
+		return getInputMask();
+	}
+
+	/**
+	 * Variant of {@link #getOutputMask()}, which gives up when the deadline is over.
+	 *
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default long getOutputMask(long deadline) throws Exception
+	{
+		return getOutputMask();
+	}
+
+	/**
+	 * Variant of {@link #setOutput(int, boolean)}, which gives up when the deadline is over.
+	 *
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default void setOutput(int port, boolean value, long deadline) throws Exception
+	{
+		setOutput(port, value);
+	}
+
+	/**
+	 * Get the number of inputs, which are reported to the WUT clients.
+	 */
+	default int getInputCount()
+	{
+		return 16;
+	}
+
+	/**
+	 * Get the number of outputs, which are reported to the WUT clients.
+	 */
+	default int getOutputCount()
+	{
+		return 16;
+	}
+
+	/**
+	 * Get all inputs packed into words, the first input is the lowest bit of the first word.
+	 * Services with more than 64 inputs must implement it. The words must not be modified.
+	 *
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default long[] getInputWords(long deadline) throws Exception
+	{
+		return new long[]{getInputMask(deadline)};
+	}
+
+	/**
+	 * Get all outputs packed into words, like {@link #getInputWords(long)}.
+	 *
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default long[] getOutputWords(long deadline) throws Exception
+	{
+		return new long[]{getOutputMask(deadline)};
+	}
+
+	/**
+	 * Set all outputs, which are selected by {@code mask}, to the bits of {@code value}.
+	 *
+	 * @param mask  selects the outputs to write, the first output is the lowest bit
+	 * @param value new values of the selected outputs
+	 */
+	default void setOutputs(long mask, long value) throws Exception
+	{
+		for (long bits = mask; bits != 0; bits &= bits - 1) {
+			int port = Long.numberOfTrailingZeros(bits);
+			setOutput(port, (value & (1L << port)) != 0);
+		}
+	}
+
+	/**
+	 * Get the values of all analog inputs.
+	 * Services without analog channels don't need to implement it.
+	 */
+	default int[] getAnalogInputs() throws Exception
+	{
+		return new int[0];
+	}
+
+	/**
+	 * Get the values of all analog outputs.
+	 */
+	default int[] getAnalogOutputs() throws Exception
+	{
+		return new int[0];
+	}
+
+	default void setAnalogOutput(int channel, int value) throws Exception
+	{
+		throw new IndexOutOfBoundsException("analog channel " + channel + " doesn't exist");
+	}
+
+	/**
+	 * Get the value of a single analog input.
+	 *
+	 * @param channel  index of the analog input
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default int getAnalogInput(int channel, long deadline) throws Exception
+	{
+		return channel(getAnalogInputs(), channel);
+	}
+
+	/**
+	 * Get the value of a single analog output.
+	 *
+	 * @param channel  index of the analog output
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default int getAnalogOutput(int channel, long deadline) throws Exception
+	{
+		return channel(getAnalogOutputs(), channel);
+	}
+
+	/**
+	 * Variant of {@link #setAnalogOutput(int, int)}, which gives up when the deadline is over.
+	 *
+	 * @param deadline System.nanoTime() when the call must be finished
+	 */
+	default void setAnalogOutput(int channel, int value, long deadline) throws Exception
+	{
+		setAnalogOutput(channel, value);
+	}
+
+	static int channel(int[] values, int channel)
+	{
+		if (channel < 0 || channel >= values.length)
+			throw new IndexOutOfBoundsException("analog channel " + channel + " doesn't exist");
+		return values[channel];
+	}
+
+	static long pack(boolean[] values)
+	{
+		long packed = 0;
+		for (int i = 0; i < values.length && i < 64; i++)
+			if (values[i])
+				packed |= 1L << i;
+		return packed;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,242 @@
+package services;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the number of concurrent calls to a ConnectionService.
+ * <p>
+ * Callers, which exceed the limit, wait until a running call is finished.
+ * This protects the wrapped service, when a huge number of connections
+ * is served by cheap (e.g. virtual) threads.
+ */
+public class LimitedConnectionService implements ConnectionService
+{
+	private final ConnectionService service;
+	private final Semaphore permits;
+
+	/**
+	 * @param service the wrapped service
+	 * @param limit   max. number of concurrent calls
+	 */
+	public LimitedConnectionService(ConnectionService service, int limit)
+	{
+		this.service = service;
+		this.permits = new Semaphore(limit, true);
+	}
+
+	@Override
+	public boolean[] getInputs() throws Exception
+	{
+		permits.acquire();
+		try {
+			return service.getInputs();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public boolean[] getOutputs() throws Exception
+	{
+		permits.acquire();
+		try {
+			return service.getOutputs();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void setOutput(int port, boolean value) throws Exception
+	{
+		permits.acquire();
+		try {
+			service.setOutput(port, value);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public long getInputMask() throws Exception
+	{
+		permits.acquire();
+		try {
+			return service.getInputMask();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public long getOutputMask() throws Exception
+	{
+		permits.acquire();
+		try {
+			return service.getOutputMask();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void setOutputs(long mask, long value) throws Exception
+	{
+		permits.acquire();
+		try {
+			service.setOutputs(mask, value);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int getInputCount()
+	{
+		return service.getInputCount();
+	}
+
+	@Override
+	public int getOutputCount()
+	{
+		return service.getOutputCount();
+	}
+
+	@Override
+	public long[] getInputWords(long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			return service.getInputWords(deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public long[] getOutputWords(long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			return service.getOutputWords(deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public long getInputMask(long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			return service.getInputMask(deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public long getOutputMask(long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			return service.getOutputMask(deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void setOutput(int port, boolean value, long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			service.setOutput(port, value, deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int[] getAnalogInputs() throws Exception
+	{
+		permits.acquire();
+		try {
+			return service.getAnalogInputs();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int[] getAnalogOutputs() throws Exception
+	{
+		permits.acquire();
+		try {
+			return service.getAnalogOutputs();
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void setAnalogOutput(int channel, int value) throws Exception
+	{
+		permits.acquire();
+		try {
+			service.setAnalogOutput(channel, value);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int getAnalogInput(int channel, long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			return service.getAnalogInput(channel, deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public int getAnalogOutput(int channel, long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			return service.getAnalogOutput(channel, deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	@Override
+	public void setAnalogOutput(int channel, int value, long deadline) throws Exception
+	{
+		acquire(deadline);
+		try {
+			service.setAnalogOutput(channel, value, deadline);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Wait for a permit until the deadline is over.
+	 */
+	private void acquire(long deadline) throws InterruptedException, TimeoutException
+	{
+		if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+			throw new TimeoutException("too many concurrent calls, deadline exceeded");
+	}
+
+	@Override
+	public void close()
+	{
+		service.close();
+	}
+}
\ No newline at end of file
@@ -1,44 +1,222 @@
 package services;
 
 import java.io.IOException;
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import modbus.*;
 
 public class ModbusConnectionService implements ConnectionService
 {
 	ModbusClient client;
-	int input_count = 16;
-	int output_count = 16;
+	ChannelMap input_map;
+	ChannelMap output_map;
+	int analog_input_offset = 0;
+	int analog_output_offset = 0;
+	int analog_input_count = 0;
+	int analog_output_count = 0;
+	long max_age;
+	ProcessImageCache<long[]> input_cache;
+	ProcessImageCache<long[]> output_cache;
+	ProcessImageCache<int[]> analog_input_cache;
+	ProcessImageCache<int[]> analog_output_cache;
+	volatile ScanPoller scan_poller;
+	volatile WriteCombiner write_combiner;
 
 	public ModbusConnectionService(String host) throws IOException
 	{
-		client = new ModbusClient(host);
+		this(host, false);
+	}
+
+	/**
+	 * @param host      address of the modbus server
+	 * @param pipelined true if multiple requests may be outstanding at the modbus server
+	 */
+	public ModbusConnectionService(String host, boolean pipelined) throws IOException
+	{
+		this(host, pipelined, 0);
+	}
+
+	/**
+	 * @param host      address of the modbus server
+	 * @param pipelined true if multiple requests may be outstanding at the modbus server
+	 * @param max_age   max. age in milliseconds of the cached inputs and outputs, 0 disables the cache
+	 */
+	public ModbusConnectionService(String host, boolean pipelined, long max_age) throws IOException
+	{
+		this(new ModbusClient(host), 0, 0, max_age);
+		client.setPipelined(pipelined);
 		client.connect();
 	}
 
+	/**
+	 * Create a service for a client, which is configured and connected by the caller.
+	 *
+	 * @param client        client of the modbus server
+	 * @param input_offset  address of the first input
+	 * @param output_offset address of the first output
+	 * @param max_age       max. age in milliseconds of the cached inputs and outputs, 0 disables the cache
+	 */
+	public ModbusConnectionService(ModbusClient client, int input_offset, int output_offset, long max_age)
+	{
+		this(client, ChannelMap.of(input_offset, 16), ChannelMap.of(output_offset, 16), max_age);
+	}
+
+	/**
+	 * Create a service with any number of inputs and outputs at scattered addresses.
+	 *
+	 * @param client     client of the modbus server
+	 * @param input_map  addresses of the inputs
+	 * @param output_map addresses of the outputs
+	 * @param max_age    max. age in milliseconds of the cached inputs and outputs, 0 disables the cache
+	 */
+	public ModbusConnectionService(ModbusClient client, ChannelMap input_map, ChannelMap output_map, long max_age)
+	{
+		this.client = client;
+		this.input_map = input_map;
+		this.output_map = output_map;
+		this.max_age = max_age;
+
+		// concurrent reads are coalesced even without caching
+		input_cache = new ProcessImageCache<>(() -> input_map.read(client::readInputWordsAsync), max_age);
+		output_cache = new ProcessImageCache<>(() -> output_map.read(client::readOutputWordsAsync), max_age);
+	}
+
+	/**
+	 * Map the analog inputs to input registers (function 0x04).
+	 * Must be called before the service is used.
+	 *
+	 * @param offset address of the first register
+	 * @param count  number of analog inputs, at most 125
+	 */
+	public void setAnalogInputs(int offset, int count)
+	{
+		analog_input_offset = offset;
+		analog_input_count = count;
+		analog_input_cache = new ProcessImageCache<>(() -> client.readInputRegistersAsync(offset, count, new int[count]), max_age);
+	}
+
+	/**
+	 * Map the analog outputs to holding registers (functions 0x03 and 0x06).
+	 * Must be called before the service is used.
+	 *
+	 * @param offset address of the first register
+	 * @param count  number of analog outputs, at most 125
+	 */
+	public void setAnalogOutputs(int offset, int count)
+	{
+		analog_output_offset = offset;
+		analog_output_count = count;
+		analog_output_cache = new ProcessImageCache<>(() -> client.readHoldingRegistersAsync(offset, count, new int[count]), max_age);
+	}
+
+	/**
+	 * Enable the scan mode: inputs and outputs are read in a fixed cycle and
+	 * all requests are served from the last read image.
+	 *
+	 * @param cycle_time cycle time in milliseconds
+	 * @return the poller, which provides the cycle metrics
+	 * @throws Exception when the first image can't be read
+	 */
+	public ScanPoller startScan(long cycle_time) throws Exception
+	{
+		ScanPoller poller = new ScanPoller(client, input_map, output_map, cycle_time);
+		poller.start();
+		scan_poller = poller;
+		return poller;
+	}
+
+	/**
+	 * Enable the write combining: outputs, which are set within the window,
+	 * are written together with as few requests as possible.
+	 * When an output is set more than once within the window, the last value wins.
+	 * Only the ports 0 to 63 are combined, the outputs of higher ports are written one by one.
+	 *
+	 * @param window time in milliseconds to collect the changes, 0 disables the combining
+	 */
+	public void setWriteCombining(long window)
+	{
+		write_combiner = window > 0 ? new WriteCombiner(this::setOutputsAsync, window) : null;
+	}
+
 	@Override
 	public boolean[] getInputs() throws Exception
 	{
-		BitSet set = client.readInputs(0, input_count);
+		return unpack(inputWords(), input_map.getCount());
+	}
+
+	@Override
+	public boolean[] getOutputs() throws Exception
+	{
+		return unpack(outputWords(), output_map.getCount());
+	}
 
-		boolean values[] = new boolean[input_count];
+	@Override
+	public int getInputCount()
+	{
+		return input_map.getCount();
+	}
 
-		for (int i = 0; i < input_count; i++)
-			values[i] = set.get(i);
+	@Override
+	public int getOutputCount()
+	{
+		return output_map.getCount();
+	}
 
-		return values;
+	@Override
+	public long[] getInputWords(long deadline) throws Exception
+	{
+		return scan_poller != null ? scan_poller.getInputs() : input_cache.get(deadline);
 	}
 
 	@Override
-	public boolean[] getOutputs() throws Exception
+	public long[] getOutputWords(long deadline) throws Exception
 	{
-		BitSet set = client.readOutputs(0, output_count);
+		return scan_poller != null ? scan_poller.getOutputs() : output_cache.get(deadline);
+	}
 
-		boolean values[] = new boolean[output_count];
+	@Override
+	public long getInputMask() throws Exception
+	{
+		return inputWords()[0];
+	}
+
+	@Override
+	public long getOutputMask() throws Exception
+	{
+		return outputWords()[0];
+	}
+
+	@Override
+	public long getInputMask(long deadline) throws Exception
+	{
+		return getInputWords(deadline)[0];
+	}
 
-		for (int i = 0; i < output_count; i++)
-			values[i] = set.get(i);
+	@Override
+	public long getOutputMask(long deadline) throws Exception
+	{
+		return getOutputWords(deadline)[0];
+	}
+
+	private long[] inputWords() throws Exception
+	{
+		return scan_poller != null ? scan_poller.getInputs() : input_cache.get();
+	}
+
+	private long[] outputWords() throws Exception
+	{
+		return scan_poller != null ? scan_poller.getOutputs() : output_cache.get();
+	}
+
+	private static boolean[] unpack(long[] words, int count)
+	{
+		boolean values[] = new boolean[count];
+
+		for (int i = 0; i < count; i++)
+			values[i] = (words[i >> 6] & (1L << i)) != 0;
 
 		return values;
 	}
@@ -46,12 +224,166 @@ public class ModbusConnectionService implements ConnectionService
 	@Override
 	public void setOutput(int port, boolean value) throws Exception
 	{
-		client.writeOutput(port, value);
+		// the combiner collects the changes in a mask of 64 bits
+		WriteCombiner combiner = write_combiner;
+		if (combiner != null && port < 64) {
+			output_map.address(port);
+			combiner.write(port, value);
+			return;
+		}
+
+		client.writeOutput(output_map.address(port), output_map.value(port, value));
+		updated(port, value);
+	}
+
+	@Override
+	public void setOutput(int port, boolean value, long deadline) throws Exception
+	{
+		// the combiner collects the changes in a mask of 64 bits
+		WriteCombiner combiner = write_combiner;
+		if (combiner != null && port < 64) {
+			output_map.address(port);
+			combiner.write(port, value, deadline);
+			return;
+		}
+
+		client.writeOutput(output_map.address(port), output_map.value(port, value), deadline);
+		updated(port, value);
+	}
+
+	/**
+	 * Write the selected outputs with one request for each run of outputs at adjacent addresses.
+	 * A single output is written with function 0x05, a run with function 0x0F.
+	 */
+	@Override
+	public void setOutputs(long mask, long value) throws Exception
+	{
+		try {
+			setOutputsAsync(mask, value).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Variant of {@link #setOutputs(long, long)}, which doesn't wait for the writes.
+	 */
+	CompletableFuture<Void> setOutputsAsync(long mask, long value)
+	{
+		List<CompletableFuture<Void>> writes = new ArrayList<>();
+
+		for (long bits = mask; bits != 0; ) {
+			int start = Long.numberOfTrailingZeros(bits);
+			int address = output_map.address(start);
+
+			// extend the run while the next port is selected and mapped to the next address
+			long run = 0;
+			int length = 0;
+			do {
+				int port = start + length;
+				if (output_map.value(port, (value & (1L << port)) != 0))
+					run |= 1L << length;
+				bits &= ~(1L << port);
+				length++;
+			} while (start + length < 64 && (bits & (1L << (start + length))) != 0 &&
+				output_map.address(start + length) == address + length);
+
+			if (length == 1)
+				writes.add(client.writeOutputAsync(address, run != 0));
+			else
+				writes.add(client.writeOutputsAsync(address, length, new long[]{run}));
+		}
+
+		// the runs are in flight at the same time
+		return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+			for (long bits = mask; bits != 0; bits &= bits - 1) {
+				int port = Long.numberOfTrailingZeros(bits);
+				updated(port, (value & (1L << port)) != 0);
+			}
+		});
+	}
+
+	/**
+	 * Keep the cached outputs consistent with a write.
+	 */
+	private void updated(int port, boolean value)
+	{
+		output_cache.update(words -> {
+			long[] updated = words.clone();
+			if (value)
+				updated[port >> 6] |= 1L << port;
+			else
+				updated[port >> 6] &= ~(1L << port);
+			return updated;
+		});
+		if (scan_poller != null)
+			scan_poller.update(port, value);
+	}
+
+	@Override
+	public int[] getAnalogInputs() throws Exception
+	{
+		return analog_input_cache != null ? analog_input_cache.get().clone() : new int[0];
+	}
+
+	@Override
+	public int[] getAnalogOutputs() throws Exception
+	{
+		return analog_output_cache != null ? analog_output_cache.get().clone() : new int[0];
+	}
+
+	@Override
+	public int getAnalogInput(int channel, long deadline) throws Exception
+	{
+		checkChannel(channel, analog_input_count);
+		return analog_input_cache.get(deadline)[channel];
+	}
+
+	@Override
+	public int getAnalogOutput(int channel, long deadline) throws Exception
+	{
+		checkChannel(channel, analog_output_count);
+		return analog_output_cache.get(deadline)[channel];
+	}
+
+	@Override
+	public void setAnalogOutput(int channel, int value) throws Exception
+	{
+		checkChannel(channel, analog_output_count);
+		client.writeRegister(analog_output_offset + channel, (short) value);
+		analogUpdated(channel, value);
+	}
+
+	@Override
+	public void setAnalogOutput(int channel, int value, long deadline) throws Exception
+	{
+		checkChannel(channel, analog_output_count);
+		client.writeRegister(analog_output_offset + channel, (short) value, deadline);
+		analogUpdated(channel, value);
+	}
+
+	private void analogUpdated(int channel, int value)
+	{
+		analog_output_cache.update(registers -> {
+			int[] updated = registers.clone();
+			updated[channel] = value & 0xffff;
+			return updated;
+		});
+	}
+
+	private static void checkChannel(int channel, int count)
+	{
+		if (channel < 0 || channel >= count)
+			throw new IndexOutOfBoundsException("analog channel " + channel + " doesn't exist");
 	}
 
 	@Override
 	public void close()
 	{
+		if (scan_poller != null)
+			scan_poller.stop();
 		client.disconnect();
 	}
 }
@@ -0,0 +1,137 @@
+package services;
+
+import metrics.Metrics;
+import modbus.ModbusClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds the last read image of a range of the modbus server, e.g. the coils or discrete inputs
+ * packed into words (bit i is bit (i % 64) of word i / 64) or the values of registers.
+ * <p>
+ * An image is served from the cache as long as it isn't older than the max. age.
+ * Concurrent misses are coalesced, so only one modbus read is in flight at the same time.
+ */
+class ProcessImageCache<T>
+{
+	private final Supplier<CompletableFuture<T>> reader;
+	private final long max_age;
+
+	/* guarded by this */
+	private T image;
+	private long timestamp;
+	private long generation;
+	private CompletableFuture<T> in_flight;
+
+	/**
+	 * @param reader  reads the image from the modbus server
+	 * @param max_age max. age of the cached image in milliseconds, 0 disables the cache
+	 */
+	ProcessImageCache(Supplier<CompletableFuture<T>> reader, long max_age)
+	{
+		this.reader = reader;
+		this.max_age = max_age * 1000000L;
+	}
+
+	/**
+	 * Get the image. The returned image must not be modified.
+	 *
+	 * @return cached image or a fresh one, when the cached image is too old
+	 * @throws Exception when the image can't be read
+	 */
+	T get() throws Exception
+	{
+		CompletableFuture<T> future;
+
+		synchronized (this) {
+			if (image != null && System.nanoTime() - timestamp < max_age) {
+				Metrics.CACHE.hit();
+				return image;
+			}
+
+			// join a read which is already in flight
+			future = in_flight != null ? join() : read();
+		}
+
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Variant of {@link #get()}, which gives up when the deadline is over.
+	 * The read isn't aborted then, other callers still get its result.
+	 *
+	 * @param deadline System.nanoTime() when the waiting is given up
+	 */
+	T get(long deadline) throws Exception
+	{
+		CompletableFuture<T> future;
+
+		synchronized (this) {
+			if (image != null && System.nanoTime() - timestamp < max_age) {
+				Metrics.CACHE.hit();
+				return image;
+			}
+
+			future = in_flight != null ? join() : read();
+		}
+
+		return ModbusClient.await(future, deadline);
+	}
+
+	/**
+	 * Write-through of a change, which was written to the modbus server.
+	 *
+	 * @param change returns a modified copy of the image
+	 */
+	synchronized void update(UnaryOperator<T> change)
+	{
+		// a read in flight may have been answered before the write,
+		// so it must not replace the updated image
+		generation++;
+
+		if (image != null)
+			image = change.apply(image);
+	}
+
+	/* called with the lock held */
+	private CompletableFuture<T> join()
+	{
+		Metrics.CACHE.coalesced();
+		return in_flight;
+	}
+
+	/* called with the lock held */
+	private CompletableFuture<T> read()
+	{
+		Metrics.CACHE.miss();
+		long started = System.nanoTime();
+		long read_generation = generation;
+
+		CompletableFuture<T> future = reader.get();
+		in_flight = future;
+
+		// the future may be completed already, then this runs immediately
+		future.whenComplete((result, error) -> {
+			synchronized (this) {
+				if (in_flight == future)
+					in_flight = null;
+
+				if (error == null && read_generation == generation) {
+					image = result;
+					timestamp = started;
+				}
+			}
+		});
+
+		return future;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,329 @@
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import metrics.Metrics;
+import modbus.ModbusClient;
+import modbus.ModbusException;
+
+/**
+ * Reads the inputs and outputs of the modbus server in a fixed cycle, like the scan cycle of a PLC.
+ * <p>
+ * Each cycle reads the whole image into a back buffer, which is published
+ * afterwards as the new front image. Readers only get the front image, so they
+ * never wait for the modbus server and always see inputs and outputs of the same cycle.
+ * <p>
+ * A cycle waits less than {@code MAX_AGE_CYCLES} cycle times for the modbus server and an image,
+ * which is older than {@code MAX_AGE_CYCLES}, isn't served anymore. So a hung device shows up
+ * as an error instead of inputs, which never change.
+ */
+public class ScanPoller implements Runnable, Metrics.Source
+{
+	/* max. age of the image in cycle times */
+	final static int MAX_AGE_CYCLES = 4;
+
+	/**
+	 * Inputs and outputs read in the same cycle, packed into words.
+	 */
+	private static class Image
+	{
+		final long[] inputs;
+		final long[] outputs;
+
+		/* System.nanoTime() when the cycle started */
+		final long timestamp;
+
+		Image(long[] inputs, long[] outputs, long timestamp)
+		{
+			this.inputs = inputs;
+			this.outputs = outputs;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private final ModbusClient client;
+	private final ChannelMap input_map;
+	private final ChannelMap output_map;
+	private final long cycle_time;
+	private ScheduledExecutorService scheduler;
+
+	/* front image, swapped at the end of each cycle */
+	private volatile Image image;
+	private volatile Exception error;
+
+	/* incremented on each write, so a cycle doesn't publish outputs read before the write */
+	private long generation;
+
+	/* metrics, written only by the scan thread */
+	private long first_cycle;
+	private volatile long cycles;
+	private volatile long overruns;
+	private volatile long errors;
+	private volatile long last_cycle_duration;
+	private volatile long max_cycle_duration;
+	private volatile long last_jitter;
+	private volatile long max_jitter;
+	private volatile long sum_jitter;
+
+	/**
+	 * @param client     client to read from
+	 * @param input_map  addresses of the inputs
+	 * @param output_map addresses of the outputs
+	 * @param cycle_time cycle time in milliseconds
+	 */
+	ScanPoller(ModbusClient client, ChannelMap input_map, ChannelMap output_map, long cycle_time)
+	{
+		this.client = client;
+		this.input_map = input_map;
+		this.output_map = output_map;
+		this.cycle_time = cycle_time * 1000000L;
+	}
+
+	/**
+	 * Run the first cycle and start scanning.
+	 *
+	 * @throws Exception when the first image can't be read
+	 */
+	void start() throws Exception
+	{
+		scan();
+		if (error != null)
+			throw error;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "modbus-scan");
+			thread.setDaemon(true);
+			return thread;
+		});
+		first_cycle = System.nanoTime() + cycle_time;
+		scheduler.scheduleAtFixedRate(this, cycle_time, cycle_time, TimeUnit.NANOSECONDS);
+		Metrics.register(this);
+	}
+
+	/**
+	 * Stop scanning, a running cycle is interrupted and finished before this returns.
+	 */
+	void stop()
+	{
+		Metrics.unregister(this);
+		if (scheduler == null)
+			return;
+
+		scheduler.shutdownNow();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * One scan cycle.
+	 */
+	@Override
+	public void run()
+	{
+		long start = System.nanoTime();
+
+		// the cycles should start at first_cycle + n * cycle_time
+		long jitter = start - (first_cycle + cycles * cycle_time);
+
+		scan();
+
+		long duration = System.nanoTime() - start;
+
+		// a cycle, which takes longer than the cycle time, delays the following ones
+		if (duration > cycle_time)
+			overruns++;
+
+		last_cycle_duration = duration;
+		max_cycle_duration = Math.max(max_cycle_duration, duration);
+		last_jitter = jitter;
+		max_jitter = Math.max(max_jitter, Math.abs(jitter));
+		sum_jitter += Math.abs(jitter);
+		cycles++;
+	}
+
+	/**
+	 * Read the image into the back buffer and publish it.
+	 */
+	private void scan()
+	{
+		long start = System.nanoTime();
+		long deadline = start + (MAX_AGE_CYCLES - 1) * cycle_time;
+		long read_generation;
+		synchronized (this) {
+			read_generation = generation;
+		}
+
+		try {
+			// read inputs and outputs at the same time
+			CompletableFuture<long[]> inputs = input_map.read(client::readInputWordsAsync);
+			CompletableFuture<long[]> outputs = output_map.read(client::readOutputWordsAsync);
+			Image back = new Image(inputs.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS),
+			outputs.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS), start);
+
+			synchronized (this) {
+				// keep the written outputs, they are read in the next cycle
+				if (read_generation != generation && image != null)
+					back = new Image(back.inputs, image.outputs, start);
+				image = back;
+			}
+			error = null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			errors++;
+			error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} catch (TimeoutException e) {
+			errors++;
+			error = new ModbusException("scan: no image within " + (MAX_AGE_CYCLES - 1) + " cycles");
+		} catch (RuntimeException e) {
+			// the cycles must go on, an exception would cancel them
+			errors++;
+			error = e;
+		}
+	}
+
+	/**
+	 * @return the front image
+	 * @throws Exception when the last cycle failed or the image is too old
+	 */
+	private Image image() throws Exception
+	{
+		Exception e = error;
+		if (e != null)
+			throw e;
+
+		Image current = image;
+		if (System.nanoTime() - current.timestamp > MAX_AGE_CYCLES * cycle_time)
+			throw new ModbusException("scan: image is older than " + MAX_AGE_CYCLES + " cycles");
+		return current;
+	}
+
+	/**
+	 * @return inputs of the last cycle, must not be modified
+	 * @throws Exception when the last cycle failed or the image is older than {@code MAX_AGE_CYCLES}
+	 */
+	long[] getInputs() throws Exception
+	{
+		return image().inputs;
+	}
+
+	/**
+	 * @return outputs of the last cycle, must not be modified
+	 * @throws Exception when the last cycle failed or the image is older than {@code MAX_AGE_CYCLES}
+	 */
+	long[] getOutputs() throws Exception
+	{
+		return image().outputs;
+	}
+
+	/**
+	 * Write-through of a single output, which was written to the modbus server.
+	 */
+	synchronized void update(int bit, boolean value)
+	{
+		generation++;
+		if (image == null)
+			return;
+
+		long[] outputs = image.outputs.clone();
+		if (value)
+			outputs[bit >> 6] |= 1L << bit;
+		else
+			outputs[bit >> 6] &= ~(1L << bit);
+		image = new Image(image.inputs, outputs, image.timestamp);
+	}
+
+	/**
+	 * @return number of finished cycles
+	 */
+	public long getCycles()
+	{
+		return cycles;
+	}
+
+	/**
+	 * @return number of cycles, which took longer than the cycle time
+	 */
+	public long getOverruns()
+	{
+		return overruns;
+	}
+
+	/**
+	 * @return number of failed cycles
+	 */
+	public long getErrors()
+	{
+		return errors;
+	}
+
+	/**
+	 * @return duration of the last cycle in nanoseconds
+	 */
+	public long getLastCycleDuration()
+	{
+		return last_cycle_duration;
+	}
+
+	/**
+	 * @return max. duration of a cycle in nanoseconds
+	 */
+	public long getMaxCycleDuration()
+	{
+		return max_cycle_duration;
+	}
+
+	/**
+	 * @return deviation of the last cycle start from its schedule in nanoseconds
+	 */
+	public long getLastJitter()
+	{
+		return last_jitter;
+	}
+
+	/**
+	 * @return max. absolute deviation of a cycle start from its schedule in nanoseconds
+	 */
+	public long getMaxJitter()
+	{
+		return max_jitter;
+	}
+
+	/**
+	 * @return mean absolute deviation of the cycle starts from their schedule in nanoseconds
+	 */
+	public long getMeanJitter()
+	{
+		long n = cycles;
+		return n == 0 ? 0 : sum_jitter / n;
+	}
+
+	@Override
+	public void collect(Metrics.Collector collector)
+	{
+		String labels = "device=\"" + client.getHost() + ":" + client.getPort() + "\",unit=\"" + client.getUnitIdentifier() + "\"";
+		collector.value("scan_cycles_total", labels, cycles);
+		collector.value("scan_overruns_total", labels, overruns);
+		collector.value("scan_errors_total", labels, errors);
+		collector.value("scan_cycle_duration_us", labels, last_cycle_duration / 1000);
+		collector.value("scan_cycle_duration_max_us", labels, max_cycle_duration / 1000);
+		collector.value("scan_jitter_mean_us", labels, getMeanJitter() / 1000);
+		collector.value("scan_jitter_max_us", labels, max_jitter / 1000);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "scan: cycles=" + cycles + " overruns=" + overruns + " errors=" + errors +
+		" cycle_time=" + last_cycle_duration / 1000 + "us (max " + max_cycle_duration / 1000 + "us)" +
+		" jitter=" + last_jitter / 1000 + "us (max " + max_jitter / 1000 + "us, mean " + getMeanJitter() / 1000 + "us)";
+	}
+}
\ No newline at end of file
@@ -1,18 +1,62 @@
 package services;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * A virtual device with up to 64 inputs and outputs (default 16) for tests without hardware.
+ * <p>
+ * The inputs and outputs are packed into one {@link AtomicLong} each, so every read is a
+ * consistent snapshot without locks or copies and a write of several outputs is atomic.
+ * The inputs are set on the console or by a signal generator, which replays a pattern
+ * or toggles random inputs with a fixed rate.
+ */
 public class VirtualConnectionService implements ConnectionService
 {
-	private boolean isRunning;
-	private Scanner sc;
-	private boolean inputs[] = new boolean[16];
-	private boolean outputs[] = new boolean[16];
+	/* the generator doesn't wake up more often, higher rates apply several steps at once */
+	private final static long MIN_SLEEP = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/* max. number of steps applied at once, when the generator fell behind */
+	private final static long MAX_STEPS = 1 << 16;
+
+	private final int ports;
+	private final long all;
+	private volatile boolean isRunning;
+	private final AtomicLong inputs = new AtomicLong();
+	private final AtomicLong outputs = new AtomicLong();
+
+	private Thread generator;
+	private volatile long steps;
 
 	public VirtualConnectionService()
 	{
+		this(true, 16);
+	}
+
+	/**
+	 * @param interactive read commands from the console
+	 * @param ports       number of inputs and outputs, at most 64
+	 */
+	public VirtualConnectionService(boolean interactive, int ports)
+	{
+		if (ports < 1 || ports > 64)
+			throw new IllegalArgumentException("1 to 64 ports supported");
+		this.ports = ports;
+		all = ports == 64 ? -1L : (1L << ports) - 1;
+
 		isRunning = true;
-		sc = new Scanner(System.in);
+		if (!interactive)
+			return;
+
+		Scanner sc = new Scanner(System.in);
 
 		new Thread(new Runnable() {
 			@Override
@@ -25,38 +69,22 @@ public class VirtualConnectionService implements ConnectionService
 				System.out.println("   outputs           - print outputs");
 				while (isRunning) {
 					System.out.print(" > ");
+					if (!sc.hasNextLine())
+						break;
 					String args[] = sc.nextLine().split("=");
 					if (args[0].trim().equals("inputs")) {
 						if (args.length == 1)
 						{
-							String inputString = "|";
-							for (int i = inputs.length - 1; i >= 0; i--)
-								inputString += String.format("%02d|", i);
-
-							inputString += "\n|";
-							for (int i = inputs.length - 1; i >= 0; i--)
-								inputString += (inputs[i] ? " 1|" : " 0|");
-
-							System.out.println(inputString);
+							System.out.println(format(inputs.get()));
 							continue;
 						}
 						setInputs(args[1].trim());
 						System.out.println("set input=" + args[1]);
-
-
 					}
 					else if (args[0].trim().equals("outputs")) {
 						if (args.length == 1)
 						{
-							String outputString = "|";
-							for (int i = outputs.length - 1; i >= 0; i--)
-								outputString += String.format("%02d|", i);
-
-							outputString += "\n|";
-							for (int i = outputs.length - 1; i >= 0; i--)
-								outputString += (outputs[i] ? " 1|" : " 0|");
-
-							System.out.println(outputString);
+							System.out.println(format(outputs.get()));
 							continue;
 						}
 						setOutputs(args[1].trim());
@@ -67,39 +95,202 @@ public class VirtualConnectionService implements ConnectionService
 		}).start();
 	}
 
-	void setInputs(String values)
+	private String format(long bits)
 	{
-		int binary = Integer.parseInt(values, 16);
+		String string = "|";
+		for (int i = ports - 1; i >= 0; i--)
+			string += String.format("%02d|", i);
 
-		for (int i = 0; i < inputs.length; i++)
-			inputs[i] = ((1 << i) & binary) != 0;
+		string += "\n|";
+		for (int i = ports - 1; i >= 0; i--)
+			string += ((bits & (1L << i)) != 0 ? " 1|" : " 0|");
+		return string;
+	}
 
+	void setInputs(String values)
+	{
+		setInputMask(Long.parseUnsignedLong(values, 16));
 	}
 
 	void setOutputs(String values)
 	{
-		int binary = Integer.parseInt(values, 16);
+		outputs.set(Long.parseUnsignedLong(values, 16) & all);
+	}
+
+	/**
+	 * Set all inputs at once, the first input is the lowest bit.
+	 */
+	public void setInputMask(long mask)
+	{
+		inputs.set(mask & all);
+	}
+
+	/**
+	 * Replay the input patterns in a loop, one pattern per step.
+	 *
+	 * @param patterns the inputs of each step, the first input is the lowest bit
+	 * @param rate     steps per second
+	 */
+	public void startPattern(long[] patterns, double rate)
+	{
+		if (patterns.length == 0)
+			throw new IllegalArgumentException("no patterns");
+
+		long[] values = patterns.clone();
+		startGenerator(rate, (from, to) -> setInputMask(values[(int) ((to - 1) % values.length)]));
+	}
+
+	/**
+	 * Toggle one random input of {@code mask} in each step.
+	 *
+	 * @param mask selects the inputs, which may be toggled
+	 * @param rate steps per second
+	 * @param seed of the random numbers, the same seed gives the same sequence
+	 */
+	public void startRandom(long mask, double rate, long seed)
+	{
+		mask &= all;
+		int[] candidates = new int[Long.bitCount(mask)];
+		if (candidates.length == 0)
+			throw new IllegalArgumentException("no inputs selected");
+		for (int i = 0; mask != 0; mask &= mask - 1)
+			candidates[i++] = Long.numberOfTrailingZeros(mask);
+
+		SplittableRandom random = new SplittableRandom(seed);
+		startGenerator(rate, (from, to) -> {
+			// the toggles of all due steps are applied at once
+			long toggle = 0;
+			for (long step = from; step < to; step++)
+				toggle ^= 1L << candidates[random.nextInt(candidates.length)];
 
-		for (int i = 0; i < outputs.length; i++)
-			outputs[i] = ((1 << i) & binary) != 0;
+			inputs.getAndAccumulate(toggle, (v, t) -> v ^ t);
+		});
+	}
+
+	/**
+	 * Read the patterns from a file, one hex value per line. Lines starting with # are ignored.
+	 */
+	public static long[] readPatterns(Path file) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		for (String line : Files.readAllLines(file)) {
+			line = line.trim();
+			if (!line.isEmpty() && !line.startsWith("#"))
+				lines.add(line);
+		}
+		return parsePatterns(lines.toArray(new String[0]));
+	}
+
+	public static long[] parsePatterns(String[] values)
+	{
+		long[] patterns = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			patterns[i] = Long.parseUnsignedLong(values[i].trim(), 16);
+		return patterns;
+	}
+
+	/**
+	 * @return number of steps done by the signal generator
+	 */
+	public long getSteps()
+	{
+		return steps;
+	}
+
+	private interface Step
+	{
+		/**
+		 * Apply the steps from {@code from} (inclusive) to {@code to} (exclusive).
+		 */
+		void apply(long from, long to);
+	}
+
+	private synchronized void startGenerator(double rate, Step step)
+	{
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate must be positive");
+		if (generator != null)
+			throw new IllegalStateException("signal generator already started");
+
+		// the step, which is due at a time, is computed from the start, so the rate doesn't drift
+		double period = TimeUnit.SECONDS.toNanos(1) / rate;
+
+		generator = new Thread(() -> {
+			long start = System.nanoTime();
+			long done = 0;
+			while (isRunning) {
+				long due = (long) ((System.nanoTime() - start) / period) + 1;
+				if (due > done) {
+					long to = Math.min(due, done + MAX_STEPS);
+					step.apply(done, to);
+					steps = done = to;
+					continue;
+				}
+				long next = start + (long) (done * period);
+				LockSupport.parkNanos(Math.max(MIN_SLEEP, next - System.nanoTime()));
+			}
+		}, "virtual-signals");
+		generator.setDaemon(true);
+		generator.start();
 	}
 
 	@Override
 	public boolean[] getInputs() throws Exception
 	{
-		return inputs;
+		return unpack(inputs.get());
 	}
 
 	@Override
 	public boolean[] getOutputs() throws Exception
 	{
-		return outputs;
+		return unpack(outputs.get());
+	}
+
+	private boolean[] unpack(long bits)
+	{
+		boolean[] values = new boolean[ports];
+		for (int i = 0; i < ports; i++)
+			values[i] = (bits & (1L << i)) != 0;
+		return values;
+	}
+
+	@Override
+	public int getInputCount()
+	{
+		return ports;
+	}
+
+	@Override
+	public int getOutputCount()
+	{
+		return ports;
+	}
+
+	@Override
+	public long getInputMask()
+	{
+		return inputs.get();
+	}
+
+	@Override
+	public long getOutputMask()
+	{
+		return outputs.get();
 	}
 
 	@Override
 	public void setOutput(int port, boolean value) throws Exception
 	{
-		outputs[port] = value;
+		if (port < 0 || port >= ports)
+			throw new IndexOutOfBoundsException("output " + port + " doesn't exist");
+		setOutputs(1L << port, value ? 1L << port : 0);
+	}
+
+	@Override
+	public void setOutputs(long mask, long value)
+	{
+		long selected = mask & all;
+		outputs.getAndUpdate(v -> v & ~selected | value & selected);
 	}
 
 	@Override
@@ -0,0 +1,167 @@
+package services;
+
+import modbus.ModbusClient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combines the output writes, which arrive within a short window, into one write of a bit mask.
+ * <p>
+ * The first writer of a window schedules the flush of the window on a timer, which is shared
+ * by all combiners, so no writer sleeps for the window and no thread per device is needed.
+ * The window is flushed early, when the deadline of a writer doesn't leave enough time
+ * for the window and the write.
+ * When a bit is written more than once within a window, the last write wins.
+ * The write of a window starts after the write of the previous window completed,
+ * so a later write of a bit never overtakes an earlier one.
+ */
+class WriteCombiner
+{
+	/**
+	 * Writes the outputs selected by a mask. Called by the timer, so it must not block.
+	 */
+	interface Writer
+	{
+		CompletableFuture<Void> write(long mask, long value);
+	}
+
+	private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "write-combiner");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Writer writer;
+	private final long window;
+
+	/* changes of the current window, guarded by this */
+	private long mask;
+	private long value;
+	private CompletableFuture<Void> batch;
+	private long flush_time;
+
+	/* write of the last flushed window, only used by the timer */
+	private CompletableFuture<Void> last_write = CompletableFuture.completedFuture(null);
+
+	/**
+	 * @param writer writes the combined changes
+	 * @param window time in milliseconds to collect the changes
+	 */
+	WriteCombiner(Writer writer, long window)
+	{
+		this.writer = writer;
+		this.window = window;
+	}
+
+	/**
+	 * Write an output and wait until the changes of the window are written.
+	 * The change is written, even when the waiting is interrupted.
+	 *
+	 * @param bit   index of the output, less than 64
+	 * @param value new value of the output
+	 * @throws Exception when the combined write failed
+	 */
+	void write(int bit, boolean value) throws Exception
+	{
+		try {
+			writeAsync(bit, value, TimeUnit.MILLISECONDS.toNanos(window)).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Variant of {@link #write(int, boolean)}, which gives up waiting when the deadline is over.
+	 * The window is closed halfway to the deadline at the latest, the change is written nevertheless.
+	 *
+	 * @param deadline System.nanoTime() when the waiting is given up
+	 */
+	void write(int bit, boolean value, long deadline) throws Exception
+	{
+		// half of the time until the deadline is left for the write
+		long delay = Math.min(TimeUnit.MILLISECONDS.toNanos(window), (deadline - System.nanoTime()) / 2);
+		ModbusClient.await(writeAsync(bit, value, delay), deadline);
+	}
+
+	/**
+	 * @param delay max. time in nanoseconds until the window is closed
+	 */
+	private CompletableFuture<Void> writeAsync(int bit, boolean value, long delay)
+	{
+		long now = System.nanoTime();
+		long flush_time = now + delay;
+		CompletableFuture<Void> future;
+
+		synchronized (this) {
+			mask |= 1L << bit;
+			if (value)
+				this.value |= 1L << bit;
+			else
+				this.value &= ~(1L << bit);
+
+			// the first writer opens the window, a writer with a shorter deadline closes it earlier
+			future = batch;
+			if (future == null) {
+				future = batch = new CompletableFuture<>();
+				this.flush_time = flush_time;
+			} else if (flush_time - this.flush_time < 0) {
+				this.flush_time = flush_time;
+			} else {
+				return future;
+			}
+		}
+
+		CompletableFuture<Void> opened = future;
+		TIMER.schedule(() -> flush(opened), Math.max(0, delay), TimeUnit.NANOSECONDS);
+		return future;
+	}
+
+	/**
+	 * Close the window and write its changes. Called by the timer.
+	 *
+	 * @param window the future of the window to close
+	 */
+	private void flush(CompletableFuture<Void> window)
+	{
+		long mask;
+		long value;
+		CompletableFuture<Void> future;
+
+		synchronized (this) {
+			// the window has been flushed already at an earlier deadline
+			if (batch != window)
+				return;
+
+			mask = this.mask;
+			value = this.value;
+			future = batch;
+			this.mask = 0;
+			this.value = 0;
+			batch = null;
+		}
+
+		// the windows are written one after another, also when a write failed
+		last_write = last_write.handle((result, error) -> null).thenCompose(ignore -> {
+			try {
+				return writer.write(mask, value);
+			} catch (RuntimeException e) {
+				CompletableFuture<Void> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+		});
+		last_write.whenComplete((result, error) -> {
+			if (error == null)
+				future.complete(null);
+			else
+				future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+		});
+	}
+}
@@ -0,0 +1,107 @@
+import modbus.ModbusEventLoop;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import services.ConnectionService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class WutSelectorServerTest
+{
+	ModbusEventLoop loop;
+	WutWrapper wut;
+	WutSelectorServer server;
+	boolean inputs[];
+
+	@Before
+	public void setUp() throws Exception
+	{
+		inputs = new boolean[16];
+		wut = new WutWrapper(new ConnectionService() {
+			@Override
+			public boolean[] getInputs() throws Exception
+			{
+				return inputs;
+			}
+
+			@Override
+			public boolean[] getOutputs() throws Exception
+			{
+				return new boolean[16];
+			}
+
+			@Override
+			public void setOutput(int port, boolean value) throws Exception
+			{
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		});
+
+		loop = new ModbusEventLoop("wut-test");
+		server = new WutSelectorServer(0, wut, loop, 2, 10000);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		server.close();
+		loop.close();
+		wut.shutdown();
+	}
+
+	@Test
+	public void testRequests() throws Exception
+	{
+		inputs[0] = true;
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			socket.setSoTimeout(3000);
+			socket.getOutputStream().write("GET /input?\0GET /output?\0".getBytes(StandardCharsets.ISO_8859_1));
+
+			assertEquals("input=0001", readResponse(socket.getInputStream()));
+			assertEquals("output=0000", readResponse(socket.getInputStream()));
+		}
+	}
+
+	@Test
+	public void testUnknownRequestClosesConnection() throws Exception
+	{
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			socket.setSoTimeout(3000);
+			OutputStream os = socket.getOutputStream();
+			os.write("GET /bogus?\0GET /input?\0".getBytes(StandardCharsets.ISO_8859_1));
+
+			// the connection is closed without a response, the pipelined request isn't processed
+			assertEquals(-1, socket.getInputStream().read());
+		}
+
+		// the workers survive and serve the next connection
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			socket.setSoTimeout(3000);
+			socket.getOutputStream().write("GET /input?\0".getBytes(StandardCharsets.ISO_8859_1));
+			assertEquals("input=0000", readResponse(socket.getInputStream()));
+		}
+	}
+
+	/**
+	 * @return the next response without the 0 terminator
+	 */
+	private static String readResponse(InputStream is) throws Exception
+	{
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		int b;
+		while ((b = is.read()) > 0)
+			response.write(b);
+		assertEquals(0, b);
+		return new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,118 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import services.ConnectionService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class WutWrapperServerTest
+{
+	WutWrapper wut;
+	int port;
+	boolean inputs[];
+
+	@Before
+	public void setUp() throws Exception
+	{
+		inputs = new boolean[16];
+		wut = new WutWrapper(new ConnectionService() {
+			@Override
+			public boolean[] getInputs() throws Exception
+			{
+				return inputs;
+			}
+
+			@Override
+			public boolean[] getOutputs() throws Exception
+			{
+				return new boolean[16];
+			}
+
+			@Override
+			public void setOutput(int port, boolean value) throws Exception
+			{
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		});
+		wut.setNotifyInterval(5);
+
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+
+		// the server accepts connections until the process ends, its threads inherit the daemon flag
+		Thread server = new Thread(() -> {
+			try {
+				new WutWrapperServer(port, wut, null, 10000);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		wut.shutdown();
+	}
+
+	private Socket connect() throws Exception
+	{
+		for (int attempt = 0; ; attempt++) {
+			try {
+				Socket socket = new Socket("localhost", port);
+				socket.setSoTimeout(3000);
+				return socket;
+			} catch (IOException e) {
+				// the server isn't listening yet
+				if (attempt == 100)
+					throw e;
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	@Test
+	public void testInputSubscription() throws Exception
+	{
+		inputs[1] = true;
+		try (Socket socket = connect()) {
+			socket.getOutputStream().write("GET /inputsubscribe?\0".getBytes(StandardCharsets.ISO_8859_1));
+			assertEquals("input=0002", readResponse(socket.getInputStream()));
+
+			// the change is pushed while the thread of the connection waits for a request
+			inputs[4] = true;
+			assertEquals("input=0012", readResponse(socket.getInputStream()));
+
+			// requests are still answered
+			socket.getOutputStream().write("GET /output?\0".getBytes(StandardCharsets.ISO_8859_1));
+			assertEquals("output=0000", readResponse(socket.getInputStream()));
+		}
+	}
+
+	/**
+	 * @return the next response without the 0 terminator
+	 */
+	private static String readResponse(InputStream is) throws Exception
+	{
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		int b;
+		while ((b = is.read()) > 0)
+			response.write(b);
+		assertEquals(0, b);
+		return new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -2,6 +2,12 @@ import org.junit.Before;
 import org.junit.Test;
 import services.ConnectionService;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class WutWrapperTest
@@ -9,12 +15,16 @@ public class WutWrapperTest
 	WutWrapper wut;
 	boolean inputs[];
 	boolean outputs[];
+	int analog_inputs[];
+	int analog_outputs[];
 
 	@Before
 	public void setUp() throws Exception
 	{
 		inputs = new boolean[16];
 		outputs = new boolean[16];
+		analog_inputs = new int[4];
+		analog_outputs = new int[4];
 
 		wut = new WutWrapper(new ConnectionService() {
 			@Override
@@ -35,6 +45,24 @@ public class WutWrapperTest
 				outputs[port] = value;
 			}
 
+			@Override
+			public int[] getAnalogInputs() throws Exception
+			{
+				return analog_inputs;
+			}
+
+			@Override
+			public int[] getAnalogOutputs() throws Exception
+			{
+				return analog_outputs;
+			}
+
+			@Override
+			public void setAnalogOutput(int channel, int value) throws Exception
+			{
+				analog_outputs[channel] = value;
+			}
+
 			@Override
 			public void close()
 			{
@@ -81,4 +109,217 @@ public class WutWrapperTest
 		wut.doRequest("GET /outputaccess15?State=OFF");
 		assertFalse(outputs[15]);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testAnalogRequests() throws Exception
+	{
+		analog_inputs[0] = 0;
+		analog_inputs[3] = 65535;
+		assertEquals("analogin0=0", wut.doRequest("GET /analogin0?"));
+		assertEquals("analogin3=65535", wut.doRequest("GET /analogin3?"));
+
+		assertNull(wut.doRequest("GET /analogoutaccess2?Value=1234"));
+		assertEquals(1234, analog_outputs[2]);
+		assertEquals("analogout2=1234", wut.doRequest("GET /analogout2?"));
+	}
+
+	@Test
+	public void testDeadlinePropagation() throws Exception
+	{
+		long[] deadlines = new long[2];
+		WutWrapper timed = new WutWrapper(new ConnectionService() {
+			@Override
+			public boolean[] getInputs() throws Exception
+			{
+				return new boolean[16];
+			}
+
+			@Override
+			public boolean[] getOutputs() throws Exception
+			{
+				return new boolean[16];
+			}
+
+			@Override
+			public void setOutput(int port, boolean value) throws Exception
+			{
+			}
+
+			@Override
+			public long getInputMask(long deadline) throws Exception
+			{
+				deadlines[0] = deadline;
+				return 0;
+			}
+
+			@Override
+			public void setOutput(int port, boolean value, long deadline) throws Exception
+			{
+				deadlines[1] = deadline;
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		});
+		timed.setTimeout(500);
+
+		// the deadline of a request is its start plus the timeout of the wrapper
+		long start = System.nanoTime();
+		timed.doRequest("GET /input?");
+		timed.doRequest("GET /outputaccess3?State=ON");
+		long end = System.nanoTime();
+
+		for (long deadline : deadlines) {
+			assertTrue(deadline - start >= 500000000L);
+			assertTrue(deadline - end <= 500000000L);
+		}
+	}
+
+	@Test
+	public void testUnknownRequest() throws Exception
+	{
+		try {
+			wut.doRequest("GET /bogus?");
+			fail("unknown request accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertEquals("input=0000", wut.doRequest("GET /input?"));
+	}
+
+	@Test
+	public void testOverflowingNumbers() throws Exception
+	{
+		// 4294967296 wraps to port 0 if the digits aren't limited
+		String[] requests = {
+			"GET /outputaccess4294967296?State=ON",
+			"GET /outputaccess99999999999?State=ON",
+			"GET /outputaccess2048?State=ON",
+			"GET /analogin4294967296?",
+			"GET /analogoutaccess0?Value=4294967296",
+			"GET /analogoutaccess0?Value=65536",
+		};
+		for (String request : requests) {
+			try {
+				wut.doRequest(request);
+				fail(request);
+			} catch (NumberFormatException expected) {
+			}
+		}
+		assertFalse(outputs[0]);
+		assertEquals(0, analog_outputs[0]);
+
+		assertNull(wut.doRequest("GET /analogoutaccess0?Value=65535"));
+		assertEquals(65535, analog_outputs[0]);
+	}
+
+	@Test
+	public void testInputSubscription() throws Exception
+	{
+		inputs[1] = true;
+
+		BlockingQueue<long[]> pushed = new LinkedBlockingQueue<>();
+		InputNotifier.Subscriber subscriber = pushed::add;
+		wut.setNotifyInterval(5);
+		wut.subscribe(subscriber);
+
+		// the current inputs first, then only changes
+		assertEquals(0x0002L, pushed.poll(1, TimeUnit.SECONDS)[0]);
+		inputs[4] = true;
+		assertEquals(0x0012L, pushed.poll(1, TimeUnit.SECONDS)[0]);
+		assertNull(pushed.poll(50, TimeUnit.MILLISECONDS));
+
+		wut.unsubscribe(subscriber);
+		assertTrue(wut.isSubscription(ByteBuffer.wrap("GET /inputsubscribe?".getBytes(StandardCharsets.ISO_8859_1))));
+		assertFalse(wut.isSubscription(ByteBuffer.wrap("GET /input?".getBytes(StandardCharsets.ISO_8859_1))));
+
+		// the subscriber doesn't get pushes after the wrapper is shut down
+		wut.subscribe(subscriber);
+		assertEquals(0x0012L, pushed.poll(1, TimeUnit.SECONDS)[0]);
+		wut.shutdown();
+		inputs[5] = true;
+		assertNull(pushed.poll(50, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testNotifiersShareThreads() throws Exception
+	{
+		BlockingQueue<long[]> pushed = new LinkedBlockingQueue<>();
+		WutWrapper[] wrappers = new WutWrapper[20];
+		for (int i = 0; i < wrappers.length; i++) {
+			wrappers[i] = new WutWrapper(wut.service);
+			wrappers[i].setNotifyInterval(5);
+			wrappers[i].subscribe(pushed::add);
+		}
+		try {
+			for (int i = 0; i < wrappers.length; i++)
+				assertNotNull(pushed.poll(1, TimeUnit.SECONDS));
+
+			// the wrappers don't start a thread each
+			assertTrue(notifierThreads() < wrappers.length);
+		} finally {
+			for (WutWrapper wrapper : wrappers)
+				wrapper.shutdown();
+		}
+	}
+
+	private static int notifierThreads()
+	{
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().equals("wut-notifier") && thread.isAlive())
+				count++;
+		return count;
+	}
+
+	@Test
+	public void testWideInputs() throws Exception
+	{
+		WutWrapper wide = new WutWrapper(new ConnectionService() {
+			@Override
+			public boolean[] getInputs() throws Exception
+			{
+				return new boolean[100];
+			}
+
+			@Override
+			public boolean[] getOutputs() throws Exception
+			{
+				return new boolean[8];
+			}
+
+			@Override
+			public void setOutput(int port, boolean value) throws Exception
+			{
+			}
+
+			@Override
+			public int getInputCount()
+			{
+				return 100;
+			}
+
+			@Override
+			public int getOutputCount()
+			{
+				return 8;
+			}
+
+			@Override
+			public long[] getInputWords(long deadline) throws Exception
+			{
+				return new long[]{0x8000000000000001L, 0x800000001L};
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		});
+
+		// one hex digit per 4 inputs, but at least 4 digits
+		assertEquals("input=800000001" + "8000000000000001", wide.doRequest("GET /input?"));
+		assertEquals("output=0000", wide.doRequest("GET /output?"));
+	}
+}
@@ -0,0 +1,121 @@
+package modbus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest
+{
+	/**
+	 * Expire the wheel until the time is over, like the event loop does.
+	 */
+	private static void run(HashedWheelTimer timer, long millis) throws InterruptedException
+	{
+		long end = System.nanoTime() + millis * 1000000L;
+		while (System.nanoTime() - end < 0) {
+			Thread.sleep(Math.min(timer.nextDelay(10), Math.max(1, (end - System.nanoTime()) / 1000000L)));
+			timer.expire();
+		}
+	}
+
+	@Test
+	public void testTasksRunInOrder() throws Exception
+	{
+		HashedWheelTimer timer = new HashedWheelTimer();
+		List<Integer> order = new ArrayList<>();
+		long[] late = new long[1];
+
+		long start = System.nanoTime();
+		for (int delay : new int[]{50, 10, 30, 20, 40}) {
+			timer.schedule(delay, () -> {
+				order.add(delay);
+				// a task must never run before its deadline
+				if (System.nanoTime() - start < delay * 1000000L)
+					late[0]++;
+			});
+		}
+
+		run(timer, 20);
+		assertTrue(order.size() <= 2);
+		run(timer, 100);
+		assertEquals(5, order.size());
+		for (int i = 1; i < order.size(); i++)
+			assertTrue(order.get(i - 1) < order.get(i));
+		assertEquals(0, late[0]);
+	}
+
+	@Test
+	public void testCancel() throws Exception
+	{
+		HashedWheelTimer timer = new HashedWheelTimer();
+		List<String> runs = new ArrayList<>();
+
+		HashedWheelTimer.Timeout cancelled = timer.schedule(10, () -> runs.add("cancelled"));
+		timer.schedule(10, () -> runs.add("kept"));
+		cancelled.cancel();
+		// cancelling twice or after the run does nothing
+		cancelled.cancel();
+
+		run(timer, 50);
+		assertEquals(1, runs.size());
+		assertEquals("kept", runs.get(0));
+		assertEquals(50, timer.nextDelay(50));
+	}
+
+	@Test
+	public void testTaskCancelsNextTimer() throws Exception
+	{
+		HashedWheelTimer timer = new HashedWheelTimer();
+		List<String> runs = new ArrayList<>();
+
+		// the timers are in the same slot and cancel each other, so only one of them runs
+		HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[2];
+		Runnable first = () -> {
+			runs.add("first");
+			timeouts[1].cancel();
+		};
+		Runnable second = () -> {
+			runs.add("second");
+			timeouts[0].cancel();
+		};
+		timeouts[0] = timer.schedule(5, first);
+		timeouts[1] = timer.schedule(5, second);
+
+		run(timer, 50);
+		assertEquals(1, runs.size());
+	}
+
+	@Test
+	public void testLaterRevolution() throws Exception
+	{
+		HashedWheelTimer timer = new HashedWheelTimer();
+		List<String> runs = new ArrayList<>();
+
+		// 600ms are more than one revolution of the wheel, the timer stays in its slot
+		timer.schedule(600, () -> runs.add("late"));
+		run(timer, 550);
+		assertTrue(runs.isEmpty());
+		run(timer, 200);
+		assertEquals(1, runs.size());
+	}
+
+	@Test
+	public void testStall() throws Exception
+	{
+		HashedWheelTimer timer = new HashedWheelTimer();
+		List<Integer> runs = new ArrayList<>();
+
+		timer.schedule(10, () -> runs.add(10));
+		timer.schedule(700, () -> runs.add(700));
+
+		// the loop was blocked for more than a revolution, the due task runs at the next expire
+		Thread.sleep(600);
+		timer.expire();
+		assertEquals(1, runs.size());
+		run(timer, 200);
+		assertEquals(2, runs.size());
+	}
+}
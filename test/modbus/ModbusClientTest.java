@@ -0,0 +1,428 @@
+package modbus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ModbusClientTest
+{
+	ModbusSimulator simulator;
+	ModbusClient client;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		simulator = new ModbusSimulator(0);
+
+		// the register of an address is the address itself
+		for (int addr = 0; addr < 1000; addr++)
+			simulator.setHoldingRegister(addr, addr);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (client != null)
+			client.disconnect();
+		simulator.close();
+	}
+
+	private ModbusClient connect(boolean pipelined, int timeout) throws IOException
+	{
+		client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setPipelined(pipelined);
+		client.setTimeout(timeout);
+		client.connect();
+		return client;
+	}
+
+	@Test
+	public void testPipelinedResponses() throws Exception
+	{
+		simulator.setLatency(1, 20);
+		connect(true, 3000);
+
+		// all requests are outstanding at the same time, every caller gets its own registers
+		List<CompletableFuture<short[]>> reads = new ArrayList<>();
+		for (int i = 0; i < 500; i++)
+			reads.add(client.readHoldingRegistersAsync(i, 2, new short[2]));
+
+		for (int i = 0; i < 500; i++)
+			assertArrayEquals(new short[]{(short) i, (short) (i + 1)}, reads.get(i).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testResponseOfExpiredTransactionDropped() throws Exception
+	{
+		connect(true, 100);
+
+		// the response arrives after the transaction expired
+		simulator.setLatency(300, 0);
+		try {
+			client.readHoldingRegistersAsync(1, 1, new short[1]).get(1, TimeUnit.SECONDS);
+			fail("the transaction didn't expire");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ModbusException);
+		}
+		simulator.setLatency(0, 0);
+
+		// the late response is dropped by its transaction identifier, the connection stays open
+		Thread.sleep(300);
+		assertArrayEquals(new short[]{2}, client.readHoldingRegistersAsync(2, 1, new short[1]).get(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Accept one connection, read {@code count} requests of function 0x03 and answer
+	 * them in the reverse order with the address as value, then close the connection.
+	 */
+	@Test
+	public void testDeadline() throws Exception
+	{
+		connect(true, 10000);
+		simulator.setLatency(300, 0);
+
+		// the deadline of the caller expires the transaction long before the timeout
+		long start = System.nanoTime();
+		try {
+			client.readInputWordsAsync(0, 16, new long[1], start + 50000000L).get(1, TimeUnit.SECONDS);
+			fail("the deadline didn't expire the transaction");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ModbusException);
+		}
+		assertTrue(System.nanoTime() - start < 250000000L);
+
+		// a missed deadline doesn't break the connection, the late response is dropped
+		for (int i = 0; i < 5; i++) {
+			try {
+				client.readInputWordsAsync(0, 16, new long[1], System.nanoTime() + 10000000L).get(1, TimeUnit.SECONDS);
+				fail("the deadline didn't expire the transaction");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ModbusException);
+			}
+		}
+		simulator.setLatency(0, 0);
+		assertArrayEquals(new short[]{2}, client.readHoldingRegistersAsync(2, 1, new short[1]).get(5, TimeUnit.SECONDS));
+		assertEquals(1, simulator.getConnectionCount());
+	}
+
+	/**
+	 * Assert, that the request failed like a request rejected by the server with "illegal data value".
+	 */
+	private static void assertIllegalDataValue(CompletableFuture<?> future) throws Exception
+	{
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("invalid request accepted");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ModbusException);
+			assertEquals(ModbusProtocol.E_ILLEGAL_DATA_VALUE, ((ModbusException) e.getCause()).getExceptionCode());
+		}
+	}
+
+	@Test
+	public void testWriteOutputsRange() throws Exception
+	{
+		connect(true, 3000);
+
+		// the invalid writes fail before anything is encoded
+		assertIllegalDataValue(client.writeOutputsAsync(0, 0, new long[1]));
+		assertIllegalDataValue(client.writeOutputsAsync(0, 1969, new long[31]));
+		assertIllegalDataValue(client.writeOutputsAsync(0, 65, new long[1]));
+
+		long[] words = new long[31];
+		words[30] = 1L << 47;
+		client.writeOutputsAsync(0, 1968, words).get(1, TimeUnit.SECONDS);
+		assertTrue(simulator.getCoil(1967));
+		assertFalse(simulator.getCoil(1966));
+	}
+
+	@Test
+	public void testRegistersRange() throws Exception
+	{
+		connect(true, 3000);
+
+		assertIllegalDataValue(client.writeRegistersAsync(0, 0, new short[1]));
+		assertIllegalDataValue(client.writeRegistersAsync(0, 124, new short[124]));
+		assertIllegalDataValue(client.writeRegistersAsync(0, 3, new short[2]));
+		assertIllegalDataValue(client.readHoldingRegistersAsync(0, 126, new short[126]));
+		assertIllegalDataValue(client.readHoldingRegistersAsync(0, 3, new short[2]));
+		assertIllegalDataValue(client.readInputRegistersAsync(0, 3, new int[2]));
+
+		// the blocking read fails before the registers are allocated
+		try {
+			client.readHoldingRegisters(0, Integer.MAX_VALUE);
+			fail("invalid read accepted");
+		} catch (ModbusException e) {
+			assertEquals(ModbusProtocol.E_ILLEGAL_DATA_VALUE, e.getExceptionCode());
+		}
+
+		short[] values = new short[123];
+		values[122] = 1234;
+		client.writeRegistersAsync(0, 123, values).get(1, TimeUnit.SECONDS);
+		assertArrayEquals(values, client.readHoldingRegisters(0, 123));
+	}
+
+	private static Thread reversingServer(ServerSocket ssocket, int count)
+	{
+		Thread thread = new Thread(() -> {
+			try (Socket socket = ssocket.accept()) {
+				DataInputStream is = new DataInputStream(socket.getInputStream());
+				OutputStream os = socket.getOutputStream();
+
+				List<ByteBuffer> responses = new ArrayList<>();
+				for (int i = 0; i < count; i++) {
+					short ident = is.readShort();
+					is.readShort();
+					byte[] pdu = new byte[is.readShort()];
+					is.readFully(pdu);
+					short address = ByteBuffer.wrap(pdu).getShort(2);
+
+					ByteBuffer res = ByteBuffer.allocate(11);
+					res.putShort(ident).putShort((short) 0).putShort((short) 5);
+					res.put(pdu[0]).put((byte) ModbusProtocol.F_READ_HOLDING_REGISTERS).put((byte) 2).putShort(address);
+					responses.add(res);
+				}
+
+				for (int i = count - 1; i >= 0; i--)
+					os.write(responses.get(i).array());
+				os.flush();
+
+				// wait until the client is done
+				is.read();
+			} catch (IOException ignore) {
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testOutOfOrderResponses() throws Exception
+	{
+		try (ServerSocket ssocket = new ServerSocket(0)) {
+			Thread server = reversingServer(ssocket, 10);
+			client = new ModbusClient("127.0.0.1", ssocket.getLocalPort());
+			client.setPipelined(true);
+			client.connect();
+
+			List<CompletableFuture<short[]>> reads = new ArrayList<>();
+			for (int i = 0; i < 10; i++)
+				reads.add(client.readHoldingRegistersAsync(100 + i, 1, new short[1]));
+
+			for (int i = 0; i < 10; i++)
+				assertArrayEquals(new short[]{(short) (100 + i)}, reads.get(i).get(1, TimeUnit.SECONDS));
+
+			client.disconnect();
+			server.join(1000);
+		}
+	}
+
+	@Test
+	public void testFailAllOnClose() throws Exception
+	{
+		simulator.setLatency(10000, 0);
+		connect(true, 10000);
+		client.setReconnect(false);
+
+		List<CompletableFuture<short[]>> reads = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			reads.add(client.readHoldingRegistersAsync(i, 1, new short[1]));
+
+		// the server goes away, so all outstanding transactions fail at once
+		Thread.sleep(100);
+		simulator.close();
+		for (CompletableFuture<short[]> read : reads) {
+			try {
+				read.get(1, TimeUnit.SECONDS);
+				fail("the transaction didn't fail");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+
+	/**
+	 * Start the simulator again on the port of the closed one.
+	 */
+	private void restartSimulator(int port) throws Exception
+	{
+		for (int i = 0; ; i++) {
+			try {
+				simulator = new ModbusSimulator(port);
+				simulator.setHoldingRegister(1, 1);
+				return;
+			} catch (IOException e) {
+				// the old server socket is closed by its event loop
+				if (i == 100)
+					throw e;
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * @return time in milliseconds until a read succeeds
+	 */
+	private long awaitRecovery(long max) throws Exception
+	{
+		long start = System.nanoTime();
+		while (true) {
+			try {
+				assertArrayEquals(new short[]{1}, client.readHoldingRegistersAsync(1, 1, new short[1]).get(1, TimeUnit.SECONDS));
+				return (System.nanoTime() - start) / 1000000;
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			if (System.nanoTime() - start > max * 1000000)
+				fail("not reconnected within " + max + "ms");
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testReconnect() throws Exception
+	{
+		connect(true, 1000);
+		int port = simulator.getPort();
+		assertArrayEquals(new short[]{1}, client.readHoldingRegisters(1, 1));
+
+		// the requests fail fast while the server is away
+		simulator.close();
+		Thread.sleep(1000);
+		try {
+			client.readHoldingRegistersAsync(1, 1, new short[1]).get(1, TimeUnit.SECONDS);
+			fail("read without server");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		// within one second 4 attempts are made at most, so the 5th is due within 1600ms
+		restartSimulator(port);
+		long recovery = awaitRecovery(3000);
+		assertTrue("recovered after " + recovery + "ms", recovery <= 1600 + 500);
+	}
+
+	@Test
+	public void testReconnectAllConnections() throws Exception
+	{
+		client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setConnections(4);
+		client.connect();
+		int port = simulator.getPort();
+		awaitConnections(4, 1000);
+
+		simulator.close();
+		Thread.sleep(200);
+		restartSimulator(port);
+		awaitRecovery(3000);
+
+		// the other connections are opened again independently
+		awaitConnections(4, 3000);
+	}
+
+	private void awaitConnections(int count, long max) throws InterruptedException
+	{
+		for (long i = 0; i < max / 10 && simulator.getConnectionCount() < count; i++)
+			Thread.sleep(10);
+		assertEquals(count, simulator.getConnectionCount());
+	}
+
+	@Test
+	public void testReconnectDelayBounds()
+	{
+		for (int attempts = 0; attempts < 40; attempts++) {
+			long max = Math.min(30000, 100L << Math.min(attempts, 20));
+			long min = Long.MAX_VALUE;
+			long sum = 0;
+			for (int i = 0; i < 1000; i++) {
+				long delay = ModbusClient.reconnectDelay(attempts);
+				assertTrue("delay " + delay + " of attempt " + attempts, delay >= max / 2 && delay <= max);
+				min = Math.min(min, delay);
+				sum += delay;
+			}
+			// the delays are spread, so the clients don't reconnect at the same time
+			assertTrue(min < max * 3 / 5);
+			assertTrue(sum / 1000 > max * 3 / 5 && sum / 1000 < max * 9 / 10);
+		}
+	}
+
+	@Test
+	public void testRequestsSpreadOverConnections() throws Exception
+	{
+		// without pipelining each connection has only one outstanding request
+		simulator.setLatency(200, 0);
+		client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setConnections(4);
+		client.setTimeout(5000);
+		client.connect();
+
+		long start = System.nanoTime();
+		List<CompletableFuture<short[]>> reads = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			reads.add(client.readHoldingRegistersAsync(i, 1, new short[1]));
+		for (int i = 0; i < 8; i++)
+			assertArrayEquals(new short[]{(short) i}, reads.get(i).get(5, TimeUnit.SECONDS));
+
+		// 2 rounds of 4 parallel requests, one connection would need 8 rounds
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		assertTrue("elapsed " + elapsed + "ms", elapsed < 1000);
+	}
+
+	@Test
+	public void testUnitsTakeTurns() throws Exception
+	{
+		// a gateway, which answers the requests of a unit one after another
+		simulator.setLatency(50, 0);
+		client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setPipelined(true);
+		client.setUnitWindow(1);
+		client.connect();
+		ModbusClient flooding = client.forUnit(1);
+		ModbusClient other = client.forUnit(2);
+
+		List<CompletableFuture<short[]>> floods = new ArrayList<>();
+		for (int i = 0; i < 40; i++)
+			floods.add(flooding.readHoldingRegistersAsync(i, 1, new short[1]));
+
+		// the other unit isn't queued behind the 40 requests of the flooding one
+		long start = System.nanoTime();
+		assertArrayEquals(new short[]{7}, other.readHoldingRegistersAsync(7, 1, new short[1]).get(2, TimeUnit.SECONDS));
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		assertTrue("elapsed " + elapsed + "ms", elapsed < 500);
+
+		int completed = 0;
+		for (CompletableFuture<short[]> flood : floods)
+			if (flood.isDone())
+				completed++;
+		assertTrue("completed " + completed, completed < 10);
+	}
+
+	@Test
+	public void testUnitAfterReconnect() throws Exception
+	{
+		client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setReadBatching(0);
+		client.connect();
+		ModbusClient unit = client.forUnit(3);
+		assertArrayEquals(new short[]{5}, unit.readHoldingRegistersAsync(5, 1, new short[1]).get(1, TimeUnit.SECONDS));
+
+		// the client of the unit uses the new event loop of its root
+		client.disconnect();
+		client.connect();
+		assertArrayEquals(new short[]{6}, unit.readHoldingRegistersAsync(6, 1, new short[1]).get(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,269 @@
+package modbus;
+
+import metrics.Metrics;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ModbusFramingTest
+{
+	/* read holding registers 0 to 9 of unit 1 with its CRC */
+	private final static byte[] READ_REQUEST = {0x01, 0x03, 0x00, 0x00, 0x00, 0x0A, (byte) 0xC5, (byte) 0xCD};
+
+	private static byte[] bytes(ByteBuffer buff)
+	{
+		byte[] bytes = new byte[buff.remaining()];
+		buff.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return RTU response of function 0x02 with the data bytes and a valid CRC
+	 */
+	private static ByteBuffer response(byte... data)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(5 + data.length);
+		frame.put((byte) 0x01).put((byte) ModbusProtocol.F_READ_DISCRETE_INPUTS).put((byte) data.length).put(data);
+		int crc = ModbusCrc.crc16(frame, 0, frame.position());
+		frame.put((byte) crc).put((byte) (crc >>> 8));
+		return frame.flip();
+	}
+
+	@Test
+	public void testCrcVector()
+	{
+		ByteBuffer frame = ByteBuffer.wrap(READ_REQUEST);
+		assertEquals(0xCDC5, ModbusCrc.crc16(frame, 0, 6));
+		assertEquals(0xCDC5, ModbusCrc.crc16Table(frame, 0, 6));
+	}
+
+	@Test
+	public void testCrcVariants()
+	{
+		// the slicing-by-8 must give the CRC of the bitwise definition for any length and alignment
+		Random random = new Random(1);
+		ByteBuffer buff = ByteBuffer.allocateDirect(300);
+		for (int i = 0; i < 1000; i++) {
+			int from = random.nextInt(16);
+			int to = from + random.nextInt(280);
+			for (int j = from; j < to; j++)
+				buff.put(j, (byte) random.nextInt());
+
+			int crc = 0xffff;
+			for (int j = from; j < to; j++) {
+				crc ^= buff.get(j) & 0xff;
+				for (int bit = 0; bit < 8; bit++)
+					crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+			}
+			assertEquals(crc, ModbusCrc.crc16(buff, from, to));
+			assertEquals(crc, ModbusCrc.crc16Table(buff, from, to));
+		}
+	}
+
+	@Test
+	public void testWriteRequest()
+	{
+		ModbusMessage req = new ModbusMessage(ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE), (byte) 0x01,
+		ModbusProtocol.F_READ_HOLDING_REGISTERS);
+		req.addDataShort((short) 0);
+		req.addDataShort((short) 10);
+
+		ByteBuffer out = ByteBuffer.allocate(ModbusProtocol.MODBUS_MAX_SEGMENT_SIZE);
+		new ModbusFraming.Rtu().write(req, out);
+		assertArrayEquals(READ_REQUEST, bytes(out.flip()));
+	}
+
+	@Test
+	public void testParseRequest() throws Exception
+	{
+		ModbusFraming framing = new ModbusFraming.Rtu();
+		ByteBuffer in = ByteBuffer.wrap(READ_REQUEST);
+		assertEquals(8, framing.frameLength(in, true));
+
+		ModbusMessage req = framing.parse(in, 8, (short) 0, new ModbusMessage());
+		assertEquals(ModbusProtocol.F_READ_HOLDING_REGISTERS, req.getFunctionCode());
+		assertEquals(1, req.getUnitIdentifier());
+		assertEquals(ModbusProtocol.MBAP_HEADER_LENGTH + 4, req.getFrameLength());
+		assertEquals(0, req.getDataShort());
+		assertEquals(10, req.getDataShort());
+	}
+
+	@Test
+	public void testFrameSplitAcrossReads() throws Exception
+	{
+		ModbusFraming framing = new ModbusFraming.Rtu();
+		byte[] frame = bytes(response((byte) 0x55, (byte) 0x0f, (byte) 0x81));
+
+		// the frame arrives byte by byte, followed by the first byte of the next frame
+		ByteBuffer in = ByteBuffer.allocate(64);
+		for (int i = 0; i < frame.length; i++) {
+			in.put(frame[i]).flip();
+			assertEquals(i == frame.length - 1 ? frame.length : 0, framing.frameLength(in, false));
+			in.compact();
+		}
+		in.put((byte) 0x01).flip();
+		assertEquals(frame.length, framing.frameLength(in, false));
+
+		ModbusMessage res = framing.parse(in, frame.length, (short) 7, new ModbusMessage());
+		assertEquals(7, res.getTransactionIdentifier());
+		assertEquals(ModbusProtocol.F_READ_DISCRETE_INPUTS, res.getFunctionCode());
+		long[] words = new long[1];
+		res.getDataBits(res.getDataByte(), words);
+		assertEquals(0x810f55L, words[0]);
+
+		in.position(in.position() + frame.length);
+		assertEquals(0, framing.frameLength(in, false));
+	}
+
+	@Test
+	public void testFrameLengths() throws Exception
+	{
+		ModbusFraming framing = new ModbusFraming.Rtu();
+
+		// exception response, write response and write multiple request with its byte count
+		assertEquals(5, framing.frameLength(ByteBuffer.wrap(new byte[]{1, (byte) 0x82, 2, 0, 0}), false));
+		assertEquals(8, framing.frameLength(ByteBuffer.wrap(new byte[]{1, 0x0F, 0, 0, 0, 16, 0, 0}), false));
+		assertEquals(0, framing.frameLength(ByteBuffer.wrap(new byte[]{1, 0x0F, 0, 0, 0, 16}), true));
+		assertEquals(11, framing.frameLength(ByteBuffer.wrap(new byte[]{1, 0x0F, 0, 0, 0, 16, 2, 0, 0, 0, 0}), true));
+
+		try {
+			framing.frameLength(ByteBuffer.wrap(new byte[]{1, 0x2B, 0, 0}), false);
+			fail("function 0x2B can't be delimited");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void testBadCrc() throws Exception
+	{
+		ModbusFraming framing = new ModbusFraming.Rtu();
+		ByteBuffer in = response((byte) 0x55);
+		in.put(3, (byte) 0x54);
+
+		try {
+			framing.parse(in, framing.frameLength(in, false), (short) 1, new ModbusMessage());
+			fail("the CRC error isn't detected");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void testRtuSimulator() throws Exception
+	{
+		ModbusSimulator simulator = new ModbusSimulator(0);
+		simulator.setTransport(ModbusTransport.RTU);
+		for (int addr = 0; addr < 2000; addr += 3)
+			simulator.setDiscreteInput(addr, true);
+
+		ModbusClient client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setTransport(ModbusTransport.RTU);
+		client.connect();
+		try {
+			long[] words = client.readInputWordsAsync(0, 2000, new long[32]).get(1, TimeUnit.SECONDS);
+			assertEquals(0x9249249249249249L, words[0]);
+
+			client.writeOutputsAsync(10, 20, new long[]{0xfffffL}).get(1, TimeUnit.SECONDS);
+			client.writeRegistersAsync(3, 2, new short[]{7, 8}).get(1, TimeUnit.SECONDS);
+			assertTrue(simulator.getCoil(29));
+			assertArrayEquals(new short[]{7, 8}, client.readHoldingRegistersAsync(3, 2, new short[2]).get(1, TimeUnit.SECONDS));
+		} finally {
+			client.disconnect();
+			simulator.close();
+		}
+	}
+
+	@Test
+	public void testLateResponse() throws Exception
+	{
+		ModbusSimulator simulator = new ModbusSimulator(0);
+		simulator.setTransport(ModbusTransport.RTU);
+		simulator.setDiscreteInput(0, true);
+
+		ModbusClient client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setTransport(ModbusTransport.RTU);
+		client.setTimeout(100);
+		client.connect();
+		try {
+			// the response arrives after the request expired
+			simulator.setLatency(300, 0);
+			try {
+				client.readInputWordsAsync(0, 16, new long[1]).get(1, TimeUnit.SECONDS);
+				fail("the request didn't expire");
+			} catch (ExecutionException expected) {
+			}
+			simulator.setLatency(0, 0);
+
+			// the late response must not be taken for the response of the next request
+			for (int attempt = 0; ; attempt++) {
+				try {
+					assertEquals(0L, client.readInputWordsAsync(16, 16, new long[1]).get(1, TimeUnit.SECONDS)[0]);
+					break;
+				} catch (ExecutionException e) {
+					// not connected again yet
+					if (attempt == 50)
+						throw e;
+					Thread.sleep(20);
+				}
+			}
+		} finally {
+			client.disconnect();
+			simulator.close();
+		}
+	}
+
+	/**
+	 * @return current value of the metric modbus_in_flight
+	 */
+	private static long inFlight()
+	{
+		long[] value = new long[1];
+		Metrics.MODBUS.collect((name, labels, v) -> {
+			if (name.equals("modbus_in_flight"))
+				value[0] = (long) v;
+		});
+		return value[0];
+	}
+
+	@Test
+	public void testMismatchedResponse() throws Exception
+	{
+		// a device server, which answers a read of holding registers with discrete inputs
+		ServerSocket server = new ServerSocket(0);
+		Thread device = new Thread(() -> {
+			try (Socket socket = server.accept()) {
+				InputStream in = socket.getInputStream();
+				for (int i = 0; i < READ_REQUEST.length; i++)
+					in.read();
+				socket.getOutputStream().write(bytes(response((byte) 0x55)));
+				in.read();
+			} catch (IOException ignore) {
+			}
+		});
+		device.start();
+
+		long in_flight = inFlight();
+		ModbusClient client = new ModbusClient("127.0.0.1", server.getLocalPort());
+		client.setTransport(ModbusTransport.RTU);
+		client.connect();
+		try {
+			client.readHoldingRegistersAsync(0, 10, new short[10]).get(1, TimeUnit.SECONDS);
+			fail("the response of another function is accepted");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		} finally {
+			client.disconnect();
+			server.close();
+			device.join(1000);
+		}
+		assertEquals(in_flight, inFlight());
+	}
+}
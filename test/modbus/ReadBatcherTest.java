@@ -0,0 +1,145 @@
+package modbus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReadBatcherTest
+{
+	ModbusEventLoop loop;
+
+	/* start and count of each request sent by a batcher */
+	List<int[]> frames;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		loop = new ModbusEventLoop("read-batcher-test");
+		frames = new ArrayList<>();
+	}
+
+	@After
+	public void tearDown()
+	{
+		loop.close();
+	}
+
+	/**
+	 * The bit of an address is set, if the address is a multiple of 3.
+	 */
+	private static boolean bit(int address)
+	{
+		return address % 3 == 0;
+	}
+
+	private static long[] bits(int start, int n)
+	{
+		long[] words = new long[(n + 63) / 64];
+		for (int i = 0; i < n; i++)
+			if (bit(start + i))
+				words[i >> 6] |= 1L << i;
+		return words;
+	}
+
+	private ReadBatcher<long[]> bitBatcher(int window)
+	{
+		return ReadBatcher.forBits(() -> loop, (start, n, dst) -> {
+			frames.add(new int[]{start, n});
+			System.arraycopy(bits(start, n), 0, dst, 0, dst.length);
+			return CompletableFuture.completedFuture(dst);
+		}, window);
+	}
+
+	@Test
+	public void testMergeAdjacentReads() throws Exception
+	{
+		ReadBatcher<long[]> batcher = bitBatcher(50);
+
+		// 100 adjacent reads of 16 bits at odd offsets
+		List<CompletableFuture<long[]>> reads = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			reads.add(batcher.read(5 + 16 * i, 16, new long[1]));
+
+		for (int i = 0; i < 100; i++)
+			assertArrayEquals(bits(5 + 16 * i, 16), reads.get(i).get(1, TimeUnit.SECONDS));
+
+		assertEquals(1, frames.size());
+		assertEquals(5, frames.get(0)[0]);
+		assertEquals(1600, frames.get(0)[1]);
+	}
+
+	@Test
+	public void testMergeOverlappingReads() throws Exception
+	{
+		ReadBatcher<long[]> batcher = bitBatcher(50);
+
+		CompletableFuture<long[]> a = batcher.read(100, 70, new long[2]);
+		CompletableFuture<long[]> b = batcher.read(10, 100, new long[2]);
+		CompletableFuture<long[]> c = batcher.read(60, 3, new long[1]);
+
+		assertArrayEquals(bits(100, 70), a.get(1, TimeUnit.SECONDS));
+		assertArrayEquals(bits(10, 100), b.get(1, TimeUnit.SECONDS));
+		assertArrayEquals(bits(60, 3), c.get(1, TimeUnit.SECONDS));
+
+		assertEquals(1, frames.size());
+		assertEquals(10, frames.get(0)[0]);
+		assertEquals(160, frames.get(0)[1]);
+	}
+
+	@Test
+	public void testGapsAndLimitSplitReads() throws Exception
+	{
+		ReadBatcher<long[]> batcher = bitBatcher(50);
+
+		// a gap of one address isn't read, the frames are limited to MAX_BITS
+		CompletableFuture<long[]> a = batcher.read(0, 8, new long[1]);
+		CompletableFuture<long[]> b = batcher.read(9, 8, new long[1]);
+		CompletableFuture<long[]> c = batcher.read(100, 1500, new long[24]);
+		CompletableFuture<long[]> d = batcher.read(1600, 1000, new long[16]);
+
+		assertArrayEquals(bits(0, 8), a.get(1, TimeUnit.SECONDS));
+		assertArrayEquals(bits(9, 8), b.get(1, TimeUnit.SECONDS));
+		assertArrayEquals(bits(100, 1500), c.get(1, TimeUnit.SECONDS));
+		assertArrayEquals(bits(1600, 1000), d.get(1, TimeUnit.SECONDS));
+
+		assertEquals(4, frames.size());
+	}
+
+	@Test
+	public void testMergeRegisterReads() throws Exception
+	{
+		ReadBatcher<short[]> batcher = ReadBatcher.forRegisters(() -> loop, (start, n, dst) -> {
+			frames.add(new int[]{start, n});
+			for (int i = 0; i < n; i++)
+				dst[i] = (short) (start + i);
+			return CompletableFuture.completedFuture(dst);
+		}, 50);
+
+		CompletableFuture<short[]> a = batcher.read(20, 4, new short[4]);
+		CompletableFuture<short[]> b = batcher.read(24, 2, new short[2]);
+
+		assertArrayEquals(new short[]{20, 21, 22, 23}, a.get(1, TimeUnit.SECONDS));
+		assertArrayEquals(new short[]{24, 25}, b.get(1, TimeUnit.SECONDS));
+		assertEquals(1, frames.size());
+	}
+
+	@Test
+	public void testCopyBits()
+	{
+		long[] src = bits(0, 256);
+		for (int offset = 0; offset < 128; offset += 7) {
+			for (int n = 1; n <= 128; n += 9) {
+				long[] dst = new long[(n + 63) / 64];
+				ReadBatcher.copyBits(src, offset, dst, n);
+				assertArrayEquals(bits(offset, n), dst);
+			}
+		}
+	}
+}
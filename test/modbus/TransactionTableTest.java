@@ -0,0 +1,105 @@
+package modbus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class TransactionTableTest
+{
+	private static ModbusTransaction<Void> newTransaction()
+	{
+		return new ModbusTransaction<>(new ModbusMessage(ByteBuffer.allocate(260), (byte) 1, 0x03), res -> null);
+	}
+
+	@Test
+	public void testPutGetRemove()
+	{
+		TransactionTable table = new TransactionTable();
+		assertTrue(table.isEmpty());
+
+		ModbusTransaction<Void> transaction = newTransaction();
+		short ident = table.nextIdentifier((short) 0);
+		assertEquals(1, ident);
+		table.put(ident, transaction);
+
+		assertEquals(1, table.size());
+		assertSame(transaction, table.get(ident));
+		// an identifier of the same slot, but another transaction
+		assertNull(table.get((short) (ident + 64)));
+		assertNull(table.remove((short) (ident + 64)));
+
+		assertSame(transaction, table.remove(ident));
+		assertNull(table.remove(ident));
+		assertTrue(table.isEmpty());
+	}
+
+	@Test
+	public void testIdentifiersSkipUsedSlots()
+	{
+		TransactionTable table = new TransactionTable();
+
+		// zero isn't a valid identifier, the identifiers wrap around
+		assertEquals(1, table.nextIdentifier((short) -1));
+
+		// a long running transaction blocks its slot
+		table.put((short) 2, newTransaction());
+		assertEquals(3, table.nextIdentifier((short) 1));
+		// 66 uses the same slot as 2
+		assertEquals(67, table.nextIdentifier((short) 65));
+	}
+
+	@Test
+	public void testGrow()
+	{
+		TransactionTable table = new TransactionTable();
+		List<ModbusTransaction<Void>> transactions = new ArrayList<>();
+		List<Short> idents = new ArrayList<>();
+
+		short ident = 0;
+		for (int i = 0; i < 1000; i++) {
+			ident = table.nextIdentifier(ident);
+			ModbusTransaction<Void> transaction = newTransaction();
+			table.put(ident, transaction);
+			transactions.add(transaction);
+			idents.add(ident);
+		}
+
+		assertEquals(1000, table.size());
+		for (int i = 0; i < 1000; i++)
+			assertSame(transactions.get(i), table.get(idents.get(i)));
+	}
+
+	@Test
+	public void testFailAll() throws Exception
+	{
+		TransactionTable table = new TransactionTable();
+		List<ModbusTransaction<Void>> transactions = new ArrayList<>();
+
+		short ident = 0;
+		for (int i = 0; i < 100; i++) {
+			ident = table.nextIdentifier(ident);
+			ModbusTransaction<Void> transaction = newTransaction();
+			table.put(ident, transaction);
+			transactions.add(transaction);
+		}
+
+		table.failAll(new IOException("closed"));
+		assertTrue(table.isEmpty());
+		assertNull(table.get(ident));
+
+		for (ModbusTransaction<Void> transaction : transactions) {
+			try {
+				transaction.getFuture().get();
+				fail("transaction not failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+}
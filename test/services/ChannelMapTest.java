@@ -0,0 +1,151 @@
+package services;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChannelMapTest
+{
+	/**
+	 * The bit of an address is set, if the address is a multiple of 3 or 7.
+	 */
+	private static boolean bit(int address)
+	{
+		return address % 3 == 0 || address % 7 == 0;
+	}
+
+	/**
+	 * Reads the bits of {@link #bit(int)} and counts the requests.
+	 */
+	private static class Reader implements ChannelMap.Reader
+	{
+		int requests;
+
+		@Override
+		public CompletableFuture<long[]> read(int start, int n, long[] words)
+		{
+			requests++;
+			for (int i = 0; i < n; i++)
+				if (bit(start + i))
+					words[i >> 6] |= 1L << i;
+			return CompletableFuture.completedFuture(words);
+		}
+	}
+
+	private static boolean port(long[] image, int port)
+	{
+		return (image[port >> 6] & (1L << port)) != 0;
+	}
+
+	/**
+	 * Read the image of the map and compare each port with the bit of its address.
+	 */
+	private static void assertImage(ChannelMap map, boolean[] inverted) throws Exception
+	{
+		Reader reader = new Reader();
+		long[] image = map.read(reader).get(1, TimeUnit.SECONDS);
+
+		assertEquals(map.getFrames(), reader.requests);
+		assertEquals((map.getCount() + 63) / 64, image.length);
+		for (int port = 0; port < map.getCount(); port++)
+			assertEquals(bit(map.address(port)) ^ inverted[port], port(image, port));
+	}
+
+	@Test
+	public void testSingleBlock() throws Exception
+	{
+		ChannelMap map = ChannelMap.parse("5:100", 0);
+		assertEquals(100, map.getCount());
+		assertEquals(1, map.getFrames());
+		assertEquals(5, map.address(0));
+		assertEquals(104, map.address(99));
+		assertImage(map, new boolean[100]);
+	}
+
+	@Test
+	public void testGapMerging() throws Exception
+	{
+		// a gap of 4 addresses is read, when the max. gap allows it
+		ChannelMap merged = ChannelMap.parse("0:16,20:16", 4);
+		assertEquals(1, merged.getFrames());
+		assertEquals(0, merged.frame_addresses[0]);
+		assertEquals(36, merged.frame_counts[0]);
+		assertImage(merged, new boolean[32]);
+
+		ChannelMap split = ChannelMap.parse("0:16,20:16", 3);
+		assertEquals(2, split.getFrames());
+		assertEquals(20, split.frame_addresses[1]);
+		assertEquals(16, split.frame_counts[1]);
+		assertImage(split, new boolean[32]);
+
+		// adjacent blocks are always merged, the order of the blocks doesn't matter
+		ChannelMap adjacent = ChannelMap.parse("16:16,0:16", 0);
+		assertEquals(1, adjacent.getFrames());
+		assertEquals(16, adjacent.address(0));
+		assertEquals(0, adjacent.address(16));
+		assertImage(adjacent, new boolean[32]);
+
+		// a merged frame doesn't exceed the max. size of a request
+		ChannelMap wide = ChannelMap.parse("0:1990,2000:20", 100);
+		assertEquals(2, wide.getFrames());
+		assertImage(wide, new boolean[2010]);
+	}
+
+	@Test
+	public void testInvertedBlocks() throws Exception
+	{
+		// the second block spans the words of the image and of its frame
+		ChannelMap map = ChannelMap.parse("0:40,40=!100:40,80=30:8", 10);
+		assertEquals(88, map.getCount());
+
+		boolean[] inverted = new boolean[88];
+		for (int port = 40; port < 80; port++)
+			inverted[port] = true;
+		assertImage(map, inverted);
+
+		// the values of the writes are inverted like the reads
+		assertTrue(map.value(39, true));
+		assertFalse(map.value(40, true));
+		assertTrue(map.value(79, false));
+		assertTrue(map.value(80, true));
+		assertEquals(100, map.address(40));
+		assertEquals(30, map.address(80));
+	}
+
+	@Test
+	public void testTranslate()
+	{
+		// ports 0-3 from the frame at address 62, ports 4-7 inverted from the frame at address 200
+		ChannelMap map = ChannelMap.parse("62:4,!200:4", 0);
+		long[][] frames = {{0x9L}, {0x5L}};
+		assertArrayEquals(new long[]{0xa9L}, map.translate(frames));
+	}
+
+	@Test
+	public void testUnmappedPorts() throws Exception
+	{
+		ChannelMap map = ChannelMap.parse("8=0:8", 0);
+		assertEquals(16, map.getCount());
+		try {
+			map.address(3);
+			fail("port 3 isn't mapped");
+		} catch (IndexOutOfBoundsException expected) {
+		}
+	}
+
+	@Test
+	public void testInvalidMaps()
+	{
+		String[] specs = {"0:8,4=100:8", "0:2049", "65530:16", "0:0"};
+		for (String spec : specs) {
+			try {
+				ChannelMap.parse(spec, 0);
+				fail(spec + " is invalid");
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
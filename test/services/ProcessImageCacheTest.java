@@ -0,0 +1,132 @@
+package services;
+
+import modbus.ModbusException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProcessImageCacheTest
+{
+	/* the reads of the cache, completed by the test */
+	final List<CompletableFuture<String>> reads = new ArrayList<>();
+	final AtomicInteger count = new AtomicInteger();
+
+	final ProcessImageCache<String> cache = new ProcessImageCache<>(() -> {
+		CompletableFuture<String> read = new CompletableFuture<>();
+		synchronized (reads) {
+			reads.add(read);
+			count.incrementAndGet();
+		}
+		return read;
+	}, 3600000);
+
+	private CompletableFuture<String> read(int i)
+	{
+		synchronized (reads) {
+			return reads.get(i);
+		}
+	}
+
+	private CompletableFuture<String> getAsync()
+	{
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return cache.get();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	private void awaitReads(int n) throws InterruptedException
+	{
+		for (int i = 0; i < 100 && count.get() < n; i++)
+			Thread.sleep(10);
+		assertEquals(n, count.get());
+	}
+
+	@Test
+	public void testConcurrentMissesCoalesce() throws Exception
+	{
+		List<CompletableFuture<String>> gets = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			gets.add(getAsync());
+
+		// all callers wait for the same read
+		awaitReads(1);
+		Thread.sleep(50);
+		assertEquals(1, count.get());
+		read(0).complete("image");
+
+		for (CompletableFuture<String> get : gets)
+			assertEquals("image", get.get(1, TimeUnit.SECONDS));
+
+		// the image is served from the cache now
+		assertEquals("image", cache.get());
+		assertEquals(1, count.get());
+	}
+
+	@Test
+	public void testUpdateWinsOverReadInFlight() throws Exception
+	{
+		CompletableFuture<String> get = getAsync();
+		awaitReads(1);
+
+		// the read was answered before the write, so it must not be cached
+		cache.update(image -> image + "+write");
+		read(0).complete("stale");
+		assertEquals("stale", get.get(1, TimeUnit.SECONDS));
+
+		get = getAsync();
+		awaitReads(2);
+		read(1).complete("fresh");
+		assertEquals("fresh", get.get(1, TimeUnit.SECONDS));
+
+		// a write is applied to the cached image without reading again
+		cache.update(image -> image + "+write");
+		assertEquals("fresh+write", cache.get());
+		assertEquals(2, count.get());
+	}
+
+	@Test
+	public void testDeadline() throws Exception
+	{
+		CompletableFuture<String> get = getAsync();
+		awaitReads(1);
+
+		// the waiting is given up, but the read still serves the other callers
+		try {
+			cache.get(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20));
+			fail("the deadline isn't exceeded");
+		} catch (ModbusException expected) {
+		}
+		read(0).complete("image");
+		assertEquals("image", get.get(1, TimeUnit.SECONDS));
+		assertEquals("image", cache.get());
+		assertEquals(1, count.get());
+	}
+
+	@Test
+	public void testFailedReadNotCached() throws Exception
+	{
+		CompletableFuture<String> get = getAsync();
+		awaitReads(1);
+		read(0).completeExceptionally(new ModbusException("no response"));
+		try {
+			get.get(1, TimeUnit.SECONDS);
+			fail("the read didn't fail");
+		} catch (Exception expected) {
+		}
+
+		get = getAsync();
+		awaitReads(2);
+		read(1).complete("image");
+		assertEquals("image", get.get(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,148 @@
+package services;
+
+import modbus.ModbusClient;
+import modbus.ModbusException;
+import modbus.ModbusSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanPollerTest
+{
+	/* cycle time in milliseconds */
+	final static int CYCLE = 20;
+
+	ModbusSimulator simulator;
+	ModbusClient client;
+	ScanPoller poller;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		simulator = new ModbusSimulator(0);
+		client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setPipelined(true);
+		client.setTimeout(10000);
+		client.connect();
+		poller = new ScanPoller(client, ChannelMap.of(0, 16), ChannelMap.of(100, 16), CYCLE);
+	}
+
+	@After
+	public void tearDown()
+	{
+		poller.stop();
+		client.disconnect();
+		simulator.close();
+	}
+
+	/**
+	 * Wait a few cycles until the inputs have the value.
+	 */
+	private void awaitInputs(long value) throws Exception
+	{
+		for (int i = 0; i < 200; i++) {
+			try {
+				if (poller.getInputs()[0] == value)
+					break;
+			} catch (Exception ignore) {
+				// a failed cycle before
+			}
+			Thread.sleep(CYCLE);
+		}
+		assertEquals(value, poller.getInputs()[0]);
+	}
+
+	/**
+	 * @return the exception of getInputs() within a few cycles
+	 */
+	private Exception awaitError() throws Exception
+	{
+		for (int i = 0; i < 50; i++) {
+			try {
+				poller.getInputs();
+			} catch (Exception e) {
+				return e;
+			}
+			Thread.sleep(CYCLE);
+		}
+		fail("the poller didn't fail");
+		return null;
+	}
+
+	@Test
+	public void testCycles() throws Exception
+	{
+		simulator.setDiscreteInput(1, true);
+		simulator.setCoil(102, true);
+		poller.start();
+
+		// the first image is read by start()
+		assertEquals(0x2L, poller.getInputs()[0]);
+		assertEquals(0x4L, poller.getOutputs()[0]);
+
+		simulator.setDiscreteInput(3, true);
+		awaitInputs(0xaL);
+		assertTrue(poller.getCycles() > 0);
+		assertEquals(0, poller.getErrors());
+	}
+
+	@Test
+	public void testErrors() throws Exception
+	{
+		poller.start();
+
+		// the failed cycles are reported to the readers, until a cycle succeeds again
+		simulator.setExceptions(1, 4);
+		assertTrue(awaitError() instanceof ModbusException);
+		assertTrue(poller.getErrors() > 0);
+
+		simulator.setExceptions(0, 4);
+		simulator.setDiscreteInput(0, true);
+		awaitInputs(0x1L);
+	}
+
+	@Test
+	public void testHungDevice() throws Exception
+	{
+		poller.start();
+
+		// the responses take longer than the client's timeout, the image gets too old
+		simulator.setLatency(2000, 0);
+		long failed = System.nanoTime();
+		awaitError();
+		assertTrue(System.nanoTime() - failed < (ScanPoller.MAX_AGE_CYCLES + 10) * CYCLE * 1000000L);
+
+		// the cycles go on after the device answers again
+		simulator.setLatency(0, 0);
+		simulator.setDiscreteInput(2, true);
+		awaitInputs(0x4L);
+	}
+
+	@Test
+	public void testStop() throws Exception
+	{
+		poller.start();
+		Thread.sleep(5 * CYCLE);
+		poller.stop();
+
+		long cycles = poller.getCycles();
+		Thread.sleep(5 * CYCLE);
+		assertEquals(cycles, poller.getCycles());
+	}
+
+	@Test
+	public void testUpdate() throws Exception
+	{
+		poller.start();
+
+		// a write is visible at once, before the next cycle reads it
+		simulator.setCoil(105, true);
+		poller.update(5, true);
+		assertEquals(0x20L, poller.getOutputs()[0]);
+
+		poller.update(5, false);
+		assertEquals(0L, poller.getOutputs()[0]);
+	}
+}
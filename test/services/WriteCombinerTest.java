@@ -0,0 +1,226 @@
+package services;
+
+import metrics.Metrics;
+import modbus.ModbusClient;
+import modbus.ModbusSimulator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WriteCombinerTest
+{
+	/**
+	 * @return number of sent requests of the function code
+	 */
+	private static long sent(int function_code)
+	{
+		String label = "function=\"0x" + Integer.toHexString(function_code) + "\"";
+		double[] count = new double[1];
+		Metrics.MODBUS.collect((name, labels, value) -> {
+			if (name.equals("modbus_requests_total") && labels.equals(label))
+				count[0] = value;
+		});
+		return (long) count[0];
+	}
+
+	@Test
+	public void testCombineWrites() throws Exception
+	{
+		List<long[]> writes = new ArrayList<>();
+		WriteCombiner combiner = new WriteCombiner((mask, value) -> {
+			synchronized (writes) {
+				writes.add(new long[]{mask, value});
+			}
+			return CompletableFuture.completedFuture(null);
+		}, 100);
+
+		// the writes of the other threads arrive while the first one waits for the window
+		int[] bits = {0, 1, 2, 3, 5, 9};
+		boolean[] values = {true, true, false, true, true, true};
+		CountDownLatch started = new CountDownLatch(1);
+		Thread[] threads = new Thread[bits.length];
+		for (int i = 0; i < bits.length; i++) {
+			int bit = bits[i];
+			boolean value = values[i];
+			boolean leader = i == 0;
+			threads[i] = new Thread(() -> {
+				try {
+					if (!leader)
+						started.await();
+					combiner.write(bit, value);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			threads[i].start();
+			if (leader) {
+				Thread.sleep(20);
+				started.countDown();
+			}
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(1, writes.size());
+		assertEquals(0x22fL, writes.get(0)[0]);
+		assertEquals(0x22bL, writes.get(0)[1]);
+	}
+
+	@Test
+	public void testInterruptedWriter() throws Exception
+	{
+		CountDownLatch written = new CountDownLatch(1);
+		WriteCombiner combiner = new WriteCombiner((mask, value) -> {
+			assertEquals(0x10L, mask);
+			assertEquals(0x10L, value);
+			written.countDown();
+			return CompletableFuture.completedFuture(null);
+		}, 100);
+
+		// the waiting is given up, but the write goes out at the end of the window
+		Thread.currentThread().interrupt();
+		try {
+			combiner.write(4, true);
+			fail("interrupted writer didn't give up");
+		} catch (InterruptedException expected) {
+		}
+		assertTrue(written.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testDeadline() throws Exception
+	{
+		List<long[]> writes = new ArrayList<>();
+		WriteCombiner combiner = new WriteCombiner((mask, value) -> {
+			synchronized (writes) {
+				writes.add(new long[]{mask, value});
+			}
+			return CompletableFuture.completedFuture(null);
+		}, 10000);
+
+		// the window of 10s is closed halfway to the deadline, another writer joins the window
+		Thread other = new Thread(() -> {
+			try {
+				combiner.write(1, true);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		long start = System.nanoTime();
+		other.start();
+		Thread.sleep(20);
+		combiner.write(2, true, start + TimeUnit.MILLISECONDS.toNanos(400));
+		other.join(1000);
+
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+		assertFalse(other.isAlive());
+		assertEquals(1, writes.size());
+		assertEquals(0x6L, writes.get(0)[0]);
+	}
+
+	@Test
+	public void testWindowsInOrder() throws Exception
+	{
+		// the write of the first window completes only after the second window is closed
+		List<CompletableFuture<Void>> pending = new ArrayList<>();
+		List<Long> values = new ArrayList<>();
+		WriteCombiner combiner = new WriteCombiner((mask, value) -> {
+			CompletableFuture<Void> write = new CompletableFuture<>();
+			synchronized (values) {
+				values.add(value);
+				pending.add(write);
+			}
+			return write;
+		}, 10);
+
+		Thread first = new Thread(() -> {
+			try {
+				combiner.write(0, true);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		first.start();
+		Thread.sleep(50);
+
+		Thread second = new Thread(() -> {
+			try {
+				combiner.write(0, false);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		second.start();
+		Thread.sleep(50);
+
+		// the second window waits for the write of the first one
+		synchronized (values) {
+			assertEquals(1, values.size());
+			pending.get(0).complete(null);
+		}
+		first.join(1000);
+		for (int i = 0; i < 100 && size(values) < 2; i++)
+			Thread.sleep(10);
+		synchronized (values) {
+			assertEquals(2, values.size());
+			assertEquals(0L, (long) values.get(1));
+			pending.get(1).complete(null);
+		}
+		second.join(1000);
+		assertFalse(second.isAlive());
+	}
+
+	private static int size(List<?> list)
+	{
+		synchronized (list) {
+			return list.size();
+		}
+	}
+
+	@Test
+	public void testWriteRuns() throws Exception
+	{
+		ModbusSimulator simulator = new ModbusSimulator(0);
+		ModbusClient client = new ModbusClient("127.0.0.1", simulator.getPort());
+		client.setPipelined(true);
+		client.connect();
+		ModbusConnectionService service = new ModbusConnectionService(client, 0, 0, 0);
+		service.setWriteCombining(100);
+
+		try {
+			long single = sent(0x05);
+			long multiple = sent(0x0F);
+
+			// concurrent writes of outputs 0-3, 5 and 9 give one run and two single outputs
+			int[] ports = {0, 1, 2, 3, 5, 9, 2, 9};
+			Thread[] threads = new Thread[ports.length];
+			for (int i = 0; i < ports.length; i++) {
+				int port = ports[i];
+				threads[i] = new Thread(() -> {
+					try {
+						service.setOutput(port, true);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+
+			for (int port = 0; port < 16; port++)
+				assertEquals(port <= 3 || port == 5 || port == 9, simulator.getCoil(port));
+			assertEquals(2, sent(0x05) - single);
+			assertEquals(1, sent(0x0F) - multiple);
+		} finally {
+			service.close();
+			simulator.close();
+		}
+	}
+}